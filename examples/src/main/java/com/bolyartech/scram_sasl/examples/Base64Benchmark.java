@@ -0,0 +1,83 @@
+package com.bolyartech.scram_sasl.examples;
+
+
+import com.bolyartech.scram_sasl.common.Base64;
+import com.bolyartech.scram_sasl.common.Base64Codec;
+
+import java.util.Random;
+
+
+/**
+ * Compares {@link Base64Codec} with the legacy {@link Base64} and with <code>java.util.Base64</code> on the sizes
+ * which occur in a handshake: 16 byte salt, 32 byte proof/signature/key and 64 byte SHA-512 key.
+ * <p>
+ * The codec encodes into and decodes from arrays which are reused, the other two create new Strings and arrays.
+ */
+public class Base64Benchmark {
+    private static final int OPERATIONS = 2000000;
+    private static final int[] SIZES = {16, 32, 64};
+
+    // keeps the results alive so the JIT cannot drop the work
+    private static long sSink;
+
+
+    public static void main(String[] args) {
+        for (int size : SIZES) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+
+            // warm up
+            for (int i = 0; i < 5; i++) {
+                runLegacy(data, OPERATIONS / 10);
+                runJdk(data, OPERATIONS / 10);
+                runCodec(data, OPERATIONS / 10);
+            }
+
+            System.out.println(String.format("%d bytes, ns per encode + decode", size));
+            System.out.println(String.format("  legacy Base64      %6.1f", runLegacy(data, OPERATIONS)));
+            System.out.println(String.format("  java.util.Base64   %6.1f", runJdk(data, OPERATIONS)));
+            System.out.println(String.format("  Base64Codec        %6.1f", runCodec(data, OPERATIONS)));
+        }
+
+        System.out.println(sSink == 42 ? "" : " ");
+    }
+
+
+    private static double runLegacy(byte[] data, int operations) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            String encoded = Base64.encodeBytes(data, Base64.DONT_BREAK_LINES);
+            sSink += Base64.decode(encoded).length;
+        }
+
+        return (System.nanoTime() - begin) / (double) operations;
+    }
+
+
+    private static double runJdk(byte[] data, int operations) {
+        java.util.Base64.Encoder encoder = java.util.Base64.getEncoder();
+        java.util.Base64.Decoder decoder = java.util.Base64.getDecoder();
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            String encoded = encoder.encodeToString(data);
+            sSink += decoder.decode(encoded).length;
+        }
+
+        return (System.nanoTime() - begin) / (double) operations;
+    }
+
+
+    private static double runCodec(byte[] data, int operations) {
+        char[] encoded = new char[Base64Codec.encodedLength(data.length)];
+        byte[] decoded = new byte[data.length];
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            int length = Base64Codec.encode(data, 0, data.length, encoded, 0);
+            sSink += Base64Codec.decode(encoded, 0, length, decoded, 0);
+        }
+
+        return (System.nanoTime() - begin) / (double) operations;
+    }
+}
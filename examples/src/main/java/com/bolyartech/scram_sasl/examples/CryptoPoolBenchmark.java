@@ -0,0 +1,102 @@
+package com.bolyartech.scram_sasl.examples;
+
+
+import com.bolyartech.scram_sasl.common.ThreadLocalCryptoPool;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares creating new Mac/MessageDigest instances with {@link ThreadLocalCryptoPool} for growing number of threads.
+ * <p>
+ * Each operation does what a handshake does besides the salted password: four HMACs and one digest.
+ */
+public class CryptoPoolBenchmark {
+    private static final String HMAC_NAME = "HmacSHA256";
+    private static final String DIGEST_NAME = "SHA-256";
+    private static final int OPERATIONS = 200000;
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATA = ("n=user,r=fyko+d2lbbFgONRv9qkxdawL,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j," +
+            "s=QSXCR+Q6sek8bf92,i=4096,c=biws,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j")
+            .getBytes(StandardCharsets.US_ASCII);
+
+
+    public static void main(String[] args) throws Exception {
+        // warm up both variants
+        run(4, false);
+        run(4, true);
+
+        System.out.println("threads   getInstance ops/s   pooled ops/s");
+        for (int threads : THREADS) {
+            long plain = run(threads, false);
+            long pooled = run(threads, true);
+            System.out.println(String.format("%7d   %17d   %12d", threads, plain, pooled));
+        }
+    }
+
+
+    private static long run(final int threads, final boolean pooled) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final int perThread = OPERATIONS / threads;
+
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < perThread; n++) {
+                            if (pooled) {
+                                operationPooled();
+                            } else {
+                                operationPlain();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        return (long) (perThread * threads / (elapsed / 1e9));
+    }
+
+
+    private static void operationPlain() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            Mac mac = Mac.getInstance(HMAC_NAME);
+            mac.init(new SecretKeySpec(KEY, HMAC_NAME));
+            mac.doFinal(DATA);
+        }
+        MessageDigest.getInstance(DIGEST_NAME).digest(KEY);
+    }
+
+
+    private static void operationPooled() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            ThreadLocalCryptoPool.getMac(HMAC_NAME, KEY).doFinal(DATA);
+        }
+        ThreadLocalCryptoPool.getMessageDigest(DIGEST_NAME).digest(KEY);
+    }
+}
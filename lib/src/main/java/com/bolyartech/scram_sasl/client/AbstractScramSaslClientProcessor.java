@@ -16,10 +16,16 @@
 
 package com.bolyartech.scram_sasl.client;
 
+import com.bolyartech.scram_sasl.common.CancellationSignal;
 import com.bolyartech.scram_sasl.common.ScramException;
 import com.bolyartech.scram_sasl.common.ScramUtils;
+import com.bolyartech.scram_sasl.common.Utf8CharSequence;
 
+import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -28,15 +34,27 @@ import java.util.UUID;
  */
 @SuppressWarnings("WeakerAccess")
 abstract public class AbstractScramSaslClientProcessor implements ScramSaslClientProcessor {
-    private final ScramSaslClientProcessor.Listener mListener;
-    private final Sender mSender;
+    private ScramSaslClientProcessor.Listener mListener;
+    private Sender mSender;
+    private ByteBufferSender mByteBufferSender;
+    private ByteBuffer mWriteBuffer;
+    private final Utf8CharSequence mReadView = new Utf8CharSequence();
     private String mPassword;
     private State mState = State.INITIAL;
 
     private volatile boolean mIsSuccess = false;
     private volatile boolean mAborted = false;
+    private final AtomicInteger mGeneration = new AtomicInteger();
 
-    private ScramClientFunctionality mScramClientFunctionality;
+    private ScramClientFunctionalityImpl mScramClientFunctionality;
+    // the executor's thread uses mScramClientFunctionality, it may be still running after abort()
+    private boolean mDerivingAsync;
+    private Executor mDerivationExecutor;
+    private int mIterationsPerSlice;
+    private byte[] mHintSalt;
+    private int mHintIterations;
+    private Executor mHintExecutor;
+    private FailureReason mFailureReason;
 
 
     /**
@@ -84,34 +102,249 @@ abstract public class AbstractScramSaslClientProcessor implements ScramSaslClien
         }
 
         mScramClientFunctionality = new ScramClientFunctionalityImpl(digestName, hmacName, clientNonce);
+        mScramClientFunctionality.setCancellationSignal(createCancellationSignal());
 
         mListener = listener;
         mSender = sender;
     }
 
 
+    /**
+     * Prepares the processor for a new authentication, e.g. after the connection is re-established.
+     * <p>
+     * The settings (key cache, executor, limits, etc.) are kept. The previous authentication is aborted, a running
+     * key derivation is cancelled and its result is discarded. A new client nonce is generated.
+     */
+    public void reset() {
+        reset(mListener, mSender, mByteBufferSender);
+    }
+
+
+    /**
+     * Prepares the processor for a new authentication with other listener and sender, e.g. when the processor
+     * is taken from {@link ScramClientProcessorPool}. See {@link #reset()}. The sender set with
+     * {@link #setByteBufferSender(ByteBufferSender)} is removed.
+     * @param listener Listener of the client processor (this object)
+     * @param sender Sender used to send messages to the server
+     */
+    public void reset(Listener listener, Sender sender) {
+        reset(listener, sender, null);
+    }
+
+
+    private void reset(Listener listener, Sender sender, ByteBufferSender byteBufferSender) {
+        if (listener == null) {
+            throw new NullPointerException("Parameter listener cannot be null");
+        }
+        if (sender == null) {
+            throw new NullPointerException("Parameter sender cannot be null");
+        }
+
+        resetState(listener, sender, byteBufferSender);
+    }
+
+
+    /**
+     * Drops the password, the keys, the listener and the senders of the last authentication, e.g. when the
+     * processor is returned to {@link ScramClientProcessorPool}. A running key derivation is cancelled.
+     * {@link #reset(Listener, Sender)} must be called before the processor is used again.
+     */
+    void clear() {
+        resetState(null, null, null);
+        synchronized (this) {
+            mState = State.ENDED;
+        }
+    }
+
+
+    private void resetState(Listener listener, Sender sender, ByteBufferSender byteBufferSender) {
+        // cancels the derivation before taking the lock, like abort()
+        mGeneration.incrementAndGet();
+        synchronized (this) {
+            if (mDerivingAsync) {
+                // the executor thread still uses the old one
+                mScramClientFunctionality = mScramClientFunctionality.copySettings(UUID.randomUUID().toString());
+                mDerivingAsync = false;
+            } else {
+                mScramClientFunctionality.reset();
+            }
+            mScramClientFunctionality.setCancellationSignal(createCancellationSignal());
+
+            mListener = listener;
+            mSender = sender;
+            mByteBufferSender = byteBufferSender;
+            mPassword = null;
+            mState = State.INITIAL;
+            mIsSuccess = false;
+            mAborted = false;
+            mFailureReason = null;
+        }
+    }
+
+
+    /**
+     * Sets sender which gets the messages as bytes instead of {@link Sender}. The messages are encoded into
+     * a buffer which is reused by this processor, so no Strings are passed to the network layer.
+     * @param sender Sender to be used, null in order to use the {@link Sender} again
+     */
+    public synchronized void setByteBufferSender(ByteBufferSender sender) {
+        mByteBufferSender = sender;
+    }
+
+
+    /**
+     * Sets cache for the keys derived from the password. Must be called before {@link #start(String, String)}.
+     * @param keyCache Cache to be used, usually shared between the processors. null disables caching.
+     */
+    public synchronized void setKeyCache(ScramClientKeyCache keyCache) {
+        mScramClientFunctionality.setKeyCache(keyCache);
+    }
+
+
+    /**
+     * Sets executor for the key derivation.
+     * <p>
+     * When set, the server's first message is only passed to the executor and {@link #onMessage(String)} returns
+     * immediately. The client's final message is sent by the executor's thread when the keys are derived.
+     * Errors during the derivation are reported as failure to the listener.
+     * Use it when messages are delivered by an event loop which must not block.
+     * @param executor Executor to be used, null in order to derive the keys on the thread calling
+     *                 {@link #onMessage(String)}
+     */
+    public synchronized void setDerivationExecutor(Executor executor) {
+        mDerivationExecutor = executor;
+    }
+
+
+    /**
+     * Makes the processor derive the keys in slices.
+     * <p>
+     * When set, {@link #onMessage(String)} only starts the derivation when the server's first message is received.
+     * The derivation is advanced by {@link #continueDerivation()}, which is supposed to be called on each tick of
+     * a single threaded event loop until it returns false. The client's final message is sent by the call which
+     * completes the derivation. Takes precedence over {@link #setDerivationExecutor(Executor)}.
+     * Must be called before {@link #start(String, String)}.
+     * @param iterationsPerSlice Iterations to run on each {@link #continueDerivation()}, 0 disables slicing
+     */
+    public synchronized void setIterationsPerSlice(int iterationsPerSlice) {
+        if (iterationsPerSlice < 0) {
+            throw new IllegalArgumentException("iterationsPerSlice cannot be negative");
+        }
+        mIterationsPerSlice = iterationsPerSlice;
+    }
+
+
+    /**
+     * Runs the next slice of the key derivation. See {@link #setIterationsPerSlice(int)}.
+     * @return true if the derivation is not done yet and this method should be called again
+     * @throws ScramException if there is a unrecoverable error while computing the keys
+     */
+    public synchronized boolean continueDerivation() throws ScramException {
+        if (mState != State.PREPARING_CLIENT_FINAL || mIterationsPerSlice == 0) {
+            return false;
+        }
+
+        String msg;
+        try {
+            msg = mScramClientFunctionality.continueFinalMessage(mIterationsPerSlice);
+        } catch (ScramException e) {
+            mState = State.ENDED;
+            notifyFail(FailureReason.DERIVATION_FAILED);
+            throw e;
+        }
+
+        if (msg == null && !mScramClientFunctionality.isEnded()) {
+            return true;
+        }
+
+        onClientFinalPrepared(msg);
+        return false;
+    }
+
+
+    /**
+     * Sets the salt and iterations the server is expected to send, e.g. remembered from the last successful
+     * authentication (see {@link #getStoredCredentials()}). {@link #start(String, String)} then starts deriving the
+     * keys on <code>executor</code> right before sending the first message, so the derivation overlaps with the
+     * round trip. If the server sends other salt or iterations the derivation is cancelled.
+     * Must be called before {@link #start(String, String)}.
+     * @param salt Expected salt, null disables the speculative derivation
+     * @param iterations Expected iterations
+     * @param executor Executor which runs the speculative derivation
+     */
+    public synchronized void setDerivationHint(byte[] salt, int iterations, Executor executor) {
+        if (salt != null && executor == null) {
+            throw new NullPointerException("executor cannot be null");
+        }
+
+        mHintSalt = salt;
+        mHintIterations = iterations;
+        mHintExecutor = executor;
+    }
+
+
+    /**
+     * Sets limits for the iteration count sent by the server. Must be called before {@link #start(String, String)}.
+     * @param limits Limits to be used, null in order to use {@link IterationLimits#getDefault}
+     */
+    public synchronized void setIterationLimits(IterationLimits limits) {
+        mScramClientFunctionality.setIterationLimits(limits);
+    }
+
+
+    /**
+     * Gets the reason for the failure
+     * @return the reason or null if the authentication has not failed
+     */
+    public synchronized FailureReason getFailureReason() {
+        return mFailureReason;
+    }
+
+
     @Override
     public synchronized void onMessage(String message) throws ScramException {
+        handleMessage(message);
+    }
+
+
+    @Override
+    public synchronized void onMessage(ByteBuffer message) throws ScramException {
+        try {
+            handleMessage(mReadView.wrap(message));
+        } finally {
+            mReadView.clear();
+            message.position(message.limit());
+        }
+    }
+
+
+    private void handleMessage(CharSequence message) throws ScramException {
         if (mState != State.ENDED) {
             switch (mState) {
                 case INITIAL:
-                    notifyFail();
+                    notifyFail(FailureReason.UNEXPECTED_MESSAGE);
                 case CLIENT_FIRST_SENT:
-                    String msg = handleServerFirst(message);
-                    if (msg != null) {
-                        mState = State.CLIENT_FINAL_SENT;
-                        mSender.sendMessage(msg);
+                    // kept by the functionality for the AuthMessage, so it is copied anyway
+                    String serverFirstMessage = message.toString();
+                    if (mIterationsPerSlice > 0) {
+                        startSlicedDerivation(serverFirstMessage);
+                    } else if (mDerivationExecutor != null) {
+                        prepareClientFinalAsync(serverFirstMessage);
                     } else {
-                        mState = State.ENDED;
-                        notifyFail();
+                        onClientFinalPrepared(handleServerFirst(serverFirstMessage));
                     }
                     break;
+                case PREPARING_CLIENT_FINAL:
+                    // the server must not send anything before the client's final message
+                    mState = State.ENDED;
+                    notifyFail(FailureReason.UNEXPECTED_MESSAGE);
+                    break;
                 case CLIENT_FINAL_SENT:
                     if (handleServerFinal(message)) {
                         mIsSuccess = true;
                         notifySuccess();
                     } else {
-                        notifyFail();
+                        notifyFail(mScramClientFunctionality.getFailureReason());
                     }
                     mState = State.ENDED;
                     break;
@@ -120,10 +353,18 @@ abstract public class AbstractScramSaslClientProcessor implements ScramSaslClien
     }
 
 
+    /**
+     * Aborts the authentication.
+     * A running key derivation sees the abort within {@link ScramUtils#CANCELLATION_CHECK_ITERATIONS} iterations,
+     * so this method does not wait for it to finish.
+     */
     @Override
-    public synchronized void abort() {
+    public void abort() {
+        // set before taking the lock, the derivation in onMessage() holds it
         mAborted = true;
-        mState = State.ENDED;
+        synchronized (this) {
+            mState = State.ENDED;
+        }
     }
 
 
@@ -143,8 +384,50 @@ abstract public class AbstractScramSaslClientProcessor implements ScramSaslClien
     public synchronized void start(String username, String password) throws ScramException {
         mPassword = password;
 
+        String msg = mScramClientFunctionality.prepareFirstMessage(username);
+        if (mHintSalt != null && password != null) {
+            mScramClientFunctionality.startSpeculativeDerivation(password, mHintSalt, mHintIterations, mHintExecutor);
+        }
+
         mState = State.CLIENT_FIRST_SENT;
-        mSender.sendMessage(mScramClientFunctionality.prepareFirstMessage(username));
+        send(msg);
+    }
+
+
+    /**
+     * Initiates the SCRAM sequence with stored credentials instead of the cleartext password.
+     * <p>
+     * If the salt and iterations sent by the server match the credentials the keys are not derived at all.
+     * Otherwise <code>passwordCallback</code> is asked for the password, on the thread which derives the keys.
+     * @param username username of the user
+     * @param credentials credentials obtained with {@link #getStoredCredentials()} after an earlier authentication
+     * @param passwordCallback provides the password if the credentials do not match, may be null
+     * @throws ScramException if username contains forbidden characters (@see https://tools.ietf.org/html/rfc4013)
+     * @throws IllegalArgumentException if the credentials belong to another user or mechanism
+     */
+    public synchronized void start(String username,
+                                   StoredCredentials credentials,
+                                   PasswordCallback passwordCallback) throws ScramException {
+
+        if (credentials == null) {
+            throw new NullPointerException("credentials cannot be null");
+        }
+        if (!credentials.username.equals(username)) {
+            throw new IllegalArgumentException("credentials belong to another user");
+        }
+
+        mScramClientFunctionality.setStoredCredentials(credentials, passwordCallback);
+        start(username, null);
+    }
+
+
+    /**
+     * Gets the credentials which can be passed to {@link #start(String, StoredCredentials, PasswordCallback)}
+     * for the next authentications with the same server
+     * @return the credentials or null if the authentication has not ended successfully
+     */
+    public synchronized StoredCredentials getStoredCredentials() {
+        return mScramClientFunctionality.getStoredCredentials();
     }
 
 
@@ -154,7 +437,7 @@ abstract public class AbstractScramSaslClientProcessor implements ScramSaslClien
     }
 
 
-    private boolean handleServerFinal(String message) throws ScramException {
+    private boolean handleServerFinal(CharSequence message) throws ScramException {
         return mScramClientFunctionality.checkServerFinalMessage(message);
     }
 
@@ -164,12 +447,130 @@ abstract public class AbstractScramSaslClientProcessor implements ScramSaslClien
     }
 
 
+    private void startSlicedDerivation(String message) throws ScramException {
+        if (mScramClientFunctionality.startFinalMessage(mPassword, message)) {
+            mState = State.PREPARING_CLIENT_FINAL;
+        } else {
+            onClientFinalPrepared(null);
+        }
+    }
+
+
+    private CancellationSignal createCancellationSignal() {
+        final int generation = mGeneration.get();
+        return new CancellationSignal() {
+            @Override
+            public boolean isCancelled() {
+                return mAborted || generation != mGeneration.get();
+            }
+        };
+    }
+
+
+    private void prepareClientFinalAsync(final String message) {
+        mState = State.PREPARING_CLIENT_FINAL;
+        mDerivingAsync = true;
+        final ScramClientFunctionalityImpl functionality = mScramClientFunctionality;
+        final String password = mPassword;
+        final Executor executor = mDerivationExecutor;
+        final int generation = mGeneration.get();
+
+        // a speculative derivation which runs on another thread is not waited for, the final message is
+        // completed by another task when it is done
+        final Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                String msg;
+                try {
+                    msg = functionality.continueFinalMessage(0);
+                } catch (ScramException | RuntimeException e) {
+                    msg = null;
+                }
+
+                onClientFinalPreparedAsync(generation, msg);
+            }
+        };
+        final Runnable onSpeculationDone = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(finish);
+                } catch (RejectedExecutionException e) {
+                    onClientFinalPreparedAsync(generation, null);
+                }
+            }
+        };
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String msg;
+                    try {
+                        msg = functionality.prepareFinalMessage(password, message, onSpeculationDone);
+                        if (msg == null && !functionality.isEnded()) {
+                            return;
+                        }
+                    } catch (ScramException | RuntimeException e) {
+                        msg = null;
+                    }
+
+                    onClientFinalPreparedAsync(generation, msg);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mDerivingAsync = false;
+            mState = State.ENDED;
+            notifyFail(FailureReason.DERIVATION_FAILED);
+        }
+    }
+
+
+    private synchronized void onClientFinalPreparedAsync(int generation, String msg) {
+        if (generation != mGeneration.get()) {
+            // reset meanwhile, the processor uses a copy of the functionality
+            return;
+        }
+
+        mDerivingAsync = false;
+        // aborted or failed while the keys were derived
+        if (mState == State.PREPARING_CLIENT_FINAL) {
+            onClientFinalPrepared(msg);
+        }
+    }
+
+
+    private void onClientFinalPrepared(String msg) {
+        if (mAborted) {
+            mState = State.ENDED;
+        } else if (msg != null) {
+            mState = State.CLIENT_FINAL_SENT;
+            send(msg);
+        } else {
+            mState = State.ENDED;
+            FailureReason reason = mScramClientFunctionality.getFailureReason();
+            notifyFail(reason != null ? reason : FailureReason.DERIVATION_FAILED);
+        }
+    }
+
+
+    private void send(String msg) {
+        if (mByteBufferSender != null) {
+            mWriteBuffer = Utf8CharSequence.encode(msg, mWriteBuffer);
+            mByteBufferSender.sendMessage(mWriteBuffer);
+        } else {
+            mSender.sendMessage(msg);
+        }
+    }
+
+
     private void notifySuccess() {
         mListener.onSuccess();
     }
 
 
-    private void notifyFail() {
+    private void notifyFail(FailureReason reason) {
+        mFailureReason = reason;
         mListener.onFailure();
     }
 
@@ -177,6 +578,7 @@ abstract public class AbstractScramSaslClientProcessor implements ScramSaslClien
     enum State {
         INITIAL,
         CLIENT_FIRST_SENT,
+        PREPARING_CLIENT_FINAL,
         CLIENT_FINAL_SENT,
         ENDED
     }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+/**
+ * Keys derived from the salted password which the client needs in order to authenticate
+ */
+public class ClientKeys {
+    /**
+     * Client key
+     */
+    public final byte[] clientKey;
+    /**
+     * Stored key, i.e. H(clientKey)
+     */
+    public final byte[] storedKey;
+    /**
+     * Server key
+     */
+    public final byte[] serverKey;
+
+
+    /**
+     * Creates new ClientKeys
+     * @param clientKey Client key
+     * @param storedKey Stored key
+     * @param serverKey Server key
+     */
+    public ClientKeys(byte[] clientKey, byte[] storedKey, byte[] serverKey) {
+        this.clientKey = clientKey;
+        this.storedKey = storedKey;
+        this.serverKey = serverKey;
+    }
+}
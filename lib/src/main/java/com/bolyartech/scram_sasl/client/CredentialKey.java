@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.PasswordEncoder;
+import com.bolyartech.scram_sasl.common.ScramException;
+import com.bolyartech.scram_sasl.common.ThreadLocalCryptoPool;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+
+/**
+ * Identifies the keys derived from given password, salt, iterations and HMAC.
+ * <p>
+ * The password is kept only as a fingerprint: HMAC-SHA256 with a random secret generated once per JVM, so the
+ * fingerprints cannot be checked against password candidates outside of this process.
+ */
+final class CredentialKey {
+    private static final String FINGERPRINT_HMAC = "HmacSHA256";
+    private static final byte[] SECRET = new byte[32];
+
+    static {
+        new SecureRandom().nextBytes(SECRET);
+    }
+
+    private final byte[] mFingerprint;
+    private final byte[] mSalt;
+    private final int mIterations;
+    private final String mHmacName;
+    private final int mHashCode;
+
+
+    private CredentialKey(byte[] fingerprint, byte[] salt, int iterations, String hmacName) {
+        mFingerprint = fingerprint;
+        mSalt = salt;
+        mIterations = iterations;
+        mHmacName = hmacName;
+
+        int h = Arrays.hashCode(fingerprint);
+        h = 31 * h + Arrays.hashCode(salt);
+        h = 31 * h + iterations;
+        h = 31 * h + hmacName.hashCode();
+        mHashCode = h;
+    }
+
+
+    /**
+     * Creates new CredentialKey
+     *
+     * @param password   password
+     * @param salt       salt
+     * @param iterations iterations
+     * @param hmacName   HMAC name
+     * @return the key
+     */
+    static CredentialKey create(String password, byte[] salt, int iterations, String hmacName) {
+        byte[] passwordBytes;
+        try {
+            passwordBytes = PasswordEncoder.encode(CharBuffer.wrap(password));
+        } catch (ScramException e) {
+            // such a password is never derived, so the key only has to differ from the valid ones
+            passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        }
+
+        try {
+            return create(passwordBytes, salt, iterations, hmacName);
+        } finally {
+            PasswordEncoder.release(passwordBytes);
+        }
+    }
+
+
+    /**
+     * Creates new CredentialKey
+     *
+     * @param passwordBytes password encoded by {@link PasswordEncoder}
+     * @param salt          salt
+     * @param iterations    iterations
+     * @param hmacName      HMAC name
+     * @return the key
+     */
+    static CredentialKey create(byte[] passwordBytes, byte[] salt, int iterations, String hmacName) {
+        byte[] fingerprint;
+        try {
+            fingerprint = ThreadLocalCryptoPool.getMac(FINGERPRINT_HMAC, SECRET).doFinal(passwordBytes);
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is mandatory for every Java platform
+            throw new IllegalStateException(e);
+        }
+
+        return new CredentialKey(fingerprint, salt.clone(), iterations, hmacName);
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CredentialKey)) {
+            return false;
+        }
+
+        CredentialKey other = (CredentialKey) o;
+        return mIterations == other.mIterations &&
+                mHmacName.equals(other.mHmacName) &&
+                Arrays.equals(mSalt, other.mSalt) &&
+                Arrays.equals(mFingerprint, other.mFingerprint);
+    }
+
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+/**
+ * Reason for a failed client authentication
+ */
+@SuppressWarnings("unused")
+public enum FailureReason {
+    /**
+     * Server's message cannot be parsed or contains invalid values
+     */
+    INVALID_SERVER_MESSAGE,
+    /**
+     * Server's nonce does not start with the client nonce
+     */
+    NONCE_MISMATCH,
+    /**
+     * Server asked for more iterations than allowed by {@link IterationLimits#maxIterations}
+     */
+    ITERATION_LIMIT_EXCEEDED,
+    /**
+     * Salted password derivation would take or took longer than {@link IterationLimits#timeBudgetMillis}
+     */
+    TIME_BUDGET_EXCEEDED,
+    /**
+     * Stored credentials do not match the server's salt and iterations and there is no password
+     */
+    PASSWORD_UNAVAILABLE,
+    /**
+     * Salted password derivation was cancelled
+     */
+    CANCELLED,
+    /**
+     * Server reported an error (<code>e=</code>) in its final message, see
+     * {@link ScramClientFunctionalityImpl#getServerError()}
+     */
+    SERVER_ERROR,
+    /**
+     * Server's signature is not the expected one, i.e. the server does not know the password
+     */
+    INVALID_SERVER_SIGNATURE,
+    /**
+     * Message was received when it was not expected
+     */
+    UNEXPECTED_MESSAGE,
+    /**
+     * Keys could not be derived, e.g. the derivation executor rejected the task
+     */
+    DERIVATION_FAILED
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.CryptoBackends;
+import com.bolyartech.scram_sasl.common.IncrementalPbkdf2;
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Limits for the iteration count sent by the server in its first message.
+ * <p>
+ * The iteration count is chosen by the server, so without limits a hostile or misconfigured server may make the
+ * client spend unbounded CPU time on the salted password. The limits are checked before any HMAC is computed.
+ * The time budget is checked upfront if the mechanism is calibrated with {@link CryptoBackends#calibrate()} and
+ * during the derivation in any case.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class IterationLimits {
+    /**
+     * Maximum iterations allowed by {@link #DEFAULT}
+     */
+    public static final int DEFAULT_MAX_ITERATIONS = 10000000;
+    /**
+     * Limits used for mechanisms without limits set with {@link #setDefault(ScramMechanism, IterationLimits)}
+     */
+    public static final IterationLimits DEFAULT = new IterationLimits(DEFAULT_MAX_ITERATIONS, 0);
+
+    private static final Map<ScramMechanism, IterationLimits> DEFAULTS = new ConcurrentHashMap<>();
+
+    /**
+     * Maximum iteration count accepted from the server
+     */
+    public final int maxIterations;
+    /**
+     * Maximum time for the salted password derivation in milliseconds, 0 for no limit
+     */
+    public final long timeBudgetMillis;
+
+
+    /**
+     * Creates new IterationLimits
+     * @param maxIterations Maximum iteration count accepted from the server
+     * @param timeBudgetMillis Maximum time for the salted password derivation in milliseconds, 0 for no limit
+     */
+    public IterationLimits(int maxIterations, long timeBudgetMillis) {
+        if (maxIterations < 1) {
+            throw new IllegalArgumentException("maxIterations must be positive");
+        }
+        if (timeBudgetMillis < 0) {
+            throw new IllegalArgumentException("timeBudgetMillis cannot be negative");
+        }
+
+        this.maxIterations = maxIterations;
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+
+    /**
+     * Gets the limits used by the clients of given mechanism unless other limits are set on the client
+     * @param mechanism SCRAM mechanism
+     * @return the limits
+     */
+    public static IterationLimits getDefault(ScramMechanism mechanism) {
+        IterationLimits limits = mechanism != null ? DEFAULTS.get(mechanism) : null;
+        return limits != null ? limits : DEFAULT;
+    }
+
+
+    /**
+     * Sets the limits used by the clients of given mechanism unless other limits are set on the client
+     * @param mechanism SCRAM mechanism
+     * @param limits Limits, null in order to use {@link #DEFAULT}
+     */
+    public static void setDefault(ScramMechanism mechanism, IterationLimits limits) {
+        if (limits != null) {
+            DEFAULTS.put(mechanism, limits);
+        } else {
+            DEFAULTS.remove(mechanism);
+        }
+    }
+
+
+    /**
+     * Checks if the derivation of given iterations is expected to exceed the time budget
+     * @param mechanism SCRAM mechanism, the cost of one iteration is taken from
+     *                  {@link IncrementalPbkdf2#getIterationCostNanos(ScramMechanism)} because derivations with a
+     *                  time budget are run in steps
+     * @param iterations Iteration count
+     * @return true if the mechanism is calibrated and the estimated time is over the budget
+     */
+    public boolean isOverTimeBudget(ScramMechanism mechanism, int iterations) {
+        if (timeBudgetMillis == 0 || mechanism == null) {
+            return false;
+        }
+
+        long cost = IncrementalPbkdf2.getIterationCostNanos(mechanism);
+        return cost > 0 && (double) cost * iterations > timeBudgetMillis * 1000000.0;
+    }
+}
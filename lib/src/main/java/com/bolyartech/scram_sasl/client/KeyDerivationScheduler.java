@@ -0,0 +1,290 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Bounded executor for the key derivations of many client processors.
+ * <p>
+ * Runs at most <code>maxConcurrency</code> derivations at a time so mass reconnects do not saturate all cores,
+ * queues up to <code>maxQueued</code> more and rejects the rest (the processor fails with
+ * {@link FailureReason#DERIVATION_FAILED}). Queued derivations are started by {@link Priority}, then in order of
+ * submission. Pass {@link #forPriority(Priority)} to
+ * {@link AbstractScramSaslClientProcessor#setDerivationExecutor(Executor)} or
+ * {@link AbstractScramSaslClientProcessor#setDerivationHint(byte[], int, Executor)}. Queue depth and wait times
+ * are reported in order to size it.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class KeyDerivationScheduler implements Executor {
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMaxOutstanding;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final AtomicIntegerArray mQueuedByPriority = new AtomicIntegerArray(Priority.values().length);
+    private final AtomicLongArray mStartedByPriority = new AtomicLongArray(Priority.values().length);
+    private final AtomicLongArray mWaitNanosByPriority = new AtomicLongArray(Priority.values().length);
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+
+
+    /**
+     * Creates new KeyDerivationScheduler
+     * @param maxConcurrency Maximum number of derivations running at the same time
+     * @param maxQueued Maximum number of derivations waiting to be started
+     */
+    public KeyDerivationScheduler(int maxConcurrency, int maxQueued) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive");
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("maxQueued cannot be negative");
+        }
+
+        mMaxOutstanding = maxConcurrency + maxQueued;
+        mExecutor = new ThreadPoolExecutor(maxConcurrency,
+                maxConcurrency,
+                0,
+                TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "scram-key-derivation-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+
+    /**
+     * Executes the derivation with {@link Priority#NORMAL}
+     * @param command the derivation
+     * @throws RejectedExecutionException if the queue is full or the scheduler is shut down
+     */
+    @Override
+    public void execute(Runnable command) {
+        execute(command, Priority.NORMAL);
+    }
+
+
+    /**
+     * Executes the derivation
+     * @param command the derivation
+     * @param priority Priority of the derivation
+     * @throws RejectedExecutionException if the queue is full or the scheduler is shut down
+     */
+    public void execute(Runnable command, Priority priority) {
+        if (command == null) {
+            throw new NullPointerException("command cannot be null");
+        }
+
+        if (mOutstanding.incrementAndGet() > mMaxOutstanding) {
+            mOutstanding.decrementAndGet();
+            mRejected.incrementAndGet();
+            throw new RejectedExecutionException("Key derivation queue is full");
+        }
+        mQueued.incrementAndGet();
+        mQueuedByPriority.incrementAndGet(priority.ordinal());
+
+        try {
+            mExecutor.execute(new Task(command, priority, mSequence.getAndIncrement(), System.nanoTime()));
+        } catch (RejectedExecutionException e) {
+            mOutstanding.decrementAndGet();
+            mQueued.decrementAndGet();
+            mQueuedByPriority.decrementAndGet(priority.ordinal());
+            mRejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Gets executor which submits the derivations with given priority
+     * @param priority Priority of the derivations
+     * @return the executor
+     */
+    public Executor forPriority(final Priority priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                KeyDerivationScheduler.this.execute(command, priority);
+            }
+        };
+    }
+
+
+    /**
+     * Gets the number of the derivations which wait to be started
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        return mQueued.get();
+    }
+
+
+    /**
+     * Gets the number of the derivations with given priority which wait to be started
+     * @param priority Priority
+     * @return queue depth for the priority
+     */
+    public int getQueueDepth(Priority priority) {
+        return mQueuedByPriority.get(priority.ordinal());
+    }
+
+
+    /**
+     * Gets the number of the running derivations
+     * @return number of running derivations
+     */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+
+    /**
+     * Gets the average time the derivations with given priority waited in the queue
+     * @param priority Priority
+     * @return average wait in nanoseconds, 0 if no derivation with this priority is started yet
+     */
+    public long getAverageWaitNanos(Priority priority) {
+        long started = mStartedByPriority.get(priority.ordinal());
+        return started > 0 ? mWaitNanosByPriority.get(priority.ordinal()) / started : 0;
+    }
+
+
+    /**
+     * Gets the longest time a derivation waited in the queue
+     * @return maximum wait in nanoseconds
+     */
+    public long getMaxWaitNanos() {
+        return mMaxWaitNanos.get();
+    }
+
+
+    /**
+     * Gets the number of the rejected derivations
+     * @return number of rejected derivations
+     */
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+
+    /**
+     * Gets the number of the finished derivations
+     * @return number of finished derivations
+     */
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+
+    /**
+     * Stops accepting derivations. The queued ones are still run.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+
+    /**
+     * Priority class of a derivation
+     */
+    public enum Priority {
+        /**
+         * User is waiting for the authentication
+         */
+        INTERACTIVE,
+        /**
+         * Default priority
+         */
+        NORMAL,
+        /**
+         * Nobody waits for the authentication, e.g. refilling a connection pool
+         */
+        BACKGROUND
+    }
+
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final Runnable mCommand;
+        private final Priority mPriority;
+        private final long mSequence;
+        private final long mSubmittedAt;
+
+
+        Task(Runnable command, Priority priority, long sequence, long submittedAt) {
+            mCommand = command;
+            mPriority = priority;
+            mSequence = sequence;
+            mSubmittedAt = submittedAt;
+        }
+
+
+        @Override
+        public void run() {
+            long wait = System.nanoTime() - mSubmittedAt;
+            int p = mPriority.ordinal();
+            mQueued.decrementAndGet();
+            mQueuedByPriority.decrementAndGet(p);
+            mStartedByPriority.incrementAndGet(p);
+            mWaitNanosByPriority.addAndGet(p, wait);
+
+            long max = mMaxWaitNanos.get();
+            while (wait > max && !mMaxWaitNanos.compareAndSet(max, wait)) {
+                max = mMaxWaitNanos.get();
+            }
+
+            try {
+                mCommand.run();
+            } finally {
+                mOutstanding.decrementAndGet();
+                mCompleted.incrementAndGet();
+            }
+        }
+
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.compareTo(other.mPriority);
+            }
+
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.Base64Codec;
+import com.bolyartech.scram_sasl.common.ScramException;
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Authenticates many distinct accounts in parallel.
+ * <p>
+ * Each handshake runs synchronously on a worker of a {@link ForkJoinPool}: the client messages are passed to the
+ * account's {@link Transport} which returns the server's response. Workers reuse one
+ * {@link ScramClientFunctionalityImpl} per thread and mechanism (see
+ * {@link ScramClientFunctionalityImpl#reset(String)}) and the per-thread Mac and digest instances of
+ * {@link com.bolyartech.scram_sasl.common.ThreadLocalCryptoPool}. These are shared by all ScramBatchClient
+ * instances, so creating clients does not grow the per-thread state of the pool, and after each handshake the
+ * functionality is reset and detached from the client's key cache and limits.
+ * Client nonces come from per-thread {@link SecureRandom} instances instead of the shared generator behind
+ * {@link java.util.UUID#randomUUID()}. Waiting for the transport is reported to the pool as blocking, so it may add
+ * workers while the others wait for the network.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class ScramBatchClient {
+    private static final int NONCE_LENGTH = 18;
+
+    private static final ThreadLocal<SecureRandom> RANDOMS = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    private static final ThreadLocal<EnumMap<ScramMechanism, ScramClientFunctionalityImpl>> FUNCTIONALITIES =
+            new ThreadLocal<EnumMap<ScramMechanism, ScramClientFunctionalityImpl>>() {
+                @Override
+                protected EnumMap<ScramMechanism, ScramClientFunctionalityImpl> initialValue() {
+                    return new EnumMap<>(ScramMechanism.class);
+                }
+            };
+
+    private final ScramMechanism mMechanism;
+    private final ForkJoinPool mPool;
+
+    private volatile ScramClientKeyCache mKeyCache;
+    private volatile IterationLimits mIterationLimits;
+
+
+    /**
+     * Creates new ScramBatchClient which uses {@link ForkJoinPool#commonPool()}
+     * @param mechanism SCRAM mechanism to be used
+     */
+    public ScramBatchClient(ScramMechanism mechanism) {
+        this(mechanism, ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     * Creates new ScramBatchClient
+     * @param mechanism SCRAM mechanism to be used
+     * @param pool Pool which runs the handshakes
+     */
+    public ScramBatchClient(ScramMechanism mechanism, ForkJoinPool pool) {
+        if (mechanism == null) {
+            throw new NullPointerException("mechanism cannot be null");
+        }
+        if (pool == null) {
+            throw new NullPointerException("pool cannot be null");
+        }
+
+        mMechanism = mechanism;
+        mPool = pool;
+    }
+
+
+    /**
+     * Sets cache for the keys derived from the passwords
+     * @param keyCache Cache to be used, null disables caching
+     */
+    public void setKeyCache(ScramClientKeyCache keyCache) {
+        mKeyCache = keyCache;
+    }
+
+
+    /**
+     * Sets limits for the iteration count sent by the server
+     * @param limits Limits to be used, null in order to use {@link IterationLimits#getDefault(ScramMechanism)}
+     */
+    public void setIterationLimits(IterationLimits limits) {
+        mIterationLimits = limits;
+    }
+
+
+    /**
+     * Authenticates the accounts and waits for all handshakes to end
+     * @param accounts Accounts to be authenticated
+     * @return results in the order of <code>accounts</code>
+     */
+    public List<Result> authenticate(List<Account> accounts) {
+        if (accounts == null) {
+            throw new NullPointerException("accounts cannot be null");
+        }
+
+        Account[] input = accounts.toArray(new Account[accounts.size()]);
+        Result[] results = new Result[input.length];
+        if (input.length > 0) {
+            mPool.invoke(new HandshakeAction(input, results, 0, input.length));
+        }
+
+        return Arrays.asList(results);
+    }
+
+
+    private Result authenticate(Account account) {
+        long start = System.nanoTime();
+
+        ScramClientFunctionalityImpl functionality = getFunctionality(mMechanism);
+        functionality.reset(createNonce());
+        functionality.setKeyCache(mKeyCache);
+        functionality.setIterationLimits(mIterationLimits);
+
+        try {
+            String serverFirstMessage = exchange(account.transport,
+                    functionality.prepareFirstMessage(account.username));
+
+            String clientFinalMessage = functionality.prepareFinalMessage(account.password, serverFirstMessage);
+            if (clientFinalMessage == null) {
+                return new Result(account, false, functionality.getFailureReason(), null,
+                        System.nanoTime() - start);
+            }
+
+            boolean successful = functionality.checkServerFinalMessage(exchange(account.transport,
+                    clientFinalMessage));
+
+            return new Result(account, successful, functionality.getFailureReason(), null,
+                    System.nanoTime() - start);
+        } catch (ScramException | IOException | RuntimeException e) {
+            return new Result(account, false, functionality.getFailureReason(), e, System.nanoTime() - start);
+        } finally {
+            // the functionality outlives this client on the pool's thread, it must not keep its keys or objects
+            functionality.reset(createNonce());
+            functionality.setKeyCache(null);
+            functionality.setIterationLimits(null);
+        }
+    }
+
+
+    private static ScramClientFunctionalityImpl getFunctionality(ScramMechanism mechanism) {
+        EnumMap<ScramMechanism, ScramClientFunctionalityImpl> functionalities = FUNCTIONALITIES.get();
+        ScramClientFunctionalityImpl ret = functionalities.get(mechanism);
+        if (ret == null) {
+            ret = new ScramClientFunctionalityImpl(mechanism.getDigestName(), mechanism.getHmacName(), createNonce());
+            functionalities.put(mechanism, ret);
+        }
+
+        return ret;
+    }
+
+
+    private static String exchange(Transport transport, String message) throws IOException {
+        Exchange exchange = new Exchange(transport, message);
+        try {
+            ForkJoinPool.managedBlock(exchange);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the server", e);
+        }
+
+        if (exchange.mError != null) {
+            throw exchange.mError;
+        }
+
+        if (exchange.mResponse == null) {
+            throw new IOException("No response from the server");
+        }
+
+        return exchange.mResponse;
+    }
+
+
+    private static String createNonce() {
+        byte[] bytes = new byte[NONCE_LENGTH];
+        RANDOMS.get().nextBytes(bytes);
+        return Base64Codec.encodeToString(bytes);
+    }
+
+
+    /**
+     * Connection to the server of one account
+     */
+    public interface Transport {
+        /**
+         * Sends client's message and waits for server's response
+         * @param clientMessage Client's message
+         * @return Server's response
+         * @throws IOException if the message cannot be sent or the response cannot be received
+         */
+        String exchange(String clientMessage) throws IOException;
+    }
+
+
+    /**
+     * Account to be authenticated
+     */
+    public static class Account {
+        /**
+         * Username of the account
+         */
+        public final String username;
+        /**
+         * Password of the account
+         */
+        public final String password;
+        /**
+         * Connection to the server
+         */
+        public final Transport transport;
+
+
+        /**
+         * Creates new Account
+         * @param username Username of the account
+         * @param password Password of the account
+         * @param transport Connection to the server
+         */
+        public Account(String username, String password, Transport transport) {
+            if (username == null) {
+                throw new NullPointerException("username cannot be null");
+            }
+            if (password == null) {
+                throw new NullPointerException("password cannot be null");
+            }
+            if (transport == null) {
+                throw new NullPointerException("transport cannot be null");
+            }
+
+            this.username = username;
+            this.password = password;
+            this.transport = transport;
+        }
+    }
+
+
+    /**
+     * Result of the authentication of one account
+     */
+    public static class Result {
+        /**
+         * The account
+         */
+        public final Account account;
+        /**
+         * true if the authentication is successful
+         */
+        public final boolean successful;
+        /**
+         * Reason for the failure, null if the authentication is successful or failed with {@link #error}
+         */
+        public final FailureReason failureReason;
+        /**
+         * Exception which ended the authentication, null if there is no such
+         */
+        public final Exception error;
+        /**
+         * Time from the start of the handshake to its end in nanoseconds
+         */
+        public final long latencyNanos;
+
+
+        /**
+         * Creates new Result
+         * @param account The account
+         * @param successful true if the authentication is successful
+         * @param failureReason Reason for the failure
+         * @param error Exception which ended the authentication
+         * @param latencyNanos Time from the start of the handshake to its end in nanoseconds
+         */
+        public Result(Account account,
+                      boolean successful,
+                      FailureReason failureReason,
+                      Exception error,
+                      long latencyNanos) {
+
+            this.account = account;
+            this.successful = successful;
+            this.failureReason = failureReason;
+            this.error = error;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+
+    private class HandshakeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Account[] mAccounts;
+        private final Result[] mResults;
+        private final int mFrom;
+        private final int mTo;
+
+
+        HandshakeAction(Account[] accounts, Result[] results, int from, int to) {
+            mAccounts = accounts;
+            mResults = results;
+            mFrom = from;
+            mTo = to;
+        }
+
+
+        @Override
+        protected void compute() {
+            // a handshake is expensive enough to be a task on its own
+            if (mTo - mFrom == 1) {
+                mResults[mFrom] = authenticate(mAccounts[mFrom]);
+            } else {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new HandshakeAction(mAccounts, mResults, mFrom, middle),
+                        new HandshakeAction(mAccounts, mResults, middle, mTo));
+            }
+        }
+    }
+
+
+    private static class Exchange implements ForkJoinPool.ManagedBlocker {
+        private final Transport mTransport;
+        private final String mMessage;
+        private String mResponse;
+        private IOException mError;
+        private boolean mDone;
+
+
+        Exchange(Transport transport, String message) {
+            mTransport = transport;
+            mMessage = message;
+        }
+
+
+        @Override
+        public boolean block() {
+            try {
+                mResponse = mTransport.exchange(mMessage);
+            } catch (IOException e) {
+                mError = e;
+            } finally {
+                mDone = true;
+            }
+
+            return true;
+        }
+
+
+        @Override
+        public boolean isReleasable() {
+            return mDone;
+        }
+    }
+}
@@ -17,19 +17,32 @@
 package com.bolyartech.scram_sasl.client;
 
 
-import com.bolyartech.scram_sasl.common.Base64;
+import com.bolyartech.scram_sasl.common.AuthMessage;
+import com.bolyartech.scram_sasl.common.Base64Codec;
+import com.bolyartech.scram_sasl.common.CancellationSignal;
+import com.bolyartech.scram_sasl.common.IncrementalPbkdf2;
+import com.bolyartech.scram_sasl.common.PasswordEncoder;
+import com.bolyartech.scram_sasl.common.ScramAttributes;
 import com.bolyartech.scram_sasl.common.ScramException;
+import com.bolyartech.scram_sasl.common.ScramMechanism;
 import com.bolyartech.scram_sasl.common.ScramUtils;
 import com.bolyartech.scram_sasl.common.StringPrep;
+import com.bolyartech.scram_sasl.common.ThreadLocalCryptoPool;
+import com.bolyartech.scram_sasl.common.Utf8CharSequence;
 
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -37,20 +50,56 @@ import java.util.regex.Pattern;
  */
 @SuppressWarnings("unused")
 public class ScramClientFunctionalityImpl implements ScramClientFunctionality {
-    private static final Pattern SERVER_FIRST_MESSAGE = Pattern.compile("r=([^,]*),s=([^,]*),i=(.*)$");
-    private static final Pattern SERVER_FINAL_MESSAGE = Pattern.compile("v=([^,]*)$");
 
     private static final String GS2_HEADER = "n,,";
+    private static final CancellationSignal NOT_CANCELLED = new CancellationSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
     private static final Charset ASCII = Charset.forName("ASCII");
+    // c= attribute of the client final message, the GS2 header in Base64 ("biws")
+    private static final String CHANNEL_BINDING = "c=" + Base64Codec.encodeToString(GS2_HEADER.getBytes(ASCII));
+    private static final int INITIAL_BUILDER_CAPACITY = 256;
 
     private final String mDigestName;
     private final String mHmacName;
-    private final String mClientNonce;
+    private final int mEncodedProofLength;
+    private final StringBuilder mBuilder = new StringBuilder(INITIAL_BUILDER_CAPACITY);
+    private String mClientNonce;
     private String mClientFirstMessageBare;
+    private String mUsername;
 
     private boolean mIsSuccessful = false;
-    private byte[] mSaltedPassword;
-    private String mAuthMessage;
+    private byte[] mServerKey;
+    private final AuthMessage mAuthMessage = new AuthMessage();
+    private ScramClientKeyCache mKeyCache;
+    private CancellationSignal mCancellationSignal;
+    private IterationLimits mIterationLimits;
+    private FailureReason mFailureReason;
+    private String mServerError;
+
+    private String mServerFirstMessage;
+    private String mNonce;
+    private byte[] mSalt;
+    private int mIterations;
+    private long mTimeBudgetMillis;
+
+    private CredentialKey mPendingCredentialKey;
+    private IncrementalPbkdf2 mPendingDerivation;
+    private ClientKeys mPendingKeys;
+    private long mPendingDeadline;
+
+    private StoredCredentials mStoredCredentials;
+    private ScramSaslClientProcessor.PasswordCallback mPasswordCallback;
+    private ClientKeys mKeys;
+
+    private SpeculationTask mSpeculation;
+    private byte[] mSpeculationSalt;
+    private int mSpeculationIterations;
+    private AtomicBoolean mSpeculationCancelled;
+    private SpeculationTask mPendingSpeculation;
 
     private State mState = State.INITIAL;
 
@@ -85,6 +134,229 @@ public class ScramClientFunctionalityImpl implements ScramClientFunctionality {
         mDigestName = digestName;
         mHmacName = hmacName;
         mClientNonce = clientNonce;
+
+        ScramMechanism mechanism = ScramMechanism.forHmacName(hmacName);
+        int proofLength = mechanism != null ? mechanism.getHashSize() : ScramMechanism.SCRAM_SHA_512.getHashSize();
+        mEncodedProofLength = (proofLength + 2) / 3 * 4;
+    }
+
+
+    /**
+     * Prepares this object for a new authentication with a new random client nonce.
+     * The key cache, the iteration limits and the cancellation signal are kept, the stored credentials are not.
+     * A running speculative derivation is cancelled.
+     */
+    public void reset() {
+        reset(UUID.randomUUID().toString());
+    }
+
+
+    /**
+     * Prepares this object for a new authentication.
+     * The key cache, the iteration limits and the cancellation signal are kept, the stored credentials are not.
+     * A running speculative derivation is cancelled.
+     * @param clientNonce Client nonce to be used
+     */
+    public void reset(String clientNonce) {
+        if (ScramUtils.isNullOrEmpty(clientNonce)) {
+            throw new NullPointerException("clientNonce cannot be null or empty");
+        }
+
+        if (mSpeculationCancelled != null) {
+            mSpeculationCancelled.set(true);
+        }
+
+        mClientNonce = clientNonce;
+        mClientFirstMessageBare = null;
+        mUsername = null;
+        mIsSuccessful = false;
+        mServerKey = null;
+        mAuthMessage.clear();
+        mFailureReason = null;
+        mServerError = null;
+
+        mServerFirstMessage = null;
+        mNonce = null;
+        mSalt = null;
+        mIterations = 0;
+        mTimeBudgetMillis = 0;
+
+        mPendingCredentialKey = null;
+        mPendingDerivation = null;
+        mPendingKeys = null;
+        mPendingDeadline = 0;
+
+        mStoredCredentials = null;
+        mPasswordCallback = null;
+        mKeys = null;
+
+        mSpeculation = null;
+        mSpeculationSalt = null;
+        mSpeculationIterations = 0;
+        mSpeculationCancelled = null;
+        mPendingSpeculation = null;
+
+        mState = State.INITIAL;
+    }
+
+
+    /**
+     * Sets cache for the keys derived from the password.
+     * If there are cached keys for the password, salt and iterations sent by the server the salted password
+     * is not computed.
+     * @param keyCache Cache to be used, may be shared between instances. null disables caching.
+     */
+    public void setKeyCache(ScramClientKeyCache keyCache) {
+        mKeyCache = keyCache;
+    }
+
+
+    /**
+     * Sets signal which stops the salted password derivation.
+     * When the signal is cancelled during {@link #prepareFinalMessage(String, String)} the derivation stops within
+     * {@link ScramUtils#CANCELLATION_CHECK_ITERATIONS} iterations and the method returns null.
+     * @param signal Signal to be checked, null makes the derivation not cancellable
+     */
+    public void setCancellationSignal(CancellationSignal signal) {
+        mCancellationSignal = signal;
+    }
+
+
+    /**
+     * Sets limits for the iteration count sent by the server
+     * @param limits Limits to be used, null in order to use {@link IterationLimits#getDefault(ScramMechanism)}
+     */
+    public void setIterationLimits(IterationLimits limits) {
+        mIterationLimits = limits;
+    }
+
+
+    /**
+     * Sets credentials to be used instead of the password.
+     * When the server's salt and iterations match the credentials no salted password is computed. Otherwise the
+     * password passed to {@link #prepareFinalMessage(String, String)} is used or, if it is null, the one provided
+     * by <code>passwordCallback</code>.
+     * @param credentials Stored credentials, null in order to always use the password
+     * @param passwordCallback Provides the password if the credentials do not match, may be null
+     * @throws IllegalArgumentException if the credentials are for another mechanism
+     */
+    public void setStoredCredentials(StoredCredentials credentials,
+                                     ScramSaslClientProcessor.PasswordCallback passwordCallback) {
+        if (credentials != null && !credentials.hmacName.equals(mHmacName)) {
+            throw new IllegalArgumentException("credentials are for " + credentials.hmacName + ", not for " +
+                    mHmacName);
+        }
+
+        mStoredCredentials = credentials;
+        mPasswordCallback = passwordCallback;
+    }
+
+
+    /**
+     * Starts deriving the keys for the expected salt and iterations before the server's first message is received.
+     * <p>
+     * The derivation runs on <code>executor</code> in parallel with the round trip to the server. If the server's
+     * first message confirms the salt and iterations, the final message uses its result (waiting for it if needed),
+     * otherwise it is cancelled and the keys are derived as usual. The salt and iterations are usually remembered
+     * from the last successful authentication with the same server (see {@link #getStoredCredentials()}).
+     * @param password User password
+     * @param salt Expected salt
+     * @param iterations Expected iterations
+     * @param executor Executor which runs the derivation
+     * @return true if the derivation is started, false if the iterations are not within the {@link IterationLimits},
+     * the password contains characters prohibited by SASLprep or the executor rejected the task
+     */
+    public boolean startSpeculativeDerivation(String password, byte[] salt, int iterations, Executor executor) {
+        if (mState == State.ENDED || mServerFirstMessage != null || mSpeculation != null) {
+            throw new IllegalStateException("You can call this method once only before " +
+                    "calling prepareFinalMessage()");
+        }
+
+        ScramMechanism mechanism = ScramMechanism.forHmacName(mHmacName);
+        IterationLimits limits = getIterationLimits(mechanism);
+        if (iterations <= 0 || iterations > limits.maxIterations || limits.isOverTimeBudget(mechanism, iterations)) {
+            return false;
+        }
+
+        final byte[] passwordBytes;
+        try {
+            passwordBytes = PasswordEncoder.encode(CharBuffer.wrap(password));
+        } catch (ScramException e) {
+            return false;
+        }
+
+        final ScramClientKeyCache keyCache = mKeyCache;
+        final CredentialKey credentialKey = CredentialKey.create(passwordBytes, salt, iterations, mHmacName);
+        final CancellationSignal cancellationSignal = mCancellationSignal;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final CancellationSignal signal = new CancellationSignal() {
+            @Override
+            public boolean isCancelled() {
+                return cancelled.get() || (cancellationSignal != null && cancellationSignal.isCancelled());
+            }
+        };
+        final Callable<ClientKeys> derivation =
+                newDerivation(passwordBytes, salt, iterations, credentialKey, signal);
+
+        SpeculationTask task = new SpeculationTask(new Callable<ClientKeys>() {
+            @Override
+            public ClientKeys call() throws Exception {
+                try {
+                    ClientKeys keys = keyCache != null ? keyCache.get(credentialKey) : null;
+                    if (keys != null) {
+                        return keys;
+                    }
+
+                    return SingleFlightKeyDerivation.derive(credentialKey, derivation, signal);
+                } finally {
+                    PasswordEncoder.release(passwordBytes);
+                }
+            }
+        });
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            PasswordEncoder.release(passwordBytes);
+            return false;
+        }
+
+        mSpeculation = task;
+        mSpeculationCancelled = cancelled;
+        mSpeculationSalt = salt.clone();
+        mSpeculationIterations = iterations;
+        return true;
+    }
+
+
+    /**
+     * Gets the credentials which can be used for the next authentications instead of the password
+     * @return the credentials or null if the authentication has not ended successfully
+     */
+    public StoredCredentials getStoredCredentials() {
+        if (mState == State.ENDED && mIsSuccessful) {
+            return new StoredCredentials(mUsername, mHmacName, mSalt, mIterations, mKeys);
+        } else {
+            return null;
+        }
+    }
+
+
+    /**
+     * Gets the reason for the failure
+     * @return the reason or null if the authentication has not failed (yet)
+     */
+    public FailureReason getFailureReason() {
+        return mFailureReason;
+    }
+
+
+    /**
+     * Gets the error sent by the server in its final message
+     * @return the error, e.g. invalid-proof, or null if the server did not send an error
+     */
+    public String getServerError() {
+        return mServerError;
     }
 
 
@@ -104,9 +376,19 @@ public class ScramClientFunctionalityImpl implements ScramClientFunctionality {
         }
 
         try {
-            mClientFirstMessageBare = "n=" + StringPrep.prepAsQueryString(username) + ",r=" + mClientNonce;
+            String name = encodeSaslName(StringPrep.prepAsQueryString(username));
+            String message = builder(GS2_HEADER.length() + name.length() + mClientNonce.length() + 5)
+                    .append(GS2_HEADER)
+                    .append("n=")
+                    .append(name)
+                    .append(",r=")
+                    .append(mClientNonce)
+                    .toString();
+
+            mClientFirstMessageBare = message.substring(GS2_HEADER.length());
+            mUsername = username;
             mState = State.FIRST_PREPARED;
-            return GS2_HEADER + mClientFirstMessageBare;
+            return message;
         } catch (StringPrep.StringPrepError e) {
             mState = State.ENDED;
             throw new ScramException("Username contains prohibited character");
@@ -116,59 +398,198 @@ public class ScramClientFunctionalityImpl implements ScramClientFunctionality {
 
     @Override
     public String prepareFinalMessage(String password, String serverFirstMessage) throws ScramException {
-        if (mState != State.FIRST_PREPARED) {
-            throw new IllegalStateException("You can call this method once only after " +
-                    "calling prepareFirstMessage()");
-        }
+        return prepareFinalMessage(password, serverFirstMessage, null);
+    }
 
-        Matcher m = SERVER_FIRST_MESSAGE.matcher(serverFirstMessage);
-        if (!m.matches()) {
-            mState = State.ENDED;
+
+    /**
+     * Prepares client's final message like {@link #prepareFinalMessage(String, String)} but does not wait for
+     * a speculative derivation (see {@link #startSpeculativeDerivation(String, byte[], int, Executor)}) which is
+     * running on another thread.
+     * <p>
+     * A speculative derivation which is not started yet is run on the calling thread. If it is already running,
+     * this method returns null without ending the authentication and <code>onSpeculationDone</code> is called
+     * by the thread which completes the derivation. {@link #continueFinalMessage(int)} then returns the final
+     * message without blocking. Use it when the caller is itself a task of an executor, so no thread of the
+     * executor is blocked while the derivation runs on another one.
+     * @param password User password, may be null if stored credentials are set
+     * @param serverFirstMessage Server's first message
+     * @param onSpeculationDone Called when the running speculative derivation is done, null in order to wait for it
+     * @return client's final message or null if it is not ready yet (see above) or the preparation failed. If it
+     * failed {@link #isEnded()} returns true.
+     * @throws ScramException if internal error occurs while computing the keys
+     */
+    public String prepareFinalMessage(String password, String serverFirstMessage, Runnable onSpeculationDone)
+            throws ScramException {
+
+        checkCanPrepareFinalMessage();
+
+        if (!handleServerFirstMessage(serverFirstMessage)) {
             return null;
         }
 
-        String nonce = m.group(1);
+        try {
+            ClientKeys keys = getStoredKeys();
+            if (keys == null) {
+                SpeculationTask speculation = takeSpeculation();
+                if (speculation != null) {
+                    // takes the derivation over if the executor has not started it yet, e.g. because this thread
+                    // is the one which would run it
+                    speculation.run();
+                    if (!speculation.isDone() && onSpeculationDone != null) {
+                        mPendingDeadline = System.nanoTime() + mTimeBudgetMillis * 1000000L;
+                        mPendingSpeculation = speculation;
+                        speculation.setOnDone(onSpeculationDone);
+                        return null;
+                    }
+
+                    keys = awaitSpeculation(speculation);
+                    if (keys == null) {
+                        return null;
+                    }
+                }
+            }
+
+            if (keys == null) {
+                password = getPassword(password);
+                if (password == null) {
+                    return fail(FailureReason.PASSWORD_UNAVAILABLE);
+                }
 
-        if (!nonce.startsWith(mClientNonce)) {
+                keys = getClientKeys(password, mSalt, mIterations, mTimeBudgetMillis);
+                if (keys == null) {
+                    mState = State.ENDED;
+                    return null;
+                }
+            }
+
+            return createFinalMessage(keys);
+        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
             mState = State.ENDED;
-            return null;
+            throw new ScramException(e);
         }
+    }
 
 
-        String salt = m.group(2);
-        String iterationCountString = m.group(3);
-        int iterations = Integer.parseInt(iterationCountString);
-        if (iterations <= 0) {
-            mState = State.ENDED;
-            return null;
+    /**
+     * Starts preparing client's final message without deriving the keys.
+     * <p>
+     * The salted password is derived by the subsequent calls of {@link #continueFinalMessage(int)}, a slice of
+     * iterations per call, so a single threaded event loop can serve other connections between the slices.
+     * The key cache is used but concurrent derivations with the same credentials are not coalesced.
+     * @param password User password, may be null if stored credentials are set
+     * @param serverFirstMessage Server's first message
+     * @return true if the preparation is started, false if the server's message is rejected
+     * (see {@link #getFailureReason()})
+     * @throws ScramException if internal error occurs while initializing the HMAC
+     */
+    public boolean startFinalMessage(String password, String serverFirstMessage) throws ScramException {
+        checkCanPrepareFinalMessage();
+
+        if (!handleServerFirstMessage(serverFirstMessage)) {
+            return false;
         }
 
+        mPendingKeys = getStoredKeys();
+        if (mPendingKeys != null) {
+            return true;
+        }
 
+        mPendingDeadline = System.nanoTime() + mTimeBudgetMillis * 1000000L;
+        mPendingSpeculation = takeSpeculation();
+        if (mPendingSpeculation != null) {
+            return true;
+        }
+
+        password = getPassword(password);
+        if (password == null) {
+            fail(FailureReason.PASSWORD_UNAVAILABLE);
+            return false;
+        }
+
+        byte[] passwordBytes = encodePassword(password);
         try {
-            mSaltedPassword = ScramUtils.generateSaltedPassword(password,
-                    Base64.decode(salt),
-                    iterations,
-                    mHmacName);
+            mPendingCredentialKey = CredentialKey.create(passwordBytes, mSalt, mIterations, mHmacName);
+            if (mKeyCache != null) {
+                mPendingKeys = mKeyCache.get(mPendingCredentialKey);
+            }
+
+            if (mPendingKeys == null) {
+                mPendingDerivation = IncrementalPbkdf2.create(passwordBytes, mSalt, mIterations, mHmacName);
+            }
+        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+            mState = State.ENDED;
+            throw new ScramException(e);
+        } finally {
+            PasswordEncoder.release(passwordBytes);
+        }
+
+        return true;
+    }
 
 
-            String clientFinalMessageWithoutProof = "c=" + Base64.encodeBytes(GS2_HEADER.getBytes(ASCII)
-                    , Base64.DONT_BREAK_LINES)
-                    + ",r=" + nonce;
+    /**
+     * Continues the preparation started by {@link #startFinalMessage(String, String)} or by
+     * {@link #prepareFinalMessage(String, String, Runnable)} which returned before the speculative derivation
+     * was done.
+     * The time budget of the {@link IterationLimits} is measured from the start, including the time between
+     * the calls.
+     * @param maxIterations Maximum number of iterations to run by this call
+     * @return client's final message or null if it is not ready yet or the preparation failed. If it failed
+     * {@link #isEnded()} returns true.
+     * @throws ScramException if internal error occurs while computing the keys
+     */
+    public String continueFinalMessage(int maxIterations) throws ScramException {
+        if (mState != State.FIRST_PREPARED ||
+                (mPendingDerivation == null && mPendingSpeculation == null && mPendingKeys == null)) {
 
-            mAuthMessage = mClientFirstMessageBare + "," + serverFirstMessage + "," + clientFinalMessageWithoutProof;
+            throw new IllegalStateException("You can call this method only after calling startFinalMessage()");
+        }
+
+        try {
+            if (mPendingKeys == null) {
+                FailureReason reason = null;
+                if (mCancellationSignal != null && mCancellationSignal.isCancelled()) {
+                    reason = FailureReason.CANCELLED;
+                } else if (mTimeBudgetMillis > 0 && System.nanoTime() - mPendingDeadline > 0) {
+                    reason = FailureReason.TIME_BUDGET_EXCEEDED;
+                }
+                if (reason != null) {
+                    if (mPendingSpeculation != null) {
+                        mSpeculationCancelled.set(true);
+                    }
+                    mPendingDerivation = null;
+                    mPendingSpeculation = null;
+                    return fail(reason);
+                }
 
-            byte[] clientKey = ScramUtils.computeHmac(mSaltedPassword, mHmacName, "Client Key");
-            byte[] storedKey = MessageDigest.getInstance(mDigestName).digest(clientKey);
+                if (mPendingSpeculation != null) {
+                    // never blocks, the event loop calls again until the background derivation is done
+                    if (!mPendingSpeculation.isDone()) {
+                        return null;
+                    }
 
-            byte[] clientSignature = ScramUtils.computeHmac(storedKey, mHmacName, mAuthMessage);
+                    mPendingKeys = awaitSpeculation(mPendingSpeculation);
+                    mPendingSpeculation = null;
+                    if (mPendingKeys == null) {
+                        return null;
+                    }
+                } else {
+                    if (!mPendingDerivation.step(maxIterations)) {
+                        return null;
+                    }
 
-            byte[] clientProof = clientKey.clone();
-            for (int i = 0; i < clientProof.length; i++) {
-                clientProof[i] ^= clientSignature[i];
+                    mPendingKeys = computeClientKeys(mPendingDerivation.getSaltedPassword());
+                    mPendingDerivation = null;
+                    if (mKeyCache != null) {
+                        mKeyCache.put(mPendingCredentialKey, mPendingKeys);
+                    }
+                }
             }
 
-            mState = State.FINAL_PREPARED;
-            return clientFinalMessageWithoutProof + ",p=" + Base64.encodeBytes(clientProof, Base64.DONT_BREAK_LINES);
+            ClientKeys keys = mPendingKeys;
+            mPendingKeys = null;
+            return createFinalMessage(keys);
         } catch (InvalidKeyException | NoSuchAlgorithmException e) {
             mState = State.ENDED;
             throw new ScramException(e);
@@ -178,21 +599,50 @@ public class ScramClientFunctionalityImpl implements ScramClientFunctionality {
 
     @Override
     public boolean checkServerFinalMessage(String serverFinalMessage) throws ScramException {
+        return checkServerFinalMessage((CharSequence) serverFinalMessage);
+    }
+
+
+    /**
+     * Checks if the server's final message given as characters, e.g. {@link Utf8CharSequence} over the received
+     * bytes, is valid
+     * @param serverFinalMessage Server's final message
+     * @return true if the server's message is valid, false otherwise
+     */
+    public boolean checkServerFinalMessage(CharSequence serverFinalMessage) throws ScramException {
         if (mState != State.FINAL_PREPARED) {
             throw new IllegalStateException("You can call this method only once after " +
                     "calling prepareFinalMessage()");
         }
 
-        Matcher m = SERVER_FINAL_MESSAGE.matcher(serverFinalMessage);
-        if (!m.matches()) {
+        // (v=signature | e=error)[,extensions]
+        int errorStart = ScramAttributes.valueStart(serverFinalMessage, 0, 'e');
+        if (errorStart != -1) {
             mState = State.ENDED;
+            mServerError = serverFinalMessage.subSequence(errorStart,
+                    ScramAttributes.valueEnd(serverFinalMessage, errorStart)).toString();
+            mFailureReason = FailureReason.SERVER_ERROR;
             return false;
         }
 
-        byte[] serverSignature = Base64.decode(m.group(1));
+        int signatureStart = ScramAttributes.valueStart(serverFinalMessage, 0, 'v');
+        byte[] serverSignature = null;
+        if (signatureStart != -1) {
+            serverSignature = Base64Codec.decode(serverFinalMessage,
+                    signatureStart,
+                    ScramAttributes.valueEnd(serverFinalMessage, signatureStart) - signatureStart);
+        }
+        if (serverSignature == null) {
+            mState = State.ENDED;
+            mFailureReason = FailureReason.INVALID_SERVER_MESSAGE;
+            return false;
+        }
 
         mState = State.ENDED;
         mIsSuccessful = Arrays.equals(serverSignature, getExpectedServerSignature());
+        if (!mIsSuccessful) {
+            mFailureReason = FailureReason.INVALID_SERVER_SIGNATURE;
+        }
 
         return mIsSuccessful;
     }
@@ -221,13 +671,381 @@ public class ScramClientFunctionalityImpl implements ScramClientFunctionality {
     }
 
 
+    private void checkCanPrepareFinalMessage() {
+        if (mState != State.FIRST_PREPARED || mServerFirstMessage != null) {
+            throw new IllegalStateException("You can call this method once only after " +
+                    "calling prepareFirstMessage()");
+        }
+    }
+
+
+    private boolean handleServerFirstMessage(String serverFirstMessage) {
+        // r=nonce,s=salt,i=iterations[,extensions]
+        int nonceStart = ScramAttributes.valueStart(serverFirstMessage, 0, 'r');
+        if (nonceStart == -1) {
+            fail(FailureReason.INVALID_SERVER_MESSAGE);
+            return false;
+        }
+        int nonceEnd = ScramAttributes.valueEnd(serverFirstMessage, nonceStart);
+        int saltStart = ScramAttributes.valueStart(serverFirstMessage, nonceEnd + 1, 's');
+        if (saltStart == -1) {
+            fail(FailureReason.INVALID_SERVER_MESSAGE);
+            return false;
+        }
+        int saltEnd = ScramAttributes.valueEnd(serverFirstMessage, saltStart);
+        int iterationsStart = ScramAttributes.valueStart(serverFirstMessage, saltEnd + 1, 'i');
+        if (iterationsStart == -1) {
+            fail(FailureReason.INVALID_SERVER_MESSAGE);
+            return false;
+        }
+
+        if (nonceEnd - nonceStart < mClientNonce.length()
+                || !serverFirstMessage.startsWith(mClientNonce, nonceStart)) {
+
+            fail(FailureReason.NONCE_MISMATCH);
+            return false;
+        }
+        if (!ScramAttributes.isValidNonce(serverFirstMessage, nonceStart, nonceEnd)) {
+            fail(FailureReason.INVALID_SERVER_MESSAGE);
+            return false;
+        }
+
+        int iterations = ScramAttributes.parsePositiveInt(serverFirstMessage,
+                iterationsStart,
+                ScramAttributes.valueEnd(serverFirstMessage, iterationsStart));
+        byte[] salt = Base64Codec.decode(serverFirstMessage, saltStart, saltEnd - saltStart);
+        if (iterations == -1 || salt == null || salt.length == 0) {
+            fail(FailureReason.INVALID_SERVER_MESSAGE);
+            return false;
+        }
+
+        // checked before any HMAC work, the iteration count is chosen by the server
+        ScramMechanism mechanism = ScramMechanism.forHmacName(mHmacName);
+        IterationLimits limits = getIterationLimits(mechanism);
+        if (iterations > limits.maxIterations) {
+            fail(FailureReason.ITERATION_LIMIT_EXCEEDED);
+            return false;
+        }
+        if (limits.isOverTimeBudget(mechanism, iterations)) {
+            fail(FailureReason.TIME_BUDGET_EXCEEDED);
+            return false;
+        }
+
+        mServerFirstMessage = serverFirstMessage;
+        mNonce = serverFirstMessage.substring(nonceStart, nonceEnd);
+        mSalt = salt;
+        mIterations = iterations;
+        mTimeBudgetMillis = limits.timeBudgetMillis;
+        return true;
+    }
+
+
+    /**
+     * Creates new instance with the same digest, HMAC, key cache and iteration limits
+     * @param clientNonce Client nonce to be used
+     * @return the new instance
+     */
+    ScramClientFunctionalityImpl copySettings(String clientNonce) {
+        ScramClientFunctionalityImpl copy = new ScramClientFunctionalityImpl(mDigestName, mHmacName, clientNonce);
+        copy.mKeyCache = mKeyCache;
+        copy.mIterationLimits = mIterationLimits;
+        return copy;
+    }
+
+
+    private IterationLimits getIterationLimits(ScramMechanism mechanism) {
+        return mIterationLimits != null ? mIterationLimits : IterationLimits.getDefault(mechanism);
+    }
+
+
+    private ClientKeys getStoredKeys() {
+        StoredCredentials credentials = mStoredCredentials;
+        if (credentials != null && credentials.iterations == mIterations && Arrays.equals(credentials.salt, mSalt)) {
+            return credentials.keys;
+        } else {
+            return null;
+        }
+    }
+
+
+    private String getPassword(String password) {
+        if (password == null && mPasswordCallback != null) {
+            return mPasswordCallback.getPassword();
+        } else {
+            return password;
+        }
+    }
+
+
+    private byte[] encodePassword(String password) throws ScramException {
+        try {
+            // wrapping does not copy the characters
+            return PasswordEncoder.encode(CharBuffer.wrap(password));
+        } catch (ScramException e) {
+            mState = State.ENDED;
+            throw e;
+        }
+    }
+
+
+    private String createFinalMessage(ClientKeys keys) throws InvalidKeyException, NoSuchAlgorithmException {
+        mKeys = keys;
+        mServerKey = keys.serverKey;
+
+        mAuthMessage.clear()
+                .append(mClientFirstMessageBare)
+                .append(',')
+                .append(mServerFirstMessage)
+                .append(',')
+                .append(CHANNEL_BINDING)
+                .append(",r=")
+                .append(mNonce);
+
+        byte[] clientSignature = mAuthMessage.computeHmac(keys.storedKey, mHmacName);
+
+        byte[] clientProof = keys.clientKey.clone();
+        for (int i = 0; i < clientProof.length; i++) {
+            clientProof[i] ^= clientSignature[i];
+        }
+
+        StringBuilder sb = builder(CHANNEL_BINDING.length() + mNonce.length() + mEncodedProofLength + 6)
+                .append(CHANNEL_BINDING)
+                .append(",r=")
+                .append(mNonce)
+                .append(",p=");
+        Base64Codec.encode(clientProof, sb);
+
+        mState = State.FINAL_PREPARED;
+        return sb.toString();
+    }
+
+
+    private StringBuilder builder(int capacity) {
+        mBuilder.setLength(0);
+        mBuilder.ensureCapacity(capacity);
+        return mBuilder;
+    }
+
+
+    private String fail(FailureReason reason) {
+        mState = State.ENDED;
+        mFailureReason = reason;
+        return null;
+    }
+
+
+    private ClientKeys getClientKeys(final String password,
+                                     final byte[] salt,
+                                     final int iterations,
+                                     long timeBudgetMillis)
+            throws InvalidKeyException, NoSuchAlgorithmException, ScramException {
+
+        byte[] passwordBytes = encodePassword(password);
+        try {
+            return getClientKeys(passwordBytes, salt, iterations, timeBudgetMillis);
+        } finally {
+            PasswordEncoder.release(passwordBytes);
+        }
+    }
+
+
+    private ClientKeys getClientKeys(final byte[] passwordBytes,
+                                     final byte[] salt,
+                                     final int iterations,
+                                     long timeBudgetMillis)
+            throws InvalidKeyException, NoSuchAlgorithmException, ScramException {
+
+        final ScramClientKeyCache keyCache = mKeyCache;
+        final CredentialKey credentialKey = CredentialKey.create(passwordBytes, salt, iterations, mHmacName);
+        if (keyCache != null) {
+            ClientKeys keys = keyCache.get(credentialKey);
+            if (keys != null) {
+                return keys;
+            }
+        }
+
+        final CancellationSignal cancellationSignal = mCancellationSignal;
+        final long deadline = System.nanoTime() + timeBudgetMillis * 1000000L;
+        final CancellationSignal signal;
+        if (timeBudgetMillis > 0) {
+            signal = new CancellationSignal() {
+                @Override
+                public boolean isCancelled() {
+                    return System.nanoTime() - deadline > 0 ||
+                            (cancellationSignal != null && cancellationSignal.isCancelled());
+                }
+            };
+        } else {
+            signal = cancellationSignal;
+        }
+
+        try {
+            // concurrent logins with the same credentials share one derivation
+            return SingleFlightKeyDerivation.derive(credentialKey,
+                    newDerivation(passwordBytes, salt, iterations, credentialKey, signal),
+                    signal != null ? signal : NOT_CANCELLED);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mState = State.ENDED;
+            throw new ScramException("Interrupted while waiting for key derivation");
+        } catch (CancellationException e) {
+            mState = State.ENDED;
+            if (Thread.currentThread().isInterrupted()) {
+                throw new ScramException("Interrupted while deriving the keys");
+            }
+            if (cancellationSignal != null && cancellationSignal.isCancelled()) {
+                mFailureReason = FailureReason.CANCELLED;
+            } else {
+                mFailureReason = FailureReason.TIME_BUDGET_EXCEEDED;
+            }
+            return null;
+        }
+    }
+
+
+    private Callable<ClientKeys> newDerivation(final byte[] passwordBytes,
+                                              final byte[] salt,
+                                              final int iterations,
+                                              final CredentialKey credentialKey,
+                                              final CancellationSignal signal) {
+
+        final ScramClientKeyCache keyCache = mKeyCache;
+        return new Callable<ClientKeys>() {
+            @Override
+            public ClientKeys call() throws Exception {
+                ClientKeys keys = deriveClientKeys(passwordBytes, salt, iterations, signal);
+                if (keyCache != null) {
+                    keyCache.put(credentialKey, keys);
+                }
+                return keys;
+            }
+        };
+    }
+
+
+    private SpeculationTask takeSpeculation() {
+        SpeculationTask speculation = mSpeculation;
+        mSpeculation = null;
+        if (speculation != null &&
+                (mSpeculationIterations != mIterations || !Arrays.equals(mSpeculationSalt, mSalt))) {
+
+            // the server sent other salt or iterations, no need to waste CPU on the guess
+            mSpeculationCancelled.set(true);
+            return null;
+        }
+
+        return speculation;
+    }
+
+
+    private ClientKeys awaitSpeculation(FutureTask<ClientKeys> speculation) throws ScramException {
+        try {
+            // the derivation checks the cancellation signal itself, so it ends soon after the cancellation
+            return speculation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mSpeculationCancelled.set(true);
+            mState = State.ENDED;
+            throw new ScramException("Interrupted while waiting for key derivation");
+        } catch (ExecutionException e) {
+            mState = State.ENDED;
+            if (e.getCause() instanceof CancellationException) {
+                mFailureReason = FailureReason.CANCELLED;
+                return null;
+            }
+            throw new ScramException(e.getCause());
+        }
+    }
+
+
+    private ClientKeys deriveClientKeys(byte[] passwordBytes, byte[] salt, int iterations, CancellationSignal signal)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+
+        byte[] saltedPassword = signal != null ?
+                ScramUtils.generateSaltedPassword(passwordBytes, salt, iterations, mHmacName, signal) :
+                ScramUtils.generateSaltedPassword(passwordBytes, salt, iterations, mHmacName);
+        return computeClientKeys(saltedPassword);
+    }
+
+
+    private ClientKeys computeClientKeys(byte[] saltedPassword) throws InvalidKeyException,
+            NoSuchAlgorithmException {
+
+        byte[] clientKey = ScramUtils.computeHmac(saltedPassword, mHmacName, "Client Key");
+        byte[] storedKey = ThreadLocalCryptoPool.getMessageDigest(mDigestName).digest(clientKey);
+        byte[] serverKey = ScramUtils.computeHmac(saltedPassword, mHmacName, "Server Key");
+
+        return new ClientKeys(clientKey, storedKey, serverKey);
+    }
+
+
     private byte[] getExpectedServerSignature() throws ScramException {
         try {
-            byte[] serverKey = ScramUtils.computeHmac(mSaltedPassword, mHmacName, "Server Key");
-            return ScramUtils.computeHmac(serverKey, mHmacName, mAuthMessage);
+            return mAuthMessage.computeHmac(mServerKey, mHmacName);
         } catch (InvalidKeyException | NoSuchAlgorithmException e) {
             mState = State.ENDED;
             throw new ScramException(e);
         }
     }
+
+
+    private static String encodeSaslName(String name) {
+        if (name.indexOf(',') == -1 && name.indexOf('=') == -1) {
+            return name;
+        }
+
+        StringBuilder sb = new StringBuilder(name.length() + 8);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == ',') {
+                sb.append("=2C");
+            } else if (c == '=') {
+                sb.append("=3D");
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Speculative derivation which can notify when it is done, so the final message is not prepared by a thread
+     * which blocks on it
+     */
+    private static final class SpeculationTask extends FutureTask<ClientKeys> {
+        private Runnable mOnDone;
+
+
+        SpeculationTask(Callable<ClientKeys> callable) {
+            super(callable);
+        }
+
+
+        void setOnDone(Runnable onDone) {
+            synchronized (this) {
+                if (!isDone()) {
+                    mOnDone = onDone;
+                    return;
+                }
+            }
+
+            onDone.run();
+        }
+
+
+        @Override
+        protected void done() {
+            Runnable onDone;
+            synchronized (this) {
+                onDone = mOnDone;
+                mOnDone = null;
+            }
+
+            if (onDone != null) {
+                onDone.run();
+            }
+        }
+    }
 }
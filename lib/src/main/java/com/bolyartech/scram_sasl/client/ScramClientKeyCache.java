@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded cache of {@link ClientKeys}, evicting the least recently used entries.
+ * <p>
+ * RFC 5802 allows the client to cache ClientKey and ServerKey for given salt and iteration count. Share one
+ * instance between the client processors (see {@link AbstractScramSaslClientProcessor#setKeyCache}) and
+ * repeated logins with the same credentials will skip the salted password computation completely.
+ * Entries are keyed by a fingerprint of the password, the salt, the iterations and the HMAC.
+ */
+@SuppressWarnings("unused")
+public class ScramClientKeyCache {
+    private final Map<CredentialKey, ClientKeys> mEntries;
+
+
+    /**
+     * Creates new ScramClientKeyCache
+     * @param maxEntries Maximum number of entries kept
+     */
+    public ScramClientKeyCache(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+
+        mEntries = new LinkedHashMap<CredentialKey, ClientKeys>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CredentialKey, ClientKeys> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    /**
+     * Gets cached keys
+     * @param password Password
+     * @param salt Salt
+     * @param iterations Iterations for 'salting'
+     * @param hmacName HMAC name
+     * @return the keys or null if there are no cached keys
+     */
+    public ClientKeys get(String password, byte[] salt, int iterations, String hmacName) {
+        return get(CredentialKey.create(password, salt, iterations, hmacName));
+    }
+
+
+    /**
+     * Caches keys
+     * @param password Password
+     * @param salt Salt
+     * @param iterations Iterations for 'salting'
+     * @param hmacName HMAC name
+     * @param keys Keys derived for the password, salt, iterations and HMAC
+     */
+    public void put(String password, byte[] salt, int iterations, String hmacName, ClientKeys keys) {
+        put(CredentialKey.create(password, salt, iterations, hmacName), keys);
+    }
+
+
+    /**
+     * Removes all entries
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+
+    /**
+     * Gets the number of the cached entries
+     * @return number of entries
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+
+    synchronized ClientKeys get(CredentialKey key) {
+        return mEntries.get(key);
+    }
+
+
+    synchronized void put(CredentialKey key, ClientKeys keys) {
+        mEntries.put(key, keys);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+
+/**
+ * Pool of client processors which are recycled between the authentications.
+ * <p>
+ * Take a processor with {@link #acquire(ScramSaslClientProcessor.Listener, ScramSaslClientProcessor.Sender)} and
+ * give it back with {@link #release(AbstractScramSaslClientProcessor)} when the authentication ends. Released
+ * processors are reset and reused, so there is no allocation of processors and their internal objects per
+ * authentication. Settings made on a processor (key cache, executor, etc.) stay with it.
+ */
+@SuppressWarnings("unused")
+public class ScramClientProcessorPool {
+    private final ScramMechanism mMechanism;
+    private final int mMaxIdle;
+    private final Deque<AbstractScramSaslClientProcessor> mIdle = new ArrayDeque<>();
+
+
+    /**
+     * Creates new ScramClientProcessorPool
+     * @param mechanism SCRAM mechanism of the processors
+     * @param maxIdle Maximum number of released processors kept for reuse
+     */
+    public ScramClientProcessorPool(ScramMechanism mechanism, int maxIdle) {
+        if (mechanism == null) {
+            throw new NullPointerException("mechanism cannot be null");
+        }
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle cannot be negative");
+        }
+
+        mMechanism = mechanism;
+        mMaxIdle = maxIdle;
+    }
+
+
+    /**
+     * Gets idle processor or creates new one if there is no idle processor
+     * @param listener Listener of the client processor
+     * @param sender Sender used to send messages to the server
+     * @return processor ready for {@link AbstractScramSaslClientProcessor#start(String, String)}
+     */
+    public AbstractScramSaslClientProcessor acquire(ScramSaslClientProcessor.Listener listener,
+                                                    ScramSaslClientProcessor.Sender sender) {
+
+        AbstractScramSaslClientProcessor processor;
+        synchronized (this) {
+            processor = mIdle.pollFirst();
+        }
+
+        if (processor != null) {
+            processor.reset(listener, sender);
+            return processor;
+        } else {
+            return ScramMechanismNegotiator.createProcessor(mMechanism, listener, sender);
+        }
+    }
+
+
+    /**
+     * Returns processor to the pool. If the authentication is not ended yet it is aborted. The password, the keys,
+     * the listener and the sender of the authentication are dropped.
+     * The processor must not be used by the caller after this call.
+     * @param processor Processor obtained with {@link #acquire}
+     */
+    public void release(AbstractScramSaslClientProcessor processor) {
+        if (!processor.isEnded()) {
+            processor.abort();
+        }
+        processor.clear();
+
+        synchronized (this) {
+            if (mIdle.size() < mMaxIdle) {
+                mIdle.addFirst(processor);
+            }
+        }
+    }
+
+
+    /**
+     * Gets the number of the idle processors
+     * @return number of processors which are ready for reuse
+     */
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.CryptoBackends;
+import com.bolyartech.scram_sasl.common.ScramException;
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+
+import java.util.Collection;
+
+
+/**
+ * Picks the SCRAM mechanism for the client from the ones advertised by the server.
+ * <p>
+ * Of the advertised mechanisms which are at least as strong as the minimum (strength follows the order of
+ * {@link ScramMechanism}, i.e. SHA-1 &lt; SHA-256 &lt; SHA-512, SCRAM-SHA-256 by default) the one with the lowest
+ * cost per iteration measured by {@link CryptoBackends#calibrate()} on this host is selected, the stronger one on
+ * a tie. If any of them is not calibrated the costs cannot be compared and the strongest one is selected.
+ * Channel binding variants (<code>-PLUS</code>) are not supported and are ignored.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class ScramMechanismNegotiator {
+    private final ScramMechanism mMinimumStrength;
+    private volatile boolean mCalibrateMissing;
+
+
+    /**
+     * Creates new ScramMechanismNegotiator which accepts SCRAM-SHA-256 and stronger mechanisms
+     */
+    public ScramMechanismNegotiator() {
+        this(ScramMechanism.SCRAM_SHA_256);
+    }
+
+
+    /**
+     * Creates new ScramMechanismNegotiator
+     * @param minimumStrength Weakest acceptable mechanism
+     */
+    public ScramMechanismNegotiator(ScramMechanism minimumStrength) {
+        if (minimumStrength == null) {
+            throw new NullPointerException("minimumStrength cannot be null");
+        }
+
+        mMinimumStrength = minimumStrength;
+    }
+
+
+    /**
+     * Sets if the acceptable mechanisms which are not calibrated yet are calibrated during the selection.
+     * Calibration takes a few dozen milliseconds per mechanism and changes the backend selected with
+     * {@link CryptoBackends}, so it is off by default.
+     * @param calibrateMissing true in order to calibrate the missing mechanisms
+     */
+    public void setCalibrateMissing(boolean calibrateMissing) {
+        mCalibrateMissing = calibrateMissing;
+    }
+
+
+    /**
+     * Selects mechanism
+     * @param serverMechanisms Mechanism names advertised by the server, e.g. SCRAM-SHA-256
+     * @return the selected mechanism or null if the server does not advertise any acceptable one
+     */
+    public ScramMechanism select(Collection<String> serverMechanisms) {
+        if (serverMechanisms == null) {
+            throw new NullPointerException("serverMechanisms cannot be null");
+        }
+
+        ScramMechanism cheapest = null;
+        ScramMechanism strongest = null;
+        long cheapestCost = 0;
+        boolean allCalibrated = true;
+        // from the weakest to the strongest, so a later mechanism wins a tie
+        for (ScramMechanism mechanism : ScramMechanism.values()) {
+            if (mechanism.compareTo(mMinimumStrength) < 0 || !isAdvertised(mechanism, serverMechanisms)) {
+                continue;
+            }
+
+            strongest = mechanism;
+            long cost = getIterationCost(mechanism);
+            if (cost < 0) {
+                allCalibrated = false;
+            } else if (cheapest == null || cost <= cheapestCost) {
+                cheapest = mechanism;
+                cheapestCost = cost;
+            }
+        }
+
+        return allCalibrated ? cheapest : strongest;
+    }
+
+
+    /**
+     * Selects mechanism and creates processor for it
+     * @param serverMechanisms Mechanism names advertised by the server, e.g. SCRAM-SHA-256
+     * @param listener Listener of the client processor
+     * @param sender Sender used to send messages to the server
+     * @return processor ready for {@link AbstractScramSaslClientProcessor#start(String, String)}
+     * @throws ScramException if the server does not advertise any acceptable mechanism
+     */
+    public AbstractScramSaslClientProcessor createProcessor(Collection<String> serverMechanisms,
+                                                            ScramSaslClientProcessor.Listener listener,
+                                                            ScramSaslClientProcessor.Sender sender)
+            throws ScramException {
+
+        ScramMechanism mechanism = select(serverMechanisms);
+        if (mechanism == null) {
+            throw new ScramException("No acceptable SCRAM mechanism offered by the server");
+        }
+
+        return createProcessor(mechanism, listener, sender);
+    }
+
+
+    /**
+     * Creates processor for given mechanism
+     * @param mechanism SCRAM mechanism
+     * @param listener Listener of the client processor
+     * @param sender Sender used to send messages to the server
+     * @return processor ready for {@link AbstractScramSaslClientProcessor#start(String, String)}
+     */
+    public static AbstractScramSaslClientProcessor createProcessor(ScramMechanism mechanism,
+                                                                   ScramSaslClientProcessor.Listener listener,
+                                                                   ScramSaslClientProcessor.Sender sender) {
+
+        switch (mechanism) {
+            case SCRAM_SHA_1:
+                return new ScramSha1SaslClientProcessor(listener, sender);
+            case SCRAM_SHA_256:
+                return new ScramSha256SaslClientProcessor(listener, sender);
+            case SCRAM_SHA_512:
+                return new ScramSha512SaslClientProcessor(listener, sender);
+            default:
+                throw new IllegalArgumentException("Unsupported mechanism " + mechanism);
+        }
+    }
+
+
+    private long getIterationCost(ScramMechanism mechanism) {
+        long cost = CryptoBackends.getIterationCostNanos(mechanism);
+        if (cost < 0 && mCalibrateMissing) {
+            CryptoBackends.calibrate(mechanism);
+            cost = CryptoBackends.getIterationCostNanos(mechanism);
+        }
+
+        return cost;
+    }
+
+
+    private static boolean isAdvertised(ScramMechanism mechanism, Collection<String> serverMechanisms) {
+        for (String name : serverMechanisms) {
+            if (name != null && mechanism.getName().equalsIgnoreCase(name.trim())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -18,6 +18,9 @@ package com.bolyartech.scram_sasl.client;
 
 import com.bolyartech.scram_sasl.common.ScramException;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 
 /**
  * Provides client side processing of the SCRAM SASL authentication
@@ -39,6 +42,21 @@ public interface ScramSaslClientProcessor {
      */
     void onMessage(String message) throws ScramException;
 
+    /**
+     * Called when message from server is received as bytes, e.g. in the read buffer of a network framework.
+     * The message is parsed straight from the buffer (heap or direct) between its position and limit. After
+     * the call the position is at the limit.
+     * <p>
+     * The default implementation decodes the message from UTF-8 and passes it to {@link #onMessage(String)}.
+     * @param message Message
+     * @throws ScramException if there is a unrecoverable error during internal processing of the message
+     */
+    default void onMessage(ByteBuffer message) throws ScramException {
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        onMessage(new String(bytes, StandardCharsets.UTF_8));
+    }
+
     /**
      * Aborts the procedure
      */
@@ -76,6 +94,18 @@ public interface ScramSaslClientProcessor {
     }
 
 
+    /**
+     * Provides the password when the stored credentials do not match the salt and iterations sent by the server
+     */
+    interface PasswordCallback {
+        /**
+         * Gets the password
+         * @return the password or null if it is not available
+         */
+        String getPassword();
+    }
+
+
     /**
      * Provides functionality for sending message to the server
      */
@@ -86,4 +116,17 @@ public interface ScramSaslClientProcessor {
          */
         void sendMessage(String msg);
     }
+
+
+    /**
+     * Provides functionality for sending message to the server as bytes
+     */
+    interface ByteBufferSender {
+        /**
+         * Sends message to the server
+         * @param msg Message between the position and the limit of the buffer. The buffer is reused by the
+         *            processor, so its content must be written or copied before returning.
+         */
+        void sendMessage(ByteBuffer msg);
+    }
 }
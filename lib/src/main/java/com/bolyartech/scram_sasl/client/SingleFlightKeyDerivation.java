@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.CancellationSignal;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Coalesces concurrent derivations of the same {@link ClientKeys}.
+ * <p>
+ * When many processors derive keys for the same password, salt and iterations at the same time (e.g. a connection
+ * pool opening N connections) only the first one computes them. The others wait for it and get the same result.
+ */
+final class SingleFlightKeyDerivation {
+    private static final long WAIT_CHECK_MILLIS = 10;
+    private static final ConcurrentMap<CredentialKey, FutureTask<ClientKeys>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+
+    private SingleFlightKeyDerivation() {
+        throw new AssertionError("non-instantiable utility class");
+    }
+
+
+    /**
+     * Derives the keys or waits for the derivation with the same key which is already running
+     *
+     * @param key        identifies the derivation
+     * @param derivation computes the keys
+     * @param signal     checked while waiting for another derivation
+     * @return derived keys, shared between the callers so they must not be modified
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if the HMAC or the digest is not supported by the java
+     * @throws InterruptedException     if the thread is interrupted while waiting for another derivation
+     * @throws CancellationException    if the derivation or the waiting is cancelled
+     */
+    static ClientKeys derive(CredentialKey key, Callable<ClientKeys> derivation, CancellationSignal signal)
+            throws InvalidKeyException, NoSuchAlgorithmException, InterruptedException {
+
+        while (true) {
+            FutureTask<ClientKeys> own = new FutureTask<>(derivation);
+            FutureTask<ClientKeys> task = IN_FLIGHT.putIfAbsent(key, own);
+            if (task == null) {
+                task = own;
+                try {
+                    task.run();
+                } finally {
+                    IN_FLIGHT.remove(key, task);
+                }
+            }
+
+            try {
+                return await(task, signal);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CancellationException && task != own && !signal.isCancelled()) {
+                    // the caller which ran the derivation was cancelled, not this one
+                    continue;
+                }
+
+                if (cause instanceof InvalidKeyException) {
+                    throw (InvalidKeyException) cause;
+                } else if (cause instanceof NoSuchAlgorithmException) {
+                    throw (NoSuchAlgorithmException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+    }
+
+
+    private static ClientKeys await(FutureTask<ClientKeys> task, CancellationSignal signal)
+            throws InterruptedException, ExecutionException {
+
+        while (true) {
+            try {
+                return task.get(WAIT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (signal.isCancelled()) {
+                    throw new CancellationException("Waiting for key derivation cancelled");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.ScramUtils;
+import com.bolyartech.scram_sasl.common.ThreadLocalCryptoPool;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Client credentials which replace the cleartext password of a user for given mechanism, salt and iterations.
+ * <p>
+ * Obtain them after a successful authentication with
+ * {@link AbstractScramSaslClientProcessor#getStoredCredentials()} (or create them from a stored salted password)
+ * and pass them to {@link AbstractScramSaslClientProcessor#start(String, StoredCredentials,
+ * ScramSaslClientProcessor.PasswordCallback)}. As long as the server sends the same salt and iterations no
+ * salted password is computed. Keep them as secret as the password, they are enough to authenticate.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class StoredCredentials {
+    /**
+     * Username the credentials belong to
+     */
+    public final String username;
+    /**
+     * HMAC of the mechanism the keys are derived for, e.g. "HmacSHA256"
+     */
+    public final String hmacName;
+    /**
+     * Salt the keys are derived with
+     */
+    public final byte[] salt;
+    /**
+     * Iterations the keys are derived with
+     */
+    public final int iterations;
+    /**
+     * Keys derived from the salted password
+     */
+    public final ClientKeys keys;
+
+
+    /**
+     * Creates new StoredCredentials
+     * @param username Username the credentials belong to
+     * @param hmacName HMAC of the mechanism the keys are derived for
+     * @param salt Salt the keys are derived with
+     * @param iterations Iterations the keys are derived with
+     * @param keys Keys derived from the salted password
+     */
+    public StoredCredentials(String username, String hmacName, byte[] salt, int iterations, ClientKeys keys) {
+        if (username == null) {
+            throw new NullPointerException("username cannot be null");
+        }
+        if (ScramUtils.isNullOrEmpty(hmacName)) {
+            throw new NullPointerException("hmacName cannot be null or empty");
+        }
+        if (salt == null) {
+            throw new NullPointerException("salt cannot be null");
+        }
+        if (keys == null) {
+            throw new NullPointerException("keys cannot be null");
+        }
+
+        this.username = username;
+        this.hmacName = hmacName;
+        this.salt = salt;
+        this.iterations = iterations;
+        this.keys = keys;
+    }
+
+
+    /**
+     * Creates new StoredCredentials from salted password
+     * @param username Username the credentials belong to
+     * @param saltedPassword Salted password
+     * @param salt Salt the salted password is computed with
+     * @param iterations Iterations the salted password is computed with
+     * @param digestName Digest name
+     * @param hmacName HMAC name
+     * @return the credentials
+     * @throws InvalidKeyException if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName or digestName is not supported by the java
+     */
+    public static StoredCredentials fromSaltedPassword(String username,
+                                                       byte[] saltedPassword,
+                                                       byte[] salt,
+                                                       int iterations,
+                                                       String digestName,
+                                                       String hmacName)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+
+        byte[] clientKey = ScramUtils.computeHmac(saltedPassword, hmacName, "Client Key");
+        byte[] serverKey = ScramUtils.computeHmac(saltedPassword, hmacName, "Server Key");
+        return fromClientKey(username, clientKey, serverKey, salt, iterations, digestName, hmacName);
+    }
+
+
+    /**
+     * Creates new StoredCredentials from client key and server key
+     * @param username Username the credentials belong to
+     * @param clientKey Client key
+     * @param serverKey Server key
+     * @param salt Salt the keys are derived with
+     * @param iterations Iterations the keys are derived with
+     * @param digestName Digest name
+     * @param hmacName HMAC name
+     * @return the credentials
+     * @throws NoSuchAlgorithmException if digestName is not supported by the java
+     */
+    public static StoredCredentials fromClientKey(String username,
+                                                  byte[] clientKey,
+                                                  byte[] serverKey,
+                                                  byte[] salt,
+                                                  int iterations,
+                                                  String digestName,
+                                                  String hmacName) throws NoSuchAlgorithmException {
+
+        byte[] storedKey = ThreadLocalCryptoPool.getMessageDigest(digestName).digest(clientKey);
+        return new StoredCredentials(username, hmacName, salt, iterations,
+                new ClientKeys(clientKey, storedKey, serverKey));
+    }
+}
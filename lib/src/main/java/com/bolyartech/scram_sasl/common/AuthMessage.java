@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import javax.crypto.Mac;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+
+/**
+ * AuthMessage of SCRAM (client-first-message-bare "," server-first-message "," client-final-message-without-proof).
+ * <p>
+ * The parts are kept as references to the messages (or to ranges of them), so they are neither concatenated into
+ * a String nor copied. {@link #computeHmac(byte[], String)} feeds them part by part to the HMAC of the backend
+ * selected with {@link CryptoBackends}, encoding them in UTF-8 through a small buffer which is reused between the
+ * authentications. The appended characters must not change until the last <code>computeHmac()</code>.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class AuthMessage {
+    private static final int INITIAL_PARTS = 8;
+    private static final int CHUNK_SIZE = 256;
+
+    // a part is a range of a sequence or, if the sequence is null, a single character kept in mStarts
+    private CharSequence[] mSequences = new CharSequence[INITIAL_PARTS];
+    private int[] mStarts = new int[INITIAL_PARTS];
+    private int[] mEnds = new int[INITIAL_PARTS];
+    private int mCount;
+    private int mLength;
+
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mCursorPart;
+    private int mCursorPos;
+
+
+    /**
+     * Removes all the content
+     *
+     * @return this object
+     */
+    public AuthMessage clear() {
+        Arrays.fill(mSequences, 0, mCount, null);
+        mCount = 0;
+        mLength = 0;
+        return this;
+    }
+
+
+    /**
+     * Appends character
+     *
+     * @param c character to be appended
+     * @return this object
+     */
+    public AuthMessage append(char c) {
+        addPart(null, c, c + 1);
+        mLength += Utf8.encodedLength(c);
+        return this;
+    }
+
+
+    /**
+     * Appends characters
+     *
+     * @param s characters to be appended
+     * @return this object
+     */
+    public AuthMessage append(CharSequence s) {
+        return append(s, 0, s.length());
+    }
+
+
+    /**
+     * Appends part of characters
+     *
+     * @param s     characters
+     * @param start start of the part
+     * @param end   end of the part (exclusive)
+     * @return this object
+     */
+    public AuthMessage append(CharSequence s, int start, int end) {
+        if (start < 0 || end > s.length() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + s.length());
+        }
+
+        addPart(s, start, end);
+        mLength += Utf8.encodedLength(s, start, end);
+        return this;
+    }
+
+
+    /**
+     * Gets the length of the encoded AuthMessage
+     *
+     * @return length in bytes
+     */
+    public int length() {
+        return mLength;
+    }
+
+
+    /**
+     * Computes HMAC of the AuthMessage with the backend returned by {@link CryptoBackends#getBackend} for the
+     * HMAC. HMACs which are not one of {@link ScramMechanism} use plain {@link Mac}.
+     *
+     * @param key      key
+     * @param hmacName HMAC name
+     * @return computed HMAC
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     */
+    public byte[] computeHmac(byte[] key, String hmacName) throws InvalidKeyException, NoSuchAlgorithmException {
+        ScramMechanism mechanism = ScramMechanism.forHmacName(hmacName);
+        if (mechanism != null) {
+            return CryptoBackends.getBackend(mechanism).computeHmac(key, mechanism, this);
+        }
+
+        Mac mac = ThreadLocalCryptoPool.getMac(hmacName, key);
+        update(mac);
+        return mac.doFinal();
+    }
+
+
+    /**
+     * Feeds the encoded AuthMessage to HMAC
+     *
+     * @param mac HMAC
+     */
+    public void update(Mac mac) {
+        rewind();
+        for (int n = nextChunk(); n > 0; n = nextChunk()) {
+            mac.update(mChunk, 0, n);
+        }
+    }
+
+
+    /**
+     * Encodes the AuthMessage into new array
+     *
+     * @return AuthMessage in UTF-8
+     */
+    public byte[] toByteArray() {
+        byte[] ret = new byte[mLength];
+        int pos = 0;
+        rewind();
+        for (int n = nextChunk(); n > 0; n = nextChunk()) {
+            System.arraycopy(mChunk, 0, ret, pos, n);
+            pos += n;
+        }
+
+        return ret;
+    }
+
+
+    void update(PureJavaHmac hmac) {
+        rewind();
+        for (int n = nextChunk(); n > 0; n = nextChunk()) {
+            hmac.update(mChunk, 0, n);
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(mLength);
+        for (int i = 0; i < mCount; i++) {
+            if (mSequences[i] == null) {
+                sb.append((char) mStarts[i]);
+            } else {
+                sb.append(mSequences[i], mStarts[i], mEnds[i]);
+            }
+        }
+
+        return sb.toString();
+    }
+
+
+    private void addPart(CharSequence s, int start, int end) {
+        if (mCount == mSequences.length) {
+            mSequences = Arrays.copyOf(mSequences, mCount * 2);
+            mStarts = Arrays.copyOf(mStarts, mCount * 2);
+            mEnds = Arrays.copyOf(mEnds, mCount * 2);
+        }
+
+        mSequences[mCount] = s;
+        mStarts[mCount] = start;
+        mEnds[mCount] = end;
+        mCount++;
+    }
+
+
+    private void rewind() {
+        mCursorPart = 0;
+        mCursorPos = mCount > 0 ? mStarts[0] : 0;
+    }
+
+
+    /**
+     * Encodes the next characters into {@link #mChunk}
+     *
+     * @return number of the encoded bytes, 0 at the end
+     */
+    private int nextChunk() {
+        int n = 0;
+        while (mCursorPart < mCount) {
+            CharSequence s = mSequences[mCursorPart];
+            if (s == null) {
+                if (CHUNK_SIZE - n < 3) {
+                    return n;
+                }
+                n = Utf8.encode((char) mStarts[mCursorPart], mChunk, n);
+            } else {
+                int end = mEnds[mCursorPart];
+                // up to 3 bytes per character, a surrogate pair takes 4 bytes for 2 characters
+                int to = Math.min(end, mCursorPos + (CHUNK_SIZE - n) / 3);
+                if (to < end && to > mCursorPos && Character.isHighSurrogate(s.charAt(to - 1))) {
+                    to--;
+                }
+                n = Utf8.encode(s, mCursorPos, to, mChunk, n);
+                mCursorPos = to;
+                if (to < end) {
+                    return n;
+                }
+            }
+
+            mCursorPart++;
+            if (mCursorPart < mCount) {
+                mCursorPos = mStarts[mCursorPart];
+            }
+        }
+
+        return n;
+    }
+}
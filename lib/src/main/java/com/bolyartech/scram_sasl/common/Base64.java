@@ -614,6 +614,21 @@ public class Base64
 
 
 
+    /**
+     * Encodes a byte array into Base64 notation and appends it to
+     * <var>out</var> without creating an intermediate String.
+     * Lines are not broken.
+     *
+     * @param source The data to convert
+     * @param out    Where the encoded data is appended
+     * @return <var>out</var>
+     */
+    public static StringBuilder encodeBytes( byte[] source, StringBuilder out )
+    {
+        return Base64Codec.encode( source, out );
+    }   // end encodeBytes
+
+
     /**
      * Encodes a byte array into Base64 notation.
      * <p>
@@ -934,6 +949,22 @@ public class Base64
 
 
 
+    /**
+     * Decodes part of a string from Base64 notation without copying
+     * the characters first. Gzip-compressed data is not detected.
+     * The input is validated strictly, see {@link Base64Codec}.
+     *
+     * @param s   the string to decode
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @return decoded data or null if the input is not valid Base64
+     */
+    public static byte[] decode( CharSequence s, int off, int len )
+    {
+        return Base64Codec.decode( s, off, len );
+    }   // end decode
+
+
     /**
      * Decodes data from Base64 notation, automatically
      * detecting gzip-compressed data and decompressing it.
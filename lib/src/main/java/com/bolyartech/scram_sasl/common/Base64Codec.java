@@ -0,0 +1,555 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Table driven Base64 codec (RFC 4648, standard alphabet, with padding) for the values in SCRAM messages and in
+ * {@link com.bolyartech.scram_sasl.server.UserData}.
+ * <p>
+ * Data is encoded and decoded straight into arrays or buffers given by the caller, so the handshake does not
+ * need intermediate Strings or arrays. Decoding is strict as required by RFC 5802: the length must be a multiple
+ * of 4, padding is allowed only at the end, whitespace and line breaks are not allowed and the unused bits of the
+ * last character must be zero, so each value has only one valid encoding. Invalid input is reported with -1 or
+ * null rather than an exception because it comes from the other side of the connection.
+ * <p>
+ * {@link Base64} is kept for compatibility (options, gzip, files).
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class Base64Codec {
+    private static final byte PAD = '=';
+
+    private static final byte[] ENCODE_TABLE = {
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+            'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+            'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+    };
+
+    // 6 bit value of each byte or -1, so that OR-ing the values of a quantum gives a negative number if any of
+    // them is invalid
+    private static final int[] DECODE_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < DECODE_TABLE.length; i++) {
+            DECODE_TABLE[i] = -1;
+        }
+        for (int i = 0; i < ENCODE_TABLE.length; i++) {
+            DECODE_TABLE[ENCODE_TABLE[i]] = i;
+        }
+    }
+
+
+    private Base64Codec() {
+        throw new AssertionError("non-instantiable utility class");
+    }
+
+
+    /**
+     * Calculates the length of the encoded data
+     *
+     * @param length Length of the data
+     * @return number of characters of the encoded data
+     */
+    public static int encodedLength(int length) {
+        if (length < 0 || length > Integer.MAX_VALUE / 4 * 3) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+
+        return (length + 2) / 3 * 4;
+    }
+
+
+    /**
+     * Calculates the length of the decoded data. Only the length and the padding are checked.
+     *
+     * @param src Encoded data
+     * @param off Start of the encoded data
+     * @param len Length of the encoded data
+     * @return number of bytes of the decoded data or -1 if the length or the padding is not valid
+     */
+    public static int decodedLength(CharSequence src, int off, int len) {
+        checkRange(src.length(), off, len);
+        if (len % 4 != 0) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        return decodedLength(len, src.charAt(off + len - 2), src.charAt(off + len - 1));
+    }
+
+
+    /**
+     * Encodes bytes as ASCII characters
+     *
+     * @param src    Data
+     * @param off    Start of the data
+     * @param len    Length of the data
+     * @param dst    Destination, must have room for {@link #encodedLength(int)} bytes
+     * @param dstOff Where the encoded data starts in <code>dst</code>
+     * @return number of bytes written to <code>dst</code>
+     */
+    public static int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        checkRange(src.length, off, len);
+        int ret = encodedLength(len);
+        checkRange(dst.length, dstOff, ret);
+
+        int end = off + len - 2;
+        int pos = dstOff;
+        int i = off;
+        for (; i < end; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[pos++] = ENCODE_TABLE[bits >>> 18];
+            dst[pos++] = ENCODE_TABLE[(bits >>> 12) & 0x3f];
+            dst[pos++] = ENCODE_TABLE[(bits >>> 6) & 0x3f];
+            dst[pos++] = ENCODE_TABLE[bits & 0x3f];
+        }
+
+        int remaining = off + len - i;
+        if (remaining > 0) {
+            int bits = (src[i] & 0xff) << 16 | (remaining == 2 ? (src[i + 1] & 0xff) << 8 : 0);
+            dst[pos++] = ENCODE_TABLE[bits >>> 18];
+            dst[pos++] = ENCODE_TABLE[(bits >>> 12) & 0x3f];
+            dst[pos++] = remaining == 2 ? ENCODE_TABLE[(bits >>> 6) & 0x3f] : PAD;
+            dst[pos] = PAD;
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Encodes bytes as characters
+     *
+     * @param src    Data
+     * @param off    Start of the data
+     * @param len    Length of the data
+     * @param dst    Destination, must have room for {@link #encodedLength(int)} characters
+     * @param dstOff Where the encoded data starts in <code>dst</code>
+     * @return number of characters written to <code>dst</code>
+     */
+    public static int encode(byte[] src, int off, int len, char[] dst, int dstOff) {
+        checkRange(src.length, off, len);
+        int ret = encodedLength(len);
+        checkRange(dst.length, dstOff, ret);
+
+        int end = off + len - 2;
+        int pos = dstOff;
+        int i = off;
+        for (; i < end; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[pos++] = (char) ENCODE_TABLE[bits >>> 18];
+            dst[pos++] = (char) ENCODE_TABLE[(bits >>> 12) & 0x3f];
+            dst[pos++] = (char) ENCODE_TABLE[(bits >>> 6) & 0x3f];
+            dst[pos++] = (char) ENCODE_TABLE[bits & 0x3f];
+        }
+
+        int remaining = off + len - i;
+        if (remaining > 0) {
+            int bits = (src[i] & 0xff) << 16 | (remaining == 2 ? (src[i + 1] & 0xff) << 8 : 0);
+            dst[pos++] = (char) ENCODE_TABLE[bits >>> 18];
+            dst[pos++] = (char) ENCODE_TABLE[(bits >>> 12) & 0x3f];
+            dst[pos++] = remaining == 2 ? (char) ENCODE_TABLE[(bits >>> 6) & 0x3f] : (char) PAD;
+            dst[pos] = (char) PAD;
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Encodes bytes and appends the result, e.g. to a SCRAM message which is being built
+     *
+     * @param src Data
+     * @param out Where the encoded data is appended
+     * @return <code>out</code>
+     */
+    public static StringBuilder encode(byte[] src, StringBuilder out) {
+        int len = src.length;
+        out.ensureCapacity(out.length() + encodedLength(len));
+
+        int i = 0;
+        for (; i < len - 2; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            out.append((char) ENCODE_TABLE[bits >>> 18])
+                    .append((char) ENCODE_TABLE[(bits >>> 12) & 0x3f])
+                    .append((char) ENCODE_TABLE[(bits >>> 6) & 0x3f])
+                    .append((char) ENCODE_TABLE[bits & 0x3f]);
+        }
+
+        int remaining = len - i;
+        if (remaining > 0) {
+            int bits = (src[i] & 0xff) << 16 | (remaining == 2 ? (src[i + 1] & 0xff) << 8 : 0);
+            out.append((char) ENCODE_TABLE[bits >>> 18])
+                    .append((char) ENCODE_TABLE[(bits >>> 12) & 0x3f])
+                    .append(remaining == 2 ? (char) ENCODE_TABLE[(bits >>> 6) & 0x3f] : (char) PAD)
+                    .append((char) PAD);
+        }
+
+        return out;
+    }
+
+
+    /**
+     * Encodes the remaining bytes of <code>src</code> into <code>dst</code>. The position of <code>src</code> is
+     * moved to its limit and the position of <code>dst</code> after the encoded data.
+     *
+     * @param src Data between the position and the limit
+     * @param dst Destination
+     * @return number of bytes written to <code>dst</code>
+     * @throws BufferOverflowException if <code>dst</code> has not enough room, nothing is changed then
+     */
+    public static int encode(ByteBuffer src, ByteBuffer dst) {
+        int len = src.remaining();
+        int ret = encodedLength(len);
+        if (dst.remaining() < ret) {
+            throw new BufferOverflowException();
+        }
+
+        if (src.hasArray() && dst.hasArray() && !dst.isReadOnly()) {
+            encode(src.array(), src.arrayOffset() + src.position(), len,
+                    dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + ret);
+        } else {
+            int i = src.position();
+            int end = src.limit();
+            for (; i < end - 2; i += 3) {
+                int bits = (src.get(i) & 0xff) << 16 | (src.get(i + 1) & 0xff) << 8 | (src.get(i + 2) & 0xff);
+                dst.put(ENCODE_TABLE[bits >>> 18])
+                        .put(ENCODE_TABLE[(bits >>> 12) & 0x3f])
+                        .put(ENCODE_TABLE[(bits >>> 6) & 0x3f])
+                        .put(ENCODE_TABLE[bits & 0x3f]);
+            }
+
+            int remaining = end - i;
+            if (remaining > 0) {
+                int bits = (src.get(i) & 0xff) << 16 | (remaining == 2 ? (src.get(i + 1) & 0xff) << 8 : 0);
+                dst.put(ENCODE_TABLE[bits >>> 18])
+                        .put(ENCODE_TABLE[(bits >>> 12) & 0x3f])
+                        .put(remaining == 2 ? ENCODE_TABLE[(bits >>> 6) & 0x3f] : PAD)
+                        .put(PAD);
+            }
+        }
+        src.position(src.limit());
+
+        return ret;
+    }
+
+
+    /**
+     * Encodes bytes into a String
+     *
+     * @param src Data
+     * @return encoded data
+     */
+    public static String encodeToString(byte[] src) {
+        char[] chars = new char[encodedLength(src.length)];
+        encode(src, 0, src.length, chars, 0);
+        return new String(chars);
+    }
+
+
+    /**
+     * Decodes characters, e.g. a value in a SCRAM message (String or {@link Utf8CharSequence})
+     *
+     * @param src    Encoded data
+     * @param off    Start of the encoded data
+     * @param len    Length of the encoded data
+     * @param dst    Destination, must have room for {@link #decodedLength(CharSequence, int, int)} bytes
+     * @param dstOff Where the decoded data starts in <code>dst</code>
+     * @return number of bytes written to <code>dst</code> or -1 if the encoded data is not valid
+     */
+    public static int decode(CharSequence src, int off, int len, byte[] dst, int dstOff) {
+        int ret = decodedLength(src, off, len);
+        if (ret <= 0) {
+            return ret;
+        }
+        checkRange(dst.length, dstOff, ret);
+
+        int end = off + len - 4;
+        int pos = dstOff;
+        for (int i = off; i < end; i += 4) {
+            int c0 = src.charAt(i);
+            int c1 = src.charAt(i + 1);
+            int c2 = src.charAt(i + 2);
+            int c3 = src.charAt(i + 3);
+            if ((c0 | c1 | c2 | c3) > 0xff) {
+                return -1;
+            }
+
+            int bits = DECODE_TABLE[c0] << 18 | DECODE_TABLE[c1] << 12 | DECODE_TABLE[c2] << 6 | DECODE_TABLE[c3];
+            if (bits < 0) {
+                return -1;
+            }
+            dst[pos++] = (byte) (bits >> 16);
+            dst[pos++] = (byte) (bits >> 8);
+            dst[pos++] = (byte) bits;
+        }
+
+        return decodeLast(src.charAt(end), src.charAt(end + 1), src.charAt(end + 2), src.charAt(end + 3), dst, pos)
+                ? ret : -1;
+    }
+
+
+    /**
+     * Decodes characters
+     *
+     * @param src    Encoded data
+     * @param off    Start of the encoded data
+     * @param len    Length of the encoded data
+     * @param dst    Destination, must have room for the decoded data
+     * @param dstOff Where the decoded data starts in <code>dst</code>
+     * @return number of bytes written to <code>dst</code> or -1 if the encoded data is not valid
+     */
+    public static int decode(char[] src, int off, int len, byte[] dst, int dstOff) {
+        checkRange(src.length, off, len);
+        if (len % 4 != 0) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int ret = decodedLength(len, src[off + len - 2], src[off + len - 1]);
+        checkRange(dst.length, dstOff, ret);
+
+        int end = off + len - 4;
+        int pos = dstOff;
+        for (int i = off; i < end; i += 4) {
+            int c0 = src[i];
+            int c1 = src[i + 1];
+            int c2 = src[i + 2];
+            int c3 = src[i + 3];
+            if ((c0 | c1 | c2 | c3) > 0xff) {
+                return -1;
+            }
+
+            int bits = DECODE_TABLE[c0] << 18 | DECODE_TABLE[c1] << 12 | DECODE_TABLE[c2] << 6 | DECODE_TABLE[c3];
+            if (bits < 0) {
+                return -1;
+            }
+            dst[pos++] = (byte) (bits >> 16);
+            dst[pos++] = (byte) (bits >> 8);
+            dst[pos++] = (byte) bits;
+        }
+
+        return decodeLast(src[end], src[end + 1], src[end + 2], src[end + 3], dst, pos) ? ret : -1;
+    }
+
+
+    /**
+     * Decodes ASCII characters
+     *
+     * @param src    Encoded data
+     * @param off    Start of the encoded data
+     * @param len    Length of the encoded data
+     * @param dst    Destination, must have room for the decoded data. May be <code>src</code> (decoding in place)
+     *               if <code>dstOff</code> is not after <code>off</code>.
+     * @param dstOff Where the decoded data starts in <code>dst</code>
+     * @return number of bytes written to <code>dst</code> or -1 if the encoded data is not valid
+     */
+    public static int decode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        checkRange(src.length, off, len);
+        if (len % 4 != 0) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int ret = decodedLength(len, src[off + len - 2] & 0xff, src[off + len - 1] & 0xff);
+        checkRange(dst.length, dstOff, ret);
+
+        int end = off + len - 4;
+        int pos = dstOff;
+        for (int i = off; i < end; i += 4) {
+            int bits = DECODE_TABLE[src[i] & 0xff] << 18
+                    | DECODE_TABLE[src[i + 1] & 0xff] << 12
+                    | DECODE_TABLE[src[i + 2] & 0xff] << 6
+                    | DECODE_TABLE[src[i + 3] & 0xff];
+            if (bits < 0) {
+                return -1;
+            }
+            dst[pos++] = (byte) (bits >> 16);
+            dst[pos++] = (byte) (bits >> 8);
+            dst[pos++] = (byte) bits;
+        }
+
+        return decodeLast(src[end] & 0xff, src[end + 1] & 0xff, src[end + 2] & 0xff, src[end + 3] & 0xff, dst, pos)
+                ? ret : -1;
+    }
+
+
+    /**
+     * Decodes the remaining ASCII characters of <code>src</code> into <code>dst</code>. On success the position of
+     * <code>src</code> is moved to its limit and the position of <code>dst</code> after the decoded data; if the
+     * data is not valid the positions are not changed, but the content of <code>dst</code> may be.
+     *
+     * @param src Encoded data between the position and the limit
+     * @param dst Destination
+     * @return number of bytes written to <code>dst</code> or -1 if the encoded data is not valid
+     * @throws BufferOverflowException if <code>dst</code> has not enough room
+     */
+    public static int decode(ByteBuffer src, ByteBuffer dst) {
+        int len = src.remaining();
+        if (len % 4 != 0) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        int start = src.position();
+        int ret = decodedLength(len, src.get(start + len - 2) & 0xff, src.get(start + len - 1) & 0xff);
+        if (dst.remaining() < ret) {
+            throw new BufferOverflowException();
+        }
+
+        if (src.hasArray() && dst.hasArray() && !dst.isReadOnly()) {
+            ret = decode(src.array(), src.arrayOffset() + start, len, dst.array(), dst.arrayOffset() + dst.position());
+            if (ret == -1) {
+                return -1;
+            }
+        } else {
+            int end = start + len - 4;
+            int pos = dst.position();
+            for (int i = start; i < end; i += 4) {
+                int bits = DECODE_TABLE[src.get(i) & 0xff] << 18
+                        | DECODE_TABLE[src.get(i + 1) & 0xff] << 12
+                        | DECODE_TABLE[src.get(i + 2) & 0xff] << 6
+                        | DECODE_TABLE[src.get(i + 3) & 0xff];
+                if (bits < 0) {
+                    return -1;
+                }
+                dst.put(pos++, (byte) (bits >> 16));
+                dst.put(pos++, (byte) (bits >> 8));
+                dst.put(pos++, (byte) bits);
+            }
+
+            int c0 = src.get(end) & 0xff;
+            int c1 = src.get(end + 1) & 0xff;
+            int c2 = src.get(end + 2) & 0xff;
+            int c3 = src.get(end + 3) & 0xff;
+            int bits = lastQuantum(c0, c1, c2, c3);
+            if (bits < 0) {
+                return -1;
+            }
+            dst.put(pos++, (byte) (bits >> 16));
+            if (c2 != PAD) {
+                dst.put(pos++, (byte) (bits >> 8));
+            }
+            if (c3 != PAD) {
+                dst.put(pos, (byte) bits);
+            }
+        }
+        src.position(src.limit());
+        dst.position(dst.position() + ret);
+
+        return ret;
+    }
+
+
+    /**
+     * Decodes characters into a new array
+     *
+     * @param src Encoded data
+     * @return decoded data or null if the encoded data is not valid
+     */
+    public static byte[] decode(CharSequence src) {
+        return decode(src, 0, src.length());
+    }
+
+
+    /**
+     * Decodes part of characters into a new array, e.g. a value in a SCRAM message
+     *
+     * @param src Encoded data
+     * @param off Start of the encoded data
+     * @param len Length of the encoded data
+     * @return decoded data or null if the encoded data is not valid
+     */
+    public static byte[] decode(CharSequence src, int off, int len) {
+        int length = decodedLength(src, off, len);
+        if (length == -1) {
+            return null;
+        }
+
+        byte[] ret = new byte[length];
+        return decode(src, off, len, ret, 0) != -1 ? ret : null;
+    }
+
+
+    // len must be a positive multiple of 4
+    private static int decodedLength(int len, int secondLast, int last) {
+        int ret = len / 4 * 3;
+        if (last == PAD) {
+            ret -= secondLast == PAD ? 2 : 1;
+        }
+
+        return ret;
+    }
+
+
+    private static boolean decodeLast(int c0, int c1, int c2, int c3, byte[] dst, int pos) {
+        int bits = lastQuantum(c0, c1, c2, c3);
+        if (bits < 0) {
+            return false;
+        }
+
+        dst[pos++] = (byte) (bits >> 16);
+        if (c2 != PAD) {
+            dst[pos++] = (byte) (bits >> 8);
+        }
+        if (c3 != PAD) {
+            dst[pos] = (byte) bits;
+        }
+
+        return true;
+    }
+
+
+    // 24 bits of the last quantum or -1 if it is not valid. "xx==" and "xxx=" are accepted only if the unused
+    // bits are zero.
+    private static int lastQuantum(int c0, int c1, int c2, int c3) {
+        if ((c0 | c1 | c2 | c3) > 0xff) {
+            return -1;
+        }
+
+        if (c3 != PAD) {
+            return DECODE_TABLE[c0] << 18 | DECODE_TABLE[c1] << 12 | DECODE_TABLE[c2] << 6 | DECODE_TABLE[c3];
+        } else if (c2 != PAD) {
+            int bits = DECODE_TABLE[c0] << 18 | DECODE_TABLE[c1] << 12 | DECODE_TABLE[c2] << 6;
+            return (bits & 0xff) == 0 ? bits : -1;
+        } else {
+            int bits = DECODE_TABLE[c0] << 18 | DECODE_TABLE[c1] << 12;
+            return (bits & 0xffff) == 0 ? bits : -1;
+        }
+    }
+
+
+    private static void checkRange(int length, int off, int len) {
+        if (off < 0 || len < 0 || off > length - len) {
+            throw new IndexOutOfBoundsException("off " + off + ", len " + len + ", length " + length);
+        }
+    }
+}
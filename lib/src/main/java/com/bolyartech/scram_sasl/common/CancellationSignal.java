@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+/**
+ * Tells long running operations like the salted password derivation to stop
+ */
+public interface CancellationSignal {
+    /**
+     * Checks if the operation should stop. Called often, so it must be cheap.
+     * @return true if the operation should stop
+     */
+    boolean isCancelled();
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Computes the salted password (PBKDF2) and the HMACs for the SCRAM mechanisms.
+ * <p>
+ * Use {@link CryptoBackends} to select the backend used for given mechanism.
+ */
+@SuppressWarnings("unused")
+public interface CryptoBackend {
+    /**
+     * Gets the name of the backend
+     *
+     * @return name
+     */
+    String getName();
+
+    /**
+     * Checks if the backend can be used for given mechanism on this JVM
+     *
+     * @param mechanism SCRAM mechanism
+     * @return true if available
+     */
+    boolean isAvailable(ScramMechanism mechanism);
+
+    /**
+     * Generates salted password into caller supplied buffer
+     *
+     * @param password     password bytes
+     * @param salt         Salt to be used
+     * @param iterations   Iterations for 'salting'
+     * @param mechanism    SCRAM mechanism
+     * @param output       Buffer where the salted password will be written
+     * @param outputOffset Offset in <code>output</code>
+     * @throws InvalidKeyException      if internal error occur while working with the key
+     * @throws NoSuchAlgorithmException if the algorithm is not supported by the java
+     */
+    void generateSaltedPassword(byte[] password,
+                                byte[] salt,
+                                int iterations,
+                                ScramMechanism mechanism,
+                                byte[] output,
+                                int outputOffset) throws InvalidKeyException, NoSuchAlgorithmException;
+
+    /**
+     * Computes HMAC
+     *
+     * @param key       key
+     * @param mechanism SCRAM mechanism
+     * @param data      data for which HMAC will be computed
+     * @return computed HMAC
+     * @throws InvalidKeyException      if internal error occur while working with the key
+     * @throws NoSuchAlgorithmException if the algorithm is not supported by the java
+     */
+    byte[] computeHmac(byte[] key, ScramMechanism mechanism, byte[] data) throws InvalidKeyException,
+            NoSuchAlgorithmException;
+
+    /**
+     * Computes HMAC of AuthMessage.
+     * <p>
+     * The default implementation encodes the message into an array with {@link AuthMessage#toByteArray()} and
+     * calls {@link #computeHmac(byte[], ScramMechanism, byte[])}. Backends with incremental HMAC should feed the
+     * message to it part by part instead.
+     *
+     * @param key       key
+     * @param mechanism SCRAM mechanism
+     * @param message   AuthMessage
+     * @return computed HMAC
+     * @throws InvalidKeyException      if internal error occur while working with the key
+     * @throws NoSuchAlgorithmException if the algorithm is not supported by the java
+     */
+    default byte[] computeHmac(byte[] key, ScramMechanism mechanism, AuthMessage message) throws InvalidKeyException,
+            NoSuchAlgorithmException {
+
+        return computeHmac(key, mechanism, message.toByteArray());
+    }
+}
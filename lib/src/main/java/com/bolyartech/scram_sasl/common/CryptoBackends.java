@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Registry of the {@link CryptoBackend}s used by {@link ScramUtils} for each {@link ScramMechanism}.
+ * <p>
+ * Unless a backend is selected with {@link #setBackend(ScramMechanism, CryptoBackend)} or by
+ * {@link #calibrate()}, {@link #JCA_MAC} is used. Calibration runs a short benchmark of the available backends
+ * on this JVM, drops the ones which produce wrong output and selects the fastest one. It may be run at startup
+ * by setting the {@value #CALIBRATE_PROPERTY} system property to <code>true</code>.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class CryptoBackends {
+    /**
+     * System property which, if set to <code>true</code>, makes the backends to be calibrated when this class is
+     * loaded
+     */
+    public static final String CALIBRATE_PROPERTY = "com.bolyartech.scram_sasl.calibrate";
+
+    /**
+     * PBKDF2 loop over JCA {@link javax.crypto.Mac}
+     */
+    public static final CryptoBackend JCA_MAC = new JcaMacCryptoBackend();
+    /**
+     * JDK <code>PBKDF2WithHmacSHA*</code> {@link javax.crypto.SecretKeyFactory}
+     */
+    public static final CryptoBackend SECRET_KEY_FACTORY = new SecretKeyFactoryCryptoBackend();
+    /**
+     * In-library {@link PureJavaPbkdf2} engine, used only if selected or faster in the calibration
+     */
+    public static final CryptoBackend PURE_JAVA = new PureJavaCryptoBackend();
+
+    private static final List<CryptoBackend> BUILT_IN =
+            Collections.unmodifiableList(Arrays.asList(JCA_MAC, SECRET_KEY_FACTORY, PURE_JAVA));
+
+    private static final int CHECK_ITERATIONS = 3;
+    private static final int CALIBRATION_ITERATIONS = 1024;
+    private static final int CALIBRATION_WARMUP_ROUNDS = 10;
+    private static final int CALIBRATION_ROUNDS = 5;
+
+    private static final Map<ScramMechanism, CryptoBackend> SELECTED = new ConcurrentHashMap<>();
+    private static final Map<ScramMechanism, Long> ITERATION_COSTS = new ConcurrentHashMap<>();
+    private static final Map<ScramMechanism, Map<CryptoBackend, Long>> BACKEND_ITERATION_COSTS =
+            new ConcurrentHashMap<>();
+
+
+    static {
+        if (Boolean.getBoolean(CALIBRATE_PROPERTY)) {
+            calibrate();
+        }
+    }
+
+
+    private CryptoBackends() {
+        throw new AssertionError("non-instantiable utility class");
+    }
+
+
+    /**
+     * Gets the backends provided by the library
+     *
+     * @return unmodifiable list of the backends
+     */
+    public static List<CryptoBackend> getBuiltInBackends() {
+        return BUILT_IN;
+    }
+
+
+    /**
+     * Gets the backend to be used for given mechanism
+     *
+     * @param mechanism SCRAM mechanism
+     * @return the selected backend or {@link #JCA_MAC} if none is selected
+     */
+    public static CryptoBackend getBackend(ScramMechanism mechanism) {
+        CryptoBackend backend = SELECTED.get(mechanism);
+        return backend != null ? backend : JCA_MAC;
+    }
+
+
+    /**
+     * Gets the backend explicitly selected for given mechanism
+     *
+     * @param mechanism SCRAM mechanism
+     * @return the selected backend or null if none is selected
+     */
+    public static CryptoBackend getSelectedBackend(ScramMechanism mechanism) {
+        return SELECTED.get(mechanism);
+    }
+
+
+    /**
+     * Selects the backend for given mechanism
+     *
+     * @param mechanism SCRAM mechanism
+     * @param backend   backend to be used or null in order to clear the selection
+     */
+    public static void setBackend(ScramMechanism mechanism, CryptoBackend backend) {
+        if (backend != null) {
+            SELECTED.put(mechanism, backend);
+        } else {
+            SELECTED.remove(mechanism);
+        }
+    }
+
+
+    /**
+     * Calibrates the built-in backends for all mechanisms and selects the fastest correct one for each
+     */
+    public static void calibrate() {
+        for (ScramMechanism mechanism : ScramMechanism.values()) {
+            calibrate(mechanism);
+        }
+    }
+
+
+    /**
+     * Calibrates the built-in backends for given mechanism and selects the fastest correct one
+     *
+     * @param mechanism SCRAM mechanism
+     * @return the selected backend
+     */
+    public static CryptoBackend calibrate(ScramMechanism mechanism) {
+        return calibrate(mechanism, BUILT_IN);
+    }
+
+
+    /**
+     * Calibrates given backends for given mechanism and selects the fastest one which produces the same output as
+     * the JCA {@link javax.crypto.Mac}. If none of them is correct the selection is not changed.
+     *
+     * @param mechanism  SCRAM mechanism
+     * @param candidates backends to be calibrated
+     * @return the selected backend
+     */
+    public static CryptoBackend calibrate(ScramMechanism mechanism, List<CryptoBackend> candidates) {
+        byte[] password = "pencil".getBytes(StandardCharsets.US_ASCII);
+        byte[] salt = "QSXCR+Q6sek8bf92".getBytes(StandardCharsets.US_ASCII);
+        byte[] data = "Client Key".getBytes(StandardCharsets.US_ASCII);
+
+        byte[] expectedPassword = new byte[mechanism.getHashSize()];
+        byte[] expectedHmac;
+        try {
+            CryptoBackend reference = JCA_MAC.isAvailable(mechanism) ? JCA_MAC : PURE_JAVA;
+            reference.generateSaltedPassword(password, salt, CHECK_ITERATIONS, mechanism, expectedPassword, 0);
+            expectedHmac = reference.computeHmac(password, mechanism, data);
+        } catch (GeneralSecurityException e) {
+            return getBackend(mechanism);
+        }
+
+        byte[] output = new byte[mechanism.getHashSize()];
+        CryptoBackend best = null;
+        long bestCost = Long.MAX_VALUE;
+        for (CryptoBackend candidate : candidates) {
+            if (!candidate.isAvailable(mechanism)) {
+                continue;
+            }
+
+            try {
+                candidate.generateSaltedPassword(password, salt, CHECK_ITERATIONS, mechanism, output, 0);
+                if (!Arrays.equals(expectedPassword, output) ||
+                        !Arrays.equals(expectedHmac, candidate.computeHmac(password, mechanism, data))) {
+                    continue;
+                }
+
+                for (int i = 0; i < CALIBRATION_WARMUP_ROUNDS; i++) {
+                    candidate.generateSaltedPassword(password, salt, CALIBRATION_ITERATIONS, mechanism, output, 0);
+                }
+
+                long cost = Long.MAX_VALUE;
+                for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+                    long start = System.nanoTime();
+                    candidate.generateSaltedPassword(password, salt, CALIBRATION_ITERATIONS, mechanism, output, 0);
+                    cost = Math.min(cost, (System.nanoTime() - start) / CALIBRATION_ITERATIONS);
+                }
+
+                backendCosts(mechanism).put(candidate, Math.max(1, cost));
+                if (cost < bestCost) {
+                    best = candidate;
+                    bestCost = cost;
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // the candidate is broken on this JVM, skip it
+            }
+        }
+
+        if (best != null) {
+            setBackend(mechanism, best);
+            ITERATION_COSTS.put(mechanism, Math.max(1, bestCost));
+        }
+
+        return getBackend(mechanism);
+    }
+
+
+    /**
+     * Gets the cost of one PBKDF2 iteration measured by the last calibration for given mechanism
+     *
+     * @param mechanism SCRAM mechanism
+     * @return nanoseconds per iteration or -1 if the mechanism is not calibrated
+     */
+    public static long getIterationCostNanos(ScramMechanism mechanism) {
+        Long cost = ITERATION_COSTS.get(mechanism);
+        return cost != null ? cost : -1;
+    }
+
+
+    /**
+     * Gets the cost of one PBKDF2 iteration of given backend measured by the calibrations for given mechanism
+     *
+     * @param mechanism SCRAM mechanism
+     * @param backend   backend
+     * @return nanoseconds per iteration or -1 if the backend is not calibrated for the mechanism
+     */
+    public static long getIterationCostNanos(ScramMechanism mechanism, CryptoBackend backend) {
+        Long cost = backendCosts(mechanism).get(backend);
+        return cost != null ? cost : -1;
+    }
+
+
+    private static Map<CryptoBackend, Long> backendCosts(ScramMechanism mechanism) {
+        Map<CryptoBackend, Long> costs = BACKEND_ITERATION_COSTS.get(mechanism);
+        if (costs == null) {
+            BACKEND_ITERATION_COSTS.putIfAbsent(mechanism, new ConcurrentHashMap<CryptoBackend, Long>());
+            costs = BACKEND_ITERATION_COSTS.get(mechanism);
+        }
+
+        return costs;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import java.nio.CharBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Salted password derivation which runs the iterations in steps.
+ * <p>
+ * The state between the steps is kept in the object, so the caller may stop after any step or spread the steps
+ * over time, e.g. run some iterations on each tick of a single threaded event loop.
+ * <p>
+ * The loop of the backend selected with {@link CryptoBackends} is used if it can be stepped, i.e. for
+ * {@link CryptoBackends#JCA_MAC} and {@link CryptoBackends#PURE_JAVA}. Other
+ * backends (e.g. {@link CryptoBackends#SECRET_KEY_FACTORY} or custom ones) run all the iterations in one call,
+ * so the fastest calibrated backend which can be stepped is used instead, see
+ * {@link #getSteppedBackend(ScramMechanism)}. HMACs which are not one of {@link ScramMechanism} use plain
+ * {@link Mac}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class IncrementalPbkdf2 {
+    private static final List<CryptoBackend> STEPPABLE =
+            Arrays.asList(CryptoBackends.JCA_MAC, CryptoBackends.PURE_JAVA);
+
+    private final Engine mEngine;
+    private final byte[] mU;
+    private final byte[] mResult;
+    private int mRemaining;
+
+
+    private IncrementalPbkdf2(Engine engine, byte[] salt, int iterations) {
+        mEngine = engine;
+        mU = new byte[engine.getLength()];
+        mResult = new byte[mU.length];
+        mRemaining = iterations - 1;
+
+        engine.first(salt, mU);
+        System.arraycopy(mU, 0, mResult, 0, mU.length);
+    }
+
+
+    /**
+     * Creates new IncrementalPbkdf2 and computes the first iteration. The password is prepared and encoded by
+     * {@link PasswordEncoder}.
+     *
+     * @param password   Clear form password, i.e. what user typed
+     * @param salt       Salt to be used
+     * @param iterations Iterations for 'salting'
+     * @param hmacName   HMAC to be used
+     * @return the derivation
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     * @throws ScramException           if SASLprep is enabled and the password contains prohibited characters
+     */
+    public static IncrementalPbkdf2 create(CharBuffer password, byte[] salt, int iterations, String hmacName)
+            throws InvalidKeyException, NoSuchAlgorithmException, ScramException {
+
+        byte[] passwordBytes = PasswordEncoder.encode(password);
+        try {
+            return create(passwordBytes, salt, iterations, hmacName);
+        } finally {
+            // the engines keep only the HMAC state derived from the key
+            PasswordEncoder.release(passwordBytes);
+        }
+    }
+
+
+    /**
+     * Creates new IncrementalPbkdf2 and computes the first iteration
+     *
+     * @param password   password bytes
+     * @param salt       Salt to be used
+     * @param iterations Iterations for 'salting'
+     * @param hmacName   HMAC to be used
+     * @return the derivation
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     */
+    public static IncrementalPbkdf2 create(byte[] password, byte[] salt, int iterations, String hmacName)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be positive");
+        }
+
+        return new IncrementalPbkdf2(createEngine(password, hmacName), salt, iterations);
+    }
+
+
+    /**
+     * Gets the backend whose loop is run by the derivations for given mechanism: the selected one if it can be
+     * stepped, otherwise the one of the stepped backends with the lowest calibrated cost or
+     * {@link CryptoBackends#JCA_MAC} if none of them is calibrated
+     *
+     * @param mechanism SCRAM mechanism
+     * @return the backend
+     */
+    public static CryptoBackend getSteppedBackend(ScramMechanism mechanism) {
+        CryptoBackend selected = CryptoBackends.getBackend(mechanism);
+        if (STEPPABLE.contains(selected)) {
+            return selected;
+        }
+
+        CryptoBackend best = CryptoBackends.JCA_MAC;
+        long bestCost = Long.MAX_VALUE;
+        for (CryptoBackend backend : STEPPABLE) {
+            long cost = CryptoBackends.getIterationCostNanos(mechanism, backend);
+            if (cost > 0 && cost < bestCost) {
+                best = backend;
+                bestCost = cost;
+            }
+        }
+
+        return best;
+    }
+
+
+    /**
+     * Gets the calibrated cost of one iteration of the derivations for given mechanism, i.e. of
+     * {@link #getSteppedBackend(ScramMechanism)}
+     *
+     * @param mechanism SCRAM mechanism
+     * @return nanoseconds per iteration or -1 if the backend is not calibrated
+     */
+    public static long getIterationCostNanos(ScramMechanism mechanism) {
+        return CryptoBackends.getIterationCostNanos(mechanism, getSteppedBackend(mechanism));
+    }
+
+
+    /**
+     * Runs up to <code>maxIterations</code> iterations
+     *
+     * @param maxIterations maximum number of iterations to run
+     * @return true if the derivation is done
+     */
+    public boolean step(int maxIterations) {
+        if (maxIterations < 1) {
+            throw new IllegalArgumentException("maxIterations must be positive");
+        }
+
+        int count = Math.min(maxIterations, mRemaining);
+        if (count > 0) {
+            mEngine.iterate(mU, mResult, count);
+            mRemaining -= count;
+        }
+
+        return mRemaining == 0;
+    }
+
+
+    /**
+     * Checks if the derivation is done
+     *
+     * @return true if all the iterations are done
+     */
+    public boolean isDone() {
+        return mRemaining == 0;
+    }
+
+
+    /**
+     * Gets the number of the iterations which are not done yet
+     *
+     * @return remaining iterations
+     */
+    public int getRemainingIterations() {
+        return mRemaining;
+    }
+
+
+    /**
+     * Gets the salted password
+     *
+     * @return salted password
+     * @throws IllegalStateException if the derivation is not done yet
+     */
+    public byte[] getSaltedPassword() {
+        if (mRemaining != 0) {
+            throw new IllegalStateException("Derivation is not done yet");
+        }
+
+        return mResult.clone();
+    }
+
+
+    private static Engine createEngine(byte[] password, String hmacName) throws InvalidKeyException,
+            NoSuchAlgorithmException {
+
+        ScramMechanism mechanism = ScramMechanism.forHmacName(hmacName);
+        if (mechanism != null) {
+            CryptoBackend backend = getSteppedBackend(mechanism);
+            if (backend == CryptoBackends.PURE_JAVA) {
+                PureJavaHmac hmac = PureJavaHmac.create(mechanism);
+                hmac.init(password);
+                return new PureJavaEngine(hmac);
+            }
+        }
+
+        // own instance, the pooled one may be used by somebody else between the steps
+        return new MacEngine(ThreadLocalCryptoPool.newMac(hmacName, password));
+    }
+
+
+    private static abstract class Engine {
+        abstract int getLength();
+
+
+        abstract void first(byte[] salt, byte[] u);
+
+
+        abstract void iterate(byte[] u, byte[] acc, int count);
+    }
+
+
+    private static class PureJavaEngine extends Engine {
+        private final PureJavaHmac mHmac;
+
+
+        PureJavaEngine(PureJavaHmac hmac) {
+            mHmac = hmac;
+        }
+
+
+        @Override
+        int getLength() {
+            return mHmac.getMacLength();
+        }
+
+
+        @Override
+        void first(byte[] salt, byte[] u) {
+            mHmac.pbkdf2First(salt, u);
+        }
+
+
+        @Override
+        void iterate(byte[] u, byte[] acc, int count) {
+            mHmac.iterate(u, acc, 0, count);
+        }
+    }
+
+
+    private static class MacEngine extends Engine {
+        private static final byte[] INT_1 = new byte[]{0, 0, 0, 1};
+
+        private final Mac mMac;
+
+
+        MacEngine(Mac mac) {
+            mMac = mac;
+        }
+
+
+        @Override
+        int getLength() {
+            return mMac.getMacLength();
+        }
+
+
+        @Override
+        void first(byte[] salt, byte[] u) {
+            mMac.update(salt);
+            mMac.update(INT_1);
+            finish(u);
+        }
+
+
+        @Override
+        void iterate(byte[] u, byte[] acc, int count) {
+            for (int i = 0; i < count; i++) {
+                mMac.update(u);
+                finish(u);
+                for (int x = 0; x < u.length; x++) {
+                    acc[x] ^= u[x];
+                }
+            }
+        }
+
+
+        private void finish(byte[] u) {
+            try {
+                mMac.doFinal(u, 0);
+            } catch (ShortBufferException e) {
+                // u is sized by the MAC length
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
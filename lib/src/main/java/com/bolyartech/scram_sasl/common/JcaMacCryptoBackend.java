@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import javax.crypto.Mac;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Backend which runs the PBKDF2 loop over JCA {@link Mac}
+ */
+class JcaMacCryptoBackend implements CryptoBackend {
+    @Override
+    public String getName() {
+        return "jca-mac";
+    }
+
+
+    @Override
+    public boolean isAvailable(ScramMechanism mechanism) {
+        try {
+            Mac.getInstance(mechanism.getHmacName());
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+
+    @Override
+    public void generateSaltedPassword(byte[] password,
+                                       byte[] salt,
+                                       int iterations,
+                                       ScramMechanism mechanism,
+                                       byte[] output,
+                                       int outputOffset) throws InvalidKeyException, NoSuchAlgorithmException {
+
+        Mac mac = ThreadLocalCryptoPool.getMac(mechanism.getHmacName(), password);
+        ScramUtils.generateSaltedPassword(mac, salt, iterations, output, outputOffset, new byte[mac.getMacLength()]);
+    }
+
+
+    @Override
+    public byte[] computeHmac(byte[] key, ScramMechanism mechanism, byte[] data) throws InvalidKeyException,
+            NoSuchAlgorithmException {
+
+        Mac mac = ThreadLocalCryptoPool.getMac(mechanism.getHmacName(), key);
+        return mac.doFinal(data);
+    }
+
+
+    @Override
+    public byte[] computeHmac(byte[] key, ScramMechanism mechanism, AuthMessage message) throws InvalidKeyException,
+            NoSuchAlgorithmException {
+
+        Mac mac = ThreadLocalCryptoPool.getMac(mechanism.getHmacName(), key);
+        message.update(mac);
+        return mac.doFinal();
+    }
+
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -27,6 +27,7 @@ import java.lang.reflect.Method;
 class Normalizer {
     private static boolean initialized = false;
     private static Method normalize; // java.text.Normalizer.normalize
+    private static Method isNormalized; // java.text.Normalizer.isNormalized
     private static Object nfkc; // java.text.Normalizer.Form.NFKC
     private static final Object lock = new Object();
 
@@ -34,12 +35,7 @@ class Normalizer {
     /** Equivalent to {@link java.text.Normalizer#normalize}(seq, Normalizer.Form.NFKC).
      *  If Normalizer is unavailable, returns the sequence unchanged. */
     public static String normalize(CharSequence seq) {
-        synchronized (lock) {
-            if (!initialized) {
-                initialized = true;
-                initialize("java.text.Normalizer");
-            }
-        }
+        ensureInitialized();
 
         if (normalize == null)
             return seq.toString();
@@ -52,6 +48,32 @@ class Normalizer {
     }
 
 
+    /** Equivalent to {@link java.text.Normalizer#isNormalized}(seq, Normalizer.Form.NFKC).
+     *  If Normalizer is unavailable, returns true like {@link #normalize} leaves the sequence unchanged. */
+    public static boolean isNormalized(CharSequence seq) {
+        ensureInitialized();
+
+        if (isNormalized == null)
+            return true;
+
+        try {
+            return (Boolean) isNormalized.invoke(null, seq, nfkc);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    private static void ensureInitialized() {
+        synchronized (lock) {
+            if (!initialized) {
+                initialized = true;
+                initialize("java.text.Normalizer");
+            }
+        }
+    }
+
+
     @SuppressWarnings("SameParameterValue")
     private static void initialize(String classPath) {
         try {
@@ -61,6 +83,7 @@ class Normalizer {
 
             nfkc = findObjectByValue(normalizerConstants, "NFKC");
             normalize = normalizerClass.getMethod("normalize", CharSequence.class, normalizerFormClass);
+            isNormalized = normalizerClass.getMethod("isNormalized", CharSequence.class, normalizerFormClass);
         } catch (SecurityException | ClassNotFoundException | NoSuchMethodException e) {
             throw new IllegalStateException("Couldn't load java.text.Normalizer", e);
         }
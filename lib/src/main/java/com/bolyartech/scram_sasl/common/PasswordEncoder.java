@@ -0,0 +1,278 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Converts passwords given as characters to the bytes used as HMAC key.
+ * <p>
+ * By default the password is encoded like by the earlier versions of the library, i.e. as US-ASCII where each
+ * other character (or surrogate pair) becomes '?'. So credentials created by them keep working. If SASLprep is
+ * enabled with {@link #setSaslPrepEnabled(boolean)} the password is prepared with SASLprep (RFC 4013, as a query
+ * string) and encoded in UTF-8 as required by RFC 5802. Printable ASCII passwords give the same bytes in both
+ * modes. Passwords with other characters give different bytes, so credentials created from them before enabling
+ * SASLprep have to be re-created, and all the parties have to use the same mode.
+ * <p>
+ * SASLprep maps the password into a per-thread character buffer which is zeroed after use and encodes it from
+ * there. No String is created, except for passwords which have to be normalized to NFKC (e.g. ones with
+ * compatibility characters), because the JDK normalizer returns Strings only.
+ * <p>
+ * The returned array has exactly the length of the encoded password and is taken from a per-thread pool. The caller
+ * should hand it back with {@link #release(byte[])} as soon as the key is derived, which zeroes it, and must not use
+ * it afterwards.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class PasswordEncoder {
+    /**
+     * Longest encoded password whose array is pooled
+     */
+    public static final int MAX_POOLED_LENGTH = 64;
+
+    private static final ThreadLocal<EncoderState> STATES = new ThreadLocal<EncoderState>() {
+        @Override
+        protected EncoderState initialValue() {
+            return new EncoderState();
+        }
+    };
+
+    private static volatile boolean sSaslPrepEnabled;
+
+
+    private PasswordEncoder() {
+        throw new AssertionError("non-instantiable utility class");
+    }
+
+
+    /**
+     * Enables or disables SASLprep and UTF-8 encoding of the passwords. It is disabled by default.
+     *
+     * @param enabled true to enable, false to use the legacy encoding
+     */
+    public static void setSaslPrepEnabled(boolean enabled) {
+        sSaslPrepEnabled = enabled;
+    }
+
+
+    /**
+     * Checks if SASLprep is enabled
+     *
+     * @return true if the passwords are SASLprep-ed and encoded in UTF-8
+     */
+    public static boolean isSaslPrepEnabled() {
+        return sSaslPrepEnabled;
+    }
+
+
+    /**
+     * Prepares and encodes password
+     *
+     * @param password Clear form password, i.e. what user typed
+     * @return encoded password, to be handed back with {@link #release(byte[])}
+     * @throws ScramException if SASLprep is enabled and the password contains prohibited characters or is not valid
+     *                        UTF-16
+     */
+    public static byte[] encode(char[] password) throws ScramException {
+        if (password == null) {
+            throw new NullPointerException("password cannot be null");
+        }
+
+        return encode(CharBuffer.wrap(password));
+    }
+
+
+    /**
+     * Prepares and encodes password. The position of <code>password</code> is not changed.
+     *
+     * @param password Clear form password, i.e. what user typed
+     * @return encoded password, to be handed back with {@link #release(byte[])}
+     * @throws ScramException if SASLprep is enabled and the password contains prohibited characters or is not valid
+     *                        UTF-16
+     */
+    public static byte[] encode(CharBuffer password) throws ScramException {
+        if (password == null) {
+            throw new NullPointerException("password cannot be null");
+        }
+
+        EncoderState state = STATES.get();
+        int length = password.remaining();
+        int start = password.position();
+        if (isPrintableAscii(password, start, length)) {
+            byte[] ret = state.takeBytes(length);
+            for (int i = 0; i < length; i++) {
+                ret[i] = (byte) password.get(start + i);
+            }
+
+            return ret;
+        }
+
+        if (!sSaslPrepEnabled) {
+            return encodeLegacy(password, state);
+        }
+
+        char[] buffer = state.getChars(length);
+
+        try {
+            // a CharBuffer is a CharSequence of its remaining characters
+            return encodeUtf8(StringPrep.prepAsQueryString(password, buffer), state);
+        } catch (StringPrep.StringPrepError e) {
+            throw new ScramException("Password contains prohibited character");
+        } finally {
+            Arrays.fill(buffer, 0, length, '\0');
+        }
+    }
+
+
+    /**
+     * Zeroes encoded password and returns its array to the pool of the current thread
+     *
+     * @param password password returned by <code>encode()</code>, not used by the caller afterwards
+     */
+    public static void release(byte[] password) {
+        if (password == null) {
+            throw new NullPointerException("password cannot be null");
+        }
+
+        Arrays.fill(password, (byte) 0);
+        STATES.get().putBytes(password);
+    }
+
+
+    private static boolean isPrintableAscii(CharBuffer password, int start, int length) {
+        for (int i = 0; i < length; i++) {
+            char c = password.get(start + i);
+            if (c < 0x20 || c > 0x7e) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private static byte[] encodeLegacy(CharSequence chars, EncoderState state) {
+        // same as String.getBytes(StandardCharsets.US_ASCII)
+        int length = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            if (isSurrogatePair(chars, i)) {
+                i++;
+            }
+            length++;
+        }
+
+        byte[] ret = state.takeBytes(length);
+        int pos = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (isSurrogatePair(chars, i)) {
+                i++;
+            }
+            ret[pos++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+
+        return ret;
+    }
+
+
+    private static byte[] encodeUtf8(CharSequence chars, EncoderState state) throws ScramException {
+        // the first pass only counts, so the result is taken once with its exact length
+        int length = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (isSurrogatePair(chars, i)) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                throw new ScramException("Password is not valid UTF-16");
+            } else {
+                length += 3;
+            }
+        }
+
+        byte[] ret = state.takeBytes(length);
+        int pos = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                ret[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                ret[pos++] = (byte) (0xc0 | (c >> 6));
+                ret[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                ret[pos++] = (byte) (0xf0 | (cp >> 18));
+                ret[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                ret[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                ret[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                ret[pos++] = (byte) (0xe0 | (c >> 12));
+                ret[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                ret[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        return ret;
+    }
+
+
+    private static boolean isSurrogatePair(CharSequence chars, int i) {
+        return Character.isHighSurrogate(chars.charAt(i)) && i + 1 < chars.length() &&
+                Character.isLowSurrogate(chars.charAt(i + 1));
+    }
+
+
+    private static class EncoderState {
+        private char[] mChars = new char[64];
+        // one free array per length, an array is removed while the caller owns it
+        private final byte[][] mBytes = new byte[MAX_POOLED_LENGTH + 1][];
+
+
+        char[] getChars(int length) {
+            if (mChars.length < length) {
+                mChars = new char[length];
+            }
+
+            return mChars;
+        }
+
+
+        byte[] takeBytes(int length) {
+            if (length <= MAX_POOLED_LENGTH && mBytes[length] != null) {
+                byte[] ret = mBytes[length];
+                mBytes[length] = null;
+                return ret;
+            }
+
+            return new byte[length];
+        }
+
+
+        void putBytes(byte[] bytes) {
+            if (bytes.length <= MAX_POOLED_LENGTH) {
+                mBytes[bytes.length] = bytes;
+            }
+        }
+    }
+}
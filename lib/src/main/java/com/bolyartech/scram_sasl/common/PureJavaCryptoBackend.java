@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+/**
+ * Backend which uses the in-library {@link PureJavaPbkdf2} engine
+ */
+class PureJavaCryptoBackend implements CryptoBackend {
+    @Override
+    public String getName() {
+        return "pure-java";
+    }
+
+
+    @Override
+    public boolean isAvailable(ScramMechanism mechanism) {
+        return true;
+    }
+
+
+    @Override
+    public void generateSaltedPassword(byte[] password,
+                                       byte[] salt,
+                                       int iterations,
+                                       ScramMechanism mechanism,
+                                       byte[] output,
+                                       int outputOffset) {
+
+        PureJavaPbkdf2.generateSaltedPassword(password, salt, iterations, mechanism, output, outputOffset);
+    }
+
+
+    @Override
+    public byte[] computeHmac(byte[] key, ScramMechanism mechanism, byte[] data) {
+        return PureJavaPbkdf2.computeHmac(key, mechanism, data);
+    }
+
+
+    @Override
+    public byte[] computeHmac(byte[] key, ScramMechanism mechanism, AuthMessage message) {
+        PureJavaHmac hmac = PureJavaHmac.create(mechanism);
+        hmac.init(key);
+        message.update(hmac);
+        byte[] result = new byte[hmac.getMacLength()];
+        hmac.doFinal(result, 0);
+        return result;
+    }
+
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import java.util.Arrays;
+
+
+/**
+ * HMAC computed directly over the state words of the hash function, without going through the JCA providers.
+ * <p>
+ * The hash state after the ipad and the opad key blocks is saved on {@link #init(byte[])} and restored after each
+ * {@link #doFinal(byte[], int)}. Subclasses provide the compression function and the PBKDF2 loop which works
+ * entirely on words with the padding of the fixed size blocks precomputed.
+ */
+abstract class PureJavaHmac {
+    private static final byte IPAD = 0x36;
+    private static final byte OPAD = 0x5c;
+    private static final byte[] INT_1 = new byte[]{0, 0, 0, 1};
+
+    private final int mBlockSize;
+    private final int mHashSize;
+    private final byte[] mBuffer;
+    private int mBufferLength;
+    private long mByteCount;
+
+
+    PureJavaHmac(int blockSize, int hashSize) {
+        mBlockSize = blockSize;
+        mHashSize = hashSize;
+        mBuffer = new byte[blockSize];
+    }
+
+
+    /**
+     * Creates new unkeyed HMAC for given mechanism
+     *
+     * @param mechanism SCRAM mechanism
+     * @return the HMAC
+     */
+    static PureJavaHmac create(ScramMechanism mechanism) {
+        switch (mechanism) {
+            case SCRAM_SHA_1:
+                return new PureJavaSha1Hmac();
+            case SCRAM_SHA_256:
+                return new PureJavaSha256Hmac();
+            case SCRAM_SHA_512:
+                return new PureJavaSha512Hmac();
+            default:
+                throw new IllegalArgumentException("Unsupported mechanism " + mechanism);
+        }
+    }
+
+
+    /**
+     * Gets the length of the HMAC output
+     *
+     * @return length in bytes
+     */
+    int getMacLength() {
+        return mHashSize;
+    }
+
+
+    /**
+     * Initializes the HMAC with a key. May be called again in order to change the key.
+     *
+     * @param key key
+     */
+    void init(byte[] key) {
+        byte[] block = new byte[mBlockSize];
+        if (key.length > mBlockSize) {
+            resetToInitialState();
+            mByteCount = 0;
+            mBufferLength = 0;
+            update(key, 0, key.length);
+            finishHash(block, 0);
+        } else {
+            System.arraycopy(key, 0, block, 0, key.length);
+        }
+
+        for (int i = 0; i < mBlockSize; i++) {
+            block[i] ^= IPAD;
+        }
+        resetToInitialState();
+        processBlock(block, 0);
+        saveInnerState();
+
+        for (int i = 0; i < mBlockSize; i++) {
+            block[i] ^= IPAD ^ OPAD;
+        }
+        resetToInitialState();
+        processBlock(block, 0);
+        saveOuterState();
+
+        Arrays.fill(block, (byte) 0);
+        restart();
+    }
+
+
+    /**
+     * Processes given bytes
+     *
+     * @param data   data
+     * @param offset offset in <code>data</code>
+     * @param length number of bytes to process
+     */
+    void update(byte[] data, int offset, int length) {
+        mByteCount += length;
+        if (mBufferLength > 0) {
+            int n = Math.min(length, mBlockSize - mBufferLength);
+            System.arraycopy(data, offset, mBuffer, mBufferLength, n);
+            mBufferLength += n;
+            offset += n;
+            length -= n;
+            if (mBufferLength < mBlockSize) {
+                return;
+            }
+            processBlock(mBuffer, 0);
+            mBufferLength = 0;
+        }
+
+        while (length >= mBlockSize) {
+            processBlock(data, offset);
+            offset += mBlockSize;
+            length -= mBlockSize;
+        }
+
+        if (length > 0) {
+            System.arraycopy(data, offset, mBuffer, 0, length);
+            mBufferLength = length;
+        }
+    }
+
+
+    /**
+     * Finishes the HMAC computation and resets it for the next message with the same key
+     *
+     * @param out    buffer for the result
+     * @param offset offset in <code>out</code>
+     */
+    void doFinal(byte[] out, int offset) {
+        finishHash(out, offset);
+
+        restoreOuterState();
+        mByteCount = mBlockSize;
+        mBufferLength = 0;
+        update(out, offset, mHashSize);
+        finishHash(out, offset);
+
+        restart();
+    }
+
+
+    /**
+     * Computes the salted password, i.e. the first block of PBKDF2, with the key as a password
+     *
+     * @param salt       Salt
+     * @param iterations Iterations for 'salting'
+     * @param out        buffer for the result
+     * @param offset     offset in <code>out</code>
+     */
+    void pbkdf2(byte[] salt, int iterations, byte[] out, int offset) {
+        byte[] u = new byte[mHashSize];
+        pbkdf2First(salt, u);
+        System.arraycopy(u, 0, out, offset, mHashSize);
+        if (iterations > 1) {
+            iterate(u, out, offset, iterations - 1);
+        }
+    }
+
+
+    /**
+     * Computes U1 of PBKDF2, i.e. HMAC(salt || INT(1))
+     *
+     * @param salt Salt
+     * @param u    buffer for U1
+     */
+    void pbkdf2First(byte[] salt, byte[] u) {
+        update(salt, 0, salt.length);
+        update(INT_1, 0, INT_1.length);
+        doFinal(u, 0);
+    }
+
+
+    /**
+     * Runs PBKDF2 iterations: <code>u = HMAC(u)</code> and <code>acc ^= u</code>, <code>count</code> times
+     *
+     * @param u         previous U, replaced with the last computed one
+     * @param acc       accumulated result
+     * @param accOffset offset of the result in <code>acc</code>
+     * @param count     number of iterations to run
+     */
+    abstract void iterate(byte[] u, byte[] acc, int accOffset, int count);
+
+    abstract void resetToInitialState();
+
+    abstract void processBlock(byte[] block, int offset);
+
+    abstract void saveInnerState();
+
+    abstract void saveOuterState();
+
+    abstract void restoreInnerState();
+
+    abstract void restoreOuterState();
+
+    abstract void writeState(byte[] out, int offset);
+
+
+    private void restart() {
+        restoreInnerState();
+        mByteCount = mBlockSize;
+        mBufferLength = 0;
+    }
+
+
+    private void finishHash(byte[] out, int offset) {
+        // the length is 64 bits for 64 bytes blocks and 128 bits for 128 bytes blocks
+        int lengthSize = mBlockSize / 8;
+        long bitCount = mByteCount << 3;
+
+        mBuffer[mBufferLength++] = (byte) 0x80;
+        if (mBufferLength > mBlockSize - lengthSize) {
+            Arrays.fill(mBuffer, mBufferLength, mBlockSize, (byte) 0);
+            processBlock(mBuffer, 0);
+            mBufferLength = 0;
+        }
+        Arrays.fill(mBuffer, mBufferLength, mBlockSize - 8, (byte) 0);
+        for (int i = 0; i < 8; i++) {
+            mBuffer[mBlockSize - 1 - i] = (byte) (bitCount >>> (8 * i));
+        }
+        processBlock(mBuffer, 0);
+        mBufferLength = 0;
+
+        writeState(out, offset);
+    }
+
+
+    static int getInt(byte[] b, int offset) {
+        return (b[offset] << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) |
+                (b[offset + 3] & 0xff);
+    }
+
+
+    static void putInt(int v, byte[] b, int offset) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+
+    static long getLong(byte[] b, int offset) {
+        return ((long) getInt(b, offset) << 32) | (getInt(b, offset + 4) & 0xffffffffL);
+    }
+
+
+    static void putLong(long v, byte[] b, int offset) {
+        putInt((int) (v >>> 32), b, offset);
+        putInt((int) v, b, offset + 4);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import javax.crypto.Mac;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+
+/**
+ * Pure Java HMAC and PBKDF2 engine for the hash functions of {@link ScramMechanism}.
+ * <p>
+ * The engine computes the HMAC directly on int/long state arrays and does not go through the JCA providers.
+ * It is never used by default: it runs only for the mechanisms for which it is enabled with
+ * {@link #setEnabled(ScramMechanism, boolean)} (i.e. {@link CryptoBackends#PURE_JAVA} is selected as their
+ * backend) or for which {@link CryptoBackends#calibrate(ScramMechanism)} measured it faster than the JCA.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class PureJavaPbkdf2 {
+    private PureJavaPbkdf2() {
+        throw new AssertionError("non-instantiable utility class");
+    }
+
+
+    /**
+     * Enables or disables the engine for given mechanism.
+     * <p>
+     * Before enabling the engine its output is compared with the output of the JCA {@link Mac}
+     * (see {@link #selfTest(ScramMechanism)}) and if they differ the engine stays disabled.
+     *
+     * @param mechanism SCRAM mechanism
+     * @param enabled   true to enable, false to disable
+     * @return true if the engine is enabled for the mechanism after the call
+     */
+    public static boolean setEnabled(ScramMechanism mechanism, boolean enabled) {
+        if (enabled) {
+            if (selfTest(mechanism)) {
+                CryptoBackends.setBackend(mechanism, CryptoBackends.PURE_JAVA);
+            }
+        } else if (isEnabled(mechanism)) {
+            CryptoBackends.setBackend(mechanism, null);
+        }
+
+        return isEnabled(mechanism);
+    }
+
+
+    /**
+     * Checks if the engine is enabled for given mechanism
+     *
+     * @param mechanism SCRAM mechanism
+     * @return true if enabled
+     */
+    public static boolean isEnabled(ScramMechanism mechanism) {
+        return CryptoBackends.getSelectedBackend(mechanism) == CryptoBackends.PURE_JAVA;
+    }
+
+
+    /**
+     * Checks that the engine produces the same HMACs and salted passwords as the JCA {@link Mac}
+     *
+     * @param mechanism SCRAM mechanism
+     * @return true if the outputs are identical, false if they differ or the JCA HMAC is not available
+     */
+    public static boolean selfTest(ScramMechanism mechanism) {
+        byte[] salt = "QSXCR+Q6sek8bf92".getBytes(StandardCharsets.US_ASCII);
+        byte[] data = ("n=user,r=fyko+d2lbbFgONRv9qkxdawL,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j," +
+                "s=QSXCR+Q6sek8bf92,i=4096").getBytes(StandardCharsets.US_ASCII);
+
+        // short key and key longer than the block, which is hashed first
+        byte[][] keys = {"pencil".getBytes(StandardCharsets.US_ASCII), new byte[mechanism.getBlockSize() + 1]};
+        for (int i = 0; i < keys[1].length; i++) {
+            keys[1][i] = (byte) i;
+        }
+
+        try {
+            for (byte[] key : keys) {
+                Mac mac = ScramUtils.createHmac(key, mechanism.getHmacName());
+                if (!Arrays.equals(mac.doFinal(data), computeHmac(key, mechanism, data))) {
+                    return false;
+                }
+
+                byte[] expected = new byte[mechanism.getHashSize()];
+                ScramUtils.generateSaltedPassword(mac, salt, 3, expected, 0, new byte[expected.length]);
+                if (!Arrays.equals(expected, generateSaltedPassword(key, salt, 3, mechanism))) {
+                    return false;
+                }
+            }
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Generates salted password.
+     *
+     * @param password   password bytes
+     * @param salt       Salt to be used
+     * @param iterations Iterations for 'salting'
+     * @param mechanism  SCRAM mechanism
+     * @return salted password
+     */
+    public static byte[] generateSaltedPassword(byte[] password,
+                                                byte[] salt,
+                                                int iterations,
+                                                ScramMechanism mechanism) {
+
+        byte[] result = new byte[mechanism.getHashSize()];
+        generateSaltedPassword(password, salt, iterations, mechanism, result, 0);
+        return result;
+    }
+
+
+    /**
+     * Generates salted password into caller supplied buffer.
+     *
+     * @param password     password bytes
+     * @param salt         Salt to be used
+     * @param iterations   Iterations for 'salting'
+     * @param mechanism    SCRAM mechanism
+     * @param output       Buffer where the salted password will be written
+     * @param outputOffset Offset in <code>output</code>
+     */
+    public static void generateSaltedPassword(byte[] password,
+                                              byte[] salt,
+                                              int iterations,
+                                              ScramMechanism mechanism,
+                                              byte[] output,
+                                              int outputOffset) {
+
+        if (outputOffset < 0 || output.length - outputOffset < mechanism.getHashSize()) {
+            throw new IllegalArgumentException("output is too short, " + mechanism.getHashSize() +
+                    " bytes are needed");
+        }
+
+        PureJavaHmac hmac = PureJavaHmac.create(mechanism);
+        hmac.init(password);
+        hmac.pbkdf2(salt, iterations, output, outputOffset);
+    }
+
+
+    /**
+     * Computes HMAC
+     *
+     * @param key       key
+     * @param mechanism SCRAM mechanism
+     * @param data      data for which HMAC will be computed
+     * @return computed HMAC
+     */
+    public static byte[] computeHmac(byte[] key, ScramMechanism mechanism, byte[] data) {
+        PureJavaHmac hmac = PureJavaHmac.create(mechanism);
+        hmac.init(key);
+        hmac.update(data, 0, data.length);
+        byte[] result = new byte[hmac.getMacLength()];
+        hmac.doFinal(result, 0);
+        return result;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+/**
+ * HMAC-SHA-1 over int state words
+ */
+final class PureJavaSha1Hmac extends PureJavaHmac {
+    private static final int BLOCK_SIZE = 64;
+    private static final int HASH_WORDS = 5;
+
+    private static final int[] IV = {0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0};
+
+    private final int[] mState = new int[HASH_WORDS];
+    private final int[] mInnerState = new int[HASH_WORDS];
+    private final int[] mOuterState = new int[HASH_WORDS];
+    private final int[] mW = new int[80];
+    private final int[] mAcc = new int[HASH_WORDS];
+
+
+    PureJavaSha1Hmac() {
+        super(BLOCK_SIZE, HASH_WORDS * 4);
+    }
+
+
+    @Override
+    void iterate(byte[] u, byte[] acc, int accOffset, int count) {
+        int[] w = mW;
+        for (int i = 0; i < HASH_WORDS; i++) {
+            w[i] = getInt(u, i * 4);
+            mAcc[i] = getInt(acc, accOffset + i * 4);
+        }
+        // padding of a message which is one key block plus one hash long
+        w[5] = 0x80000000;
+        for (int i = 6; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = (BLOCK_SIZE + HASH_WORDS * 4) * 8;
+
+        for (int n = 0; n < count; n++) {
+            compress(mInnerState, w, w);
+            compress(mOuterState, w, w);
+            for (int i = 0; i < HASH_WORDS; i++) {
+                mAcc[i] ^= w[i];
+            }
+        }
+
+        for (int i = 0; i < HASH_WORDS; i++) {
+            putInt(w[i], u, i * 4);
+            putInt(mAcc[i], acc, accOffset + i * 4);
+        }
+    }
+
+
+    @Override
+    void resetToInitialState() {
+        System.arraycopy(IV, 0, mState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void processBlock(byte[] block, int offset) {
+        for (int i = 0; i < 16; i++) {
+            mW[i] = getInt(block, offset + i * 4);
+        }
+        compress(mState, mW, mState);
+    }
+
+
+    @Override
+    void saveInnerState() {
+        System.arraycopy(mState, 0, mInnerState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void saveOuterState() {
+        System.arraycopy(mState, 0, mOuterState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void restoreInnerState() {
+        System.arraycopy(mInnerState, 0, mState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void restoreOuterState() {
+        System.arraycopy(mOuterState, 0, mState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void writeState(byte[] out, int offset) {
+        for (int i = 0; i < HASH_WORDS; i++) {
+            putInt(mState[i], out, offset + i * 4);
+        }
+    }
+
+
+    /**
+     * Compresses the block in w[0..15] starting from state <code>h</code>. The result is written in
+     * <code>out</code> only after all reads, so <code>out</code> may be <code>h</code> or <code>w</code>.
+     */
+    private static void compress(int[] h, int[] w, int[] out) {
+        for (int t = 16; t < 80; t++) {
+            w[t] = Integer.rotateLeft(w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16], 1);
+        }
+
+        int a = h[0];
+        int b = h[1];
+        int c = h[2];
+        int d = h[3];
+        int e = h[4];
+
+        for (int t = 0; t < 20; t++) {
+            int tmp = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e + w[t] + 0x5a827999;
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = tmp;
+        }
+        for (int t = 20; t < 40; t++) {
+            int tmp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[t] + 0x6ed9eba1;
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = tmp;
+        }
+        for (int t = 40; t < 60; t++) {
+            int tmp = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d)) + e + w[t] + 0x8f1bbcdc;
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = tmp;
+        }
+        for (int t = 60; t < 80; t++) {
+            int tmp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[t] + 0xca62c1d6;
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = tmp;
+        }
+
+        out[0] = h[0] + a;
+        out[1] = h[1] + b;
+        out[2] = h[2] + c;
+        out[3] = h[3] + d;
+        out[4] = h[4] + e;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+/**
+ * HMAC-SHA-256 over int state words
+ */
+final class PureJavaSha256Hmac extends PureJavaHmac {
+    private static final int BLOCK_SIZE = 64;
+    private static final int HASH_WORDS = 8;
+
+    private static final int[] IV = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private final int[] mState = new int[HASH_WORDS];
+    private final int[] mInnerState = new int[HASH_WORDS];
+    private final int[] mOuterState = new int[HASH_WORDS];
+    private final int[] mW = new int[64];
+    private final int[] mAcc = new int[HASH_WORDS];
+
+
+    PureJavaSha256Hmac() {
+        super(BLOCK_SIZE, HASH_WORDS * 4);
+    }
+
+
+    @Override
+    void iterate(byte[] u, byte[] acc, int accOffset, int count) {
+        int[] w = mW;
+        for (int i = 0; i < HASH_WORDS; i++) {
+            w[i] = getInt(u, i * 4);
+            mAcc[i] = getInt(acc, accOffset + i * 4);
+        }
+        // padding of a message which is one key block plus one hash long
+        w[8] = 0x80000000;
+        for (int i = 9; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = (BLOCK_SIZE + HASH_WORDS * 4) * 8;
+
+        for (int n = 0; n < count; n++) {
+            compress(mInnerState, w, w);
+            compress(mOuterState, w, w);
+            for (int i = 0; i < HASH_WORDS; i++) {
+                mAcc[i] ^= w[i];
+            }
+        }
+
+        for (int i = 0; i < HASH_WORDS; i++) {
+            putInt(w[i], u, i * 4);
+            putInt(mAcc[i], acc, accOffset + i * 4);
+        }
+    }
+
+
+    @Override
+    void resetToInitialState() {
+        System.arraycopy(IV, 0, mState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void processBlock(byte[] block, int offset) {
+        for (int i = 0; i < 16; i++) {
+            mW[i] = getInt(block, offset + i * 4);
+        }
+        compress(mState, mW, mState);
+    }
+
+
+    @Override
+    void saveInnerState() {
+        System.arraycopy(mState, 0, mInnerState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void saveOuterState() {
+        System.arraycopy(mState, 0, mOuterState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void restoreInnerState() {
+        System.arraycopy(mInnerState, 0, mState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void restoreOuterState() {
+        System.arraycopy(mOuterState, 0, mState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void writeState(byte[] out, int offset) {
+        for (int i = 0; i < HASH_WORDS; i++) {
+            putInt(mState[i], out, offset + i * 4);
+        }
+    }
+
+
+    /**
+     * Compresses the block in w[0..15] starting from state <code>h</code>. The result is written in
+     * <code>out</code> only after all reads, so <code>out</code> may be <code>h</code> or <code>w</code>.
+     */
+    private static void compress(int[] h, int[] w, int[] out) {
+        for (int t = 16; t < 64; t++) {
+            int w15 = w[t - 15];
+            int w2 = w[t - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        int a = h[0];
+        int b = h[1];
+        int c = h[2];
+        int d = h[3];
+        int e = h[4];
+        int f = h[5];
+        int g = h[6];
+        int hh = h[7];
+
+        for (int t = 0; t < 64; t++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = hh + s1 + ch + K[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+
+            hh = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        out[0] = h[0] + a;
+        out[1] = h[1] + b;
+        out[2] = h[2] + c;
+        out[3] = h[3] + d;
+        out[4] = h[4] + e;
+        out[5] = h[5] + f;
+        out[6] = h[6] + g;
+        out[7] = h[7] + hh;
+    }
+}
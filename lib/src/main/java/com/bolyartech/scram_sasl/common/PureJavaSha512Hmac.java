@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+/**
+ * HMAC-SHA-512 over long state words
+ */
+final class PureJavaSha512Hmac extends PureJavaHmac {
+    private static final int BLOCK_SIZE = 128;
+    private static final int HASH_WORDS = 8;
+
+    private static final long[] IV = {
+            0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+            0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+    };
+
+    private static final long[] K = {
+            0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+            0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+            0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+            0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+            0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+            0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+            0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+            0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+            0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+            0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+            0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+            0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+            0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+            0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+            0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+            0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+            0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+            0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+            0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+            0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+    };
+
+    private final long[] mState = new long[HASH_WORDS];
+    private final long[] mInnerState = new long[HASH_WORDS];
+    private final long[] mOuterState = new long[HASH_WORDS];
+    private final long[] mW = new long[80];
+    private final long[] mAcc = new long[HASH_WORDS];
+
+
+    PureJavaSha512Hmac() {
+        super(BLOCK_SIZE, HASH_WORDS * 8);
+    }
+
+
+    @Override
+    void iterate(byte[] u, byte[] acc, int accOffset, int count) {
+        long[] w = mW;
+        for (int i = 0; i < HASH_WORDS; i++) {
+            w[i] = getLong(u, i * 8);
+            mAcc[i] = getLong(acc, accOffset + i * 8);
+        }
+        // padding of a message which is one key block plus one hash long
+        w[8] = 0x8000000000000000L;
+        for (int i = 9; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = (BLOCK_SIZE + HASH_WORDS * 8) * 8;
+
+        for (int n = 0; n < count; n++) {
+            compress(mInnerState, w, w);
+            compress(mOuterState, w, w);
+            for (int i = 0; i < HASH_WORDS; i++) {
+                mAcc[i] ^= w[i];
+            }
+        }
+
+        for (int i = 0; i < HASH_WORDS; i++) {
+            putLong(w[i], u, i * 8);
+            putLong(mAcc[i], acc, accOffset + i * 8);
+        }
+    }
+
+
+    @Override
+    void resetToInitialState() {
+        System.arraycopy(IV, 0, mState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void processBlock(byte[] block, int offset) {
+        for (int i = 0; i < 16; i++) {
+            mW[i] = getLong(block, offset + i * 8);
+        }
+        compress(mState, mW, mState);
+    }
+
+
+    @Override
+    void saveInnerState() {
+        System.arraycopy(mState, 0, mInnerState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void saveOuterState() {
+        System.arraycopy(mState, 0, mOuterState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void restoreInnerState() {
+        System.arraycopy(mInnerState, 0, mState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void restoreOuterState() {
+        System.arraycopy(mOuterState, 0, mState, 0, HASH_WORDS);
+    }
+
+
+    @Override
+    void writeState(byte[] out, int offset) {
+        for (int i = 0; i < HASH_WORDS; i++) {
+            putLong(mState[i], out, offset + i * 8);
+        }
+    }
+
+
+    /**
+     * Compresses the block in w[0..15] starting from state <code>h</code>. The result is written in
+     * <code>out</code> only after all reads, so <code>out</code> may be <code>h</code> or <code>w</code>.
+     */
+    private static void compress(long[] h, long[] w, long[] out) {
+        for (int t = 16; t < 80; t++) {
+            long w15 = w[t - 15];
+            long w2 = w[t - 2];
+            long s0 = Long.rotateRight(w15, 1) ^ Long.rotateRight(w15, 8) ^ (w15 >>> 7);
+            long s1 = Long.rotateRight(w2, 19) ^ Long.rotateRight(w2, 61) ^ (w2 >>> 6);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        long a = h[0];
+        long b = h[1];
+        long c = h[2];
+        long d = h[3];
+        long e = h[4];
+        long f = h[5];
+        long g = h[6];
+        long hh = h[7];
+
+        for (int t = 0; t < 80; t++) {
+            long s1 = Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41);
+            long ch = (e & f) ^ (~e & g);
+            long t1 = hh + s1 + ch + K[t] + w[t];
+            long s0 = Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39);
+            long maj = (a & b) ^ (a & c) ^ (b & c);
+            long t2 = s0 + maj;
+
+            hh = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        out[0] = h[0] + a;
+        out[1] = h[1] + b;
+        out[2] = h[2] + c;
+        out[3] = h[3] + d;
+        out[4] = h[4] + e;
+        out[5] = h[5] + f;
+        out[6] = h[6] + g;
+        out[7] = h[7] + hh;
+    }
+}
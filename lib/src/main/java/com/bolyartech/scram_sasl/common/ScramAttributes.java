@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+/**
+ * Scans the <code>name=value</code> attributes of SCRAM messages.
+ * <p>
+ * The methods work with offsets into the original message, so the values can be compared or decoded in place
+ * (e.g. with {@link #regionMatches(CharSequence, int, String)} or {@link Base64Codec#decode(CharSequence, int, int)})
+ * without creating substrings. Each attribute is scanned once, so parsing a message takes linear time. The
+ * message may be a String or a view of received bytes like {@link Utf8CharSequence}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class ScramAttributes {
+    private ScramAttributes() {
+        throw new AssertionError("non-instantiable utility class");
+    }
+
+
+    /**
+     * Checks that the attribute at given position has given name
+     *
+     * @param message SCRAM message
+     * @param pos     Start of the attribute
+     * @param name    Attribute name, e.g. 'r'
+     * @return start of the value or -1 if there is no such attribute at <code>pos</code>
+     */
+    public static int valueStart(CharSequence message, int pos, char name) {
+        if (pos + 1 < message.length() && message.charAt(pos) == name && message.charAt(pos + 1) == '=') {
+            return pos + 2;
+        } else {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Finds the end of the attribute value
+     *
+     * @param message    SCRAM message
+     * @param valueStart Start of the value
+     * @return position of the ',' after the value or the length of the message for the last attribute
+     */
+    public static int valueEnd(CharSequence message, int valueStart) {
+        int end = indexOf(message, ',', valueStart);
+        return end != -1 ? end : message.length();
+    }
+
+
+    /**
+     * Finds character
+     *
+     * @param message SCRAM message
+     * @param c       Character to be found
+     * @param from    Position where the search starts
+     * @return position of the character or -1 if it is not found
+     */
+    public static int indexOf(CharSequence message, char c, int from) {
+        if (message instanceof String) {
+            return ((String) message).indexOf(c, from);
+        }
+
+        for (int i = Math.max(from, 0); i < message.length(); i++) {
+            if (message.charAt(i) == c) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Finds the first occurrence of a string
+     *
+     * @param message SCRAM message
+     * @param s       String to be found
+     * @param from    Position where the search starts
+     * @return position of the first occurrence or -1 if it is not found
+     */
+    public static int indexOf(CharSequence message, String s, int from) {
+        if (message instanceof String) {
+            return ((String) message).indexOf(s, from);
+        }
+
+        for (int i = Math.max(from, 0); i <= message.length() - s.length(); i++) {
+            if (regionMatches(message, i, s)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Finds the last occurrence of a string
+     *
+     * @param message SCRAM message
+     * @param s       String to be found
+     * @return position of the last occurrence or -1 if it is not found
+     */
+    public static int lastIndexOf(CharSequence message, String s) {
+        if (message instanceof String) {
+            return ((String) message).lastIndexOf(s);
+        }
+
+        for (int i = message.length() - s.length(); i >= 0; i--) {
+            if (regionMatches(message, i, s)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Checks if the message contains given string at given position
+     *
+     * @param message SCRAM message
+     * @param pos     Position in the message
+     * @param s       Expected string
+     * @return true if the message contains <code>s</code> at <code>pos</code>
+     */
+    public static boolean regionMatches(CharSequence message, int pos, String s) {
+        if (message instanceof String) {
+            return ((String) message).startsWith(s, pos);
+        }
+
+        if (pos < 0 || pos > message.length() - s.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            if (message.charAt(pos + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Parses positive decimal number without sign
+     *
+     * @param message SCRAM message
+     * @param start   Start of the number
+     * @param end     End of the number
+     * @return the number or -1 if it is not a positive int
+     */
+    public static int parsePositiveInt(CharSequence message, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+
+        int ret = 0;
+        for (int i = start; i < end; i++) {
+            char c = message.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+
+            int digit = c - '0';
+            if (ret > (Integer.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            ret = ret * 10 + digit;
+        }
+
+        return ret > 0 ? ret : -1;
+    }
+
+
+    /**
+     * Checks if the value is a valid nonce, i.e. non empty printable ASCII without ','
+     *
+     * @param message SCRAM message
+     * @param start   Start of the value
+     * @param end     End of the value
+     * @return true if the value is valid nonce
+     */
+    public static boolean isValidNonce(CharSequence message, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+
+        for (int i = start; i < end; i++) {
+            char c = message.charAt(i);
+            if (c < 0x21 || c > 0x7e || c == ',') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
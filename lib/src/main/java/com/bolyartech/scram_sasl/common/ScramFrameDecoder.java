@@ -0,0 +1,392 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Splits the bytes read from a stream (e.g. a non-blocking socket channel) into SCRAM messages.
+ * <p>
+ * The read buffers are passed to {@link #decode(ByteBuffer, MessageHandler)} as they come, a message may be split
+ * between them and one buffer may contain several messages. Complete messages in the read buffer are passed to the
+ * handler in place by narrowing the buffer's position and limit, so the handler can be the
+ * <code>onMessage(ByteBuffer)</code> method of the client or server processor. Only the bytes of a message which is
+ * not complete at the end of a read are copied into a buffer which is kept and reused for the next messages. One
+ * decoder is used per connection and it may be pooled together with the processor after {@link #reset()}.
+ * <p>
+ * Objects of this class are not thread safe and {@link #decode(ByteBuffer, MessageHandler)} must not be called
+ * again from the handler, i.e. bytes which arrive while a message is handled should be decoded after it returns.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class ScramFrameDecoder {
+    /**
+     * Default maximum length of a message
+     */
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 16 * 1024;
+
+    private static final int HEADER_LENGTH = 4;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Framing mFraming;
+    private final int mMaxMessageLength;
+    private final boolean mDirect;
+
+    private ByteBuffer mPending;
+    private int mPendingMessageLength = -1;
+    private ByteBuffer mFrameBuffer;
+    private boolean mDecoding;
+
+
+    /**
+     * Creates new ScramFrameDecoder with {@link #DEFAULT_MAX_MESSAGE_LENGTH} and heap buffers
+     *
+     * @param framing How messages are delimited in the stream
+     */
+    public ScramFrameDecoder(Framing framing) {
+        this(framing, DEFAULT_MAX_MESSAGE_LENGTH, false);
+    }
+
+
+    /**
+     * Creates new ScramFrameDecoder
+     *
+     * @param framing          How messages are delimited in the stream
+     * @param maxMessageLength Maximum length of a message in bytes, longer messages are rejected before being
+     *                         buffered
+     * @param direct           true if the internal buffers should be direct, e.g. when they are written to a channel
+     */
+    public ScramFrameDecoder(Framing framing, int maxMessageLength, boolean direct) {
+        if (framing == null) {
+            throw new NullPointerException("framing cannot be null");
+        }
+
+        if (maxMessageLength <= 0) {
+            throw new IllegalArgumentException("maxMessageLength must be positive");
+        }
+
+        mFraming = framing;
+        mMaxMessageLength = maxMessageLength;
+        mDirect = direct;
+    }
+
+
+    /**
+     * Gets the framing
+     *
+     * @return framing
+     */
+    public Framing getFraming() {
+        return mFraming;
+    }
+
+
+    /**
+     * Passes all the complete messages in <code>input</code> to the handler and keeps the rest until the next call.
+     * After the call the position of <code>input</code> is at its limit.
+     * <p>
+     * If the handler or the decoder throws the stream cannot be decoded any further and the connection should be
+     * closed (or the decoder {@link #reset()} before it is used for another one).
+     *
+     * @param input   Bytes read from the stream between the position and the limit
+     * @param handler Handler of the complete messages
+     * @throws ScramException if a message is longer than the maximum or if thrown by the handler
+     */
+    public void decode(ByteBuffer input, MessageHandler handler) throws ScramException {
+        if (input == null) {
+            throw new NullPointerException("input cannot be null");
+        }
+        if (handler == null) {
+            throw new NullPointerException("handler cannot be null");
+        }
+        if (mDecoding) {
+            throw new IllegalStateException("decode() cannot be called from the message handler");
+        }
+
+        mDecoding = true;
+        try {
+            while (input.hasRemaining()) {
+                boolean dispatched;
+                if (hasPending()) {
+                    dispatched = mFraming == Framing.LENGTH_PREFIXED ? completeLengthPrefixed(input, handler) :
+                            completeNewlineDelimited(input, handler);
+                } else {
+                    dispatched = mFraming == Framing.LENGTH_PREFIXED ? dispatchLengthPrefixed(input, handler) :
+                            dispatchNewlineDelimited(input, handler);
+                }
+
+                if (!dispatched) {
+                    break;
+                }
+            }
+        } finally {
+            mDecoding = false;
+        }
+    }
+
+
+    /**
+     * Checks if part of a message is kept for the next call of {@link #decode(ByteBuffer, MessageHandler)}
+     *
+     * @return true if there are buffered bytes
+     */
+    public boolean hasPending() {
+        return mPending != null && mPending.position() > 0;
+    }
+
+
+    /**
+     * Frames message which is to be sent, e.g. one given to the <code>ByteBufferSender</code> of the processor.
+     * The returned buffer is reused by the next call.
+     *
+     * @param message Message between the position and the limit of the buffer, the position is not changed
+     * @return buffer with the frame between its position and limit
+     */
+    public ByteBuffer frame(ByteBuffer message) {
+        int length = message.remaining();
+        int frameLength = mFraming == Framing.LENGTH_PREFIXED ? HEADER_LENGTH + length : length + 1;
+        mFrameBuffer = ensureCapacity(mFrameBuffer, frameLength, 0);
+
+        mFrameBuffer.clear();
+        if (mFraming == Framing.LENGTH_PREFIXED) {
+            putHeader(mFrameBuffer, length);
+            mFrameBuffer.put(message.duplicate());
+        } else {
+            mFrameBuffer.put(message.duplicate());
+            mFrameBuffer.put((byte) '\n');
+        }
+        mFrameBuffer.flip();
+
+        return mFrameBuffer;
+    }
+
+
+    /**
+     * Drops the buffered bytes so the decoder can be used for another connection. The buffers are kept.
+     */
+    public void reset() {
+        if (mPending != null) {
+            mPending.clear();
+        }
+        mPendingMessageLength = -1;
+    }
+
+
+    private boolean dispatchLengthPrefixed(ByteBuffer input, MessageHandler handler) throws ScramException {
+        int start = input.position();
+        int available = input.remaining();
+        if (available >= HEADER_LENGTH) {
+            int length = checkLength(readHeader(input, start));
+            if (available - HEADER_LENGTH >= length) {
+                int end = start + HEADER_LENGTH + length;
+                dispatch(input, start + HEADER_LENGTH, end, end, handler);
+                return true;
+            }
+        }
+
+        appendPending(input, available);
+        return false;
+    }
+
+
+    private boolean dispatchNewlineDelimited(ByteBuffer input, MessageHandler handler) throws ScramException {
+        int start = input.position();
+        int newline = indexOfNewline(input, start);
+        if (newline == -1) {
+            checkNewlinePending(input.remaining());
+            appendPending(input, input.remaining());
+            return false;
+        }
+
+        int end = newline > start && input.get(newline - 1) == '\r' ? newline - 1 : newline;
+        checkLength(end - start);
+        dispatch(input, start, end, newline + 1, handler);
+        return true;
+    }
+
+
+    private boolean completeLengthPrefixed(ByteBuffer input, MessageHandler handler) throws ScramException {
+        if (mPendingMessageLength == -1) {
+            if (mPending.position() < HEADER_LENGTH) {
+                appendPending(input, Math.min(HEADER_LENGTH - mPending.position(), input.remaining()));
+                if (mPending.position() < HEADER_LENGTH) {
+                    return false;
+                }
+            }
+
+            mPendingMessageLength = checkLength(readHeader(mPending, 0));
+        }
+
+        int missing = HEADER_LENGTH + mPendingMessageLength - mPending.position();
+        appendPending(input, Math.min(missing, input.remaining()));
+        if (mPending.position() < HEADER_LENGTH + mPendingMessageLength) {
+            return false;
+        }
+
+        dispatchPending(HEADER_LENGTH, mPending.position(), handler);
+        return true;
+    }
+
+
+    private boolean completeNewlineDelimited(ByteBuffer input, MessageHandler handler) throws ScramException {
+        int newline = indexOfNewline(input, input.position());
+        if (newline == -1) {
+            checkNewlinePending(mPending.position() + input.remaining());
+            appendPending(input, input.remaining());
+            return false;
+        }
+
+        int end = mPending.position() + newline - input.position();
+        checkNewlinePending(end);
+        appendPending(input, newline - input.position());
+        input.position(newline + 1);
+
+        if (mPending.get(end - 1) == '\r') {
+            end--;
+        }
+        checkLength(end);
+        dispatchPending(0, end, handler);
+        return true;
+    }
+
+
+    private void dispatch(ByteBuffer input, int start, int end, int next, MessageHandler handler)
+            throws ScramException {
+
+        int limit = input.limit();
+        try {
+            input.limit(end).position(start);
+            handler.onMessage(input);
+        } finally {
+            input.limit(limit).position(next);
+        }
+    }
+
+
+    private void dispatchPending(int start, int end, MessageHandler handler) throws ScramException {
+        try {
+            mPending.limit(end).position(start);
+            handler.onMessage(mPending);
+        } finally {
+            reset();
+        }
+    }
+
+
+    private void appendPending(ByteBuffer input, int count) {
+        int position = mPending != null ? mPending.position() : 0;
+        mPending = ensureCapacity(mPending, position + count, position);
+
+        int limit = input.limit();
+        input.limit(input.position() + count);
+        mPending.put(input);
+        input.limit(limit);
+    }
+
+
+    private ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity, int keep) {
+        if (buffer != null && buffer.capacity() >= capacity) {
+            return buffer;
+        }
+
+        int newCapacity = Math.max(buffer != null ? buffer.capacity() * 2 : INITIAL_CAPACITY, capacity);
+        ByteBuffer ret = mDirect ? ByteBuffer.allocateDirect(newCapacity) : ByteBuffer.allocate(newCapacity);
+        if (buffer != null && keep > 0) {
+            buffer.flip();
+            ret.put(buffer);
+        }
+
+        return ret;
+    }
+
+
+    private int checkLength(int length) throws ScramException {
+        if (length < 0 || length > mMaxMessageLength) {
+            throw new ScramException("Message too long (max " + mMaxMessageLength + " bytes)");
+        }
+
+        return length;
+    }
+
+
+    private void checkNewlinePending(int length) throws ScramException {
+        // one more byte is allowed for the '\r' of "\r\n"
+        if (length > mMaxMessageLength + 1) {
+            throw new ScramException("Message too long (max " + mMaxMessageLength + " bytes)");
+        }
+    }
+
+
+    private static int indexOfNewline(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+
+    private static int readHeader(ByteBuffer buffer, int pos) {
+        // read byte by byte so the byte order of the buffer does not matter
+        return ((buffer.get(pos) & 0xff) << 24) | ((buffer.get(pos + 1) & 0xff) << 16) |
+                ((buffer.get(pos + 2) & 0xff) << 8) | (buffer.get(pos + 3) & 0xff);
+    }
+
+
+    private static void putHeader(ByteBuffer buffer, int length) {
+        buffer.put((byte) (length >>> 24));
+        buffer.put((byte) (length >>> 16));
+        buffer.put((byte) (length >>> 8));
+        buffer.put((byte) length);
+    }
+
+
+    /**
+     * How the messages are delimited in the stream
+     */
+    public enum Framing {
+        /**
+         * Each message is preceded by its length in bytes as 4 byte unsigned big-endian integer (as in the
+         * security layer of RFC 4422)
+         */
+        LENGTH_PREFIXED,
+        /**
+         * Each message is terminated by '\n' or "\r\n". SCRAM messages never contain these characters.
+         */
+        NEWLINE_DELIMITED
+    }
+
+
+    /**
+     * Receives the decoded messages
+     */
+    public interface MessageHandler {
+        /**
+         * Called for each complete message
+         *
+         * @param message Message between the position and the limit of the buffer. The buffer belongs to the
+         *                decoder or to the caller of {@link #decode(ByteBuffer, MessageHandler)} and is valid only
+         *                during the call.
+         * @throws ScramException if the message cannot be processed
+         */
+        void onMessage(ByteBuffer message) throws ScramException;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+/**
+ * SCRAM mechanisms supported out of the box along with the parameters of their hash functions
+ */
+@SuppressWarnings("unused")
+public enum ScramMechanism {
+    /**
+     * SCRAM-SHA-1
+     */
+    SCRAM_SHA_1("SCRAM-SHA-1", "SHA-1", "HmacSHA1", 64, 20),
+    /**
+     * SCRAM-SHA-256
+     */
+    SCRAM_SHA_256("SCRAM-SHA-256", "SHA-256", "HmacSHA256", 64, 32),
+    /**
+     * SCRAM-SHA-512
+     */
+    SCRAM_SHA_512("SCRAM-SHA-512", "SHA-512", "HmacSHA512", 128, 64);
+
+
+    private final String mName;
+    private final String mDigestName;
+    private final String mHmacName;
+    private final int mBlockSize;
+    private final int mHashSize;
+
+
+    ScramMechanism(String name, String digestName, String hmacName, int blockSize, int hashSize) {
+        mName = name;
+        mDigestName = digestName;
+        mHmacName = hmacName;
+        mBlockSize = blockSize;
+        mHashSize = hashSize;
+    }
+
+
+    /**
+     * Finds the mechanism that uses given HMAC
+     *
+     * @param hmacName HMAC name, e.g. HmacSHA256
+     * @return the mechanism or null if hmacName is not one of the supported HMACs
+     */
+    public static ScramMechanism forHmacName(String hmacName) {
+        for (ScramMechanism mechanism : values()) {
+            if (mechanism.mHmacName.equalsIgnoreCase(hmacName)) {
+                return mechanism;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Gets the IANA name of the mechanism as advertised by the servers
+     *
+     * @return mechanism name, e.g. SCRAM-SHA-256
+     */
+    public String getName() {
+        return mName;
+    }
+
+
+    /**
+     * Gets the name of the digest
+     *
+     * @return digest name as used by {@link java.security.MessageDigest}
+     */
+    public String getDigestName() {
+        return mDigestName;
+    }
+
+
+    /**
+     * Gets the name of the HMAC
+     *
+     * @return HMAC name as used by {@link javax.crypto.Mac}
+     */
+    public String getHmacName() {
+        return mHmacName;
+    }
+
+
+    /**
+     * Gets the block size of the hash function
+     *
+     * @return block size in bytes
+     */
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+
+    /**
+     * Gets the output size of the hash function
+     *
+     * @return hash size in bytes
+     */
+    public int getHashSize() {
+        return mHashSize;
+    }
+}
@@ -19,11 +19,13 @@ package com.bolyartech.scram_sasl.common;
 
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CancellationException;
 
 
 /**
@@ -31,6 +33,11 @@ import java.security.NoSuchAlgorithmException;
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class ScramUtils {
+    /**
+     * Number of iterations between the checks of the {@link CancellationSignal}
+     */
+    public static final int CANCELLATION_CHECK_ITERATIONS = 1024;
+
     private static final byte[] INT_1 = new byte[]{0, 0, 0, 1};
 
 
@@ -41,6 +48,10 @@ public class ScramUtils {
 
     /**
      * Generates salted password.
+     * <p>
+     * For the HMACs of {@link ScramMechanism} the backend returned by {@link CryptoBackends#getBackend} is used.
+     * Other HMACs use plain {@link Mac}. The password is encoded by {@link PasswordEncoder}, i.e. as US-ASCII
+     * unless SASLprep is enabled there.
      *
      * @param password        Clear form password, i.e. what user typed
      * @param salt            Salt to be used
@@ -49,32 +60,292 @@ public class ScramUtils {
      * @return salted password
      * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
      * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     * @throws IllegalArgumentException if SASLprep is enabled and the password contains prohibited characters
      */
     public static byte[] generateSaltedPassword(final String password,
                                                 byte[] salt,
                                                 int iterationsCount,
                                                 String hmacName) throws InvalidKeyException, NoSuchAlgorithmException {
 
+        byte[] passwordBytes = encodePassword(password);
+        try {
+            return generateSaltedPassword(passwordBytes, salt, iterationsCount, hmacName);
+        } finally {
+            PasswordEncoder.release(passwordBytes);
+        }
+    }
 
-        Mac mac = createHmac(password.getBytes(StandardCharsets.US_ASCII), hmacName);
 
-        mac.update(salt);
-        mac.update(INT_1);
-        byte[] result = mac.doFinal();
+    /**
+     * Generates salted password from password given as characters.
+     * <p>
+     * Same as {@link #generateSaltedPassword(String, byte[], int, String)} but prohibited characters are reported
+     * with {@link ScramException}. The encoded password is zeroed before returning.
+     *
+     * @param password        Clear form password, i.e. what user typed
+     * @param salt            Salt to be used
+     * @param iterationsCount Iterations for 'salting'
+     * @param hmacName        HMAC to be used
+     * @return salted password
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     * @throws ScramException           if SASLprep is enabled and the password contains prohibited characters
+     */
+    public static byte[] generateSaltedPassword(final char[] password,
+                                                byte[] salt,
+                                                int iterationsCount,
+                                                String hmacName)
+            throws InvalidKeyException, NoSuchAlgorithmException, ScramException {
+
+        byte[] passwordBytes = PasswordEncoder.encode(password);
+        try {
+            return generateSaltedPassword(passwordBytes, salt, iterationsCount, hmacName);
+        } finally {
+            PasswordEncoder.release(passwordBytes);
+        }
+    }
 
-        byte[] previous = null;
-        for (int i = 1; i < iterationsCount; i++) {
-            mac.update(previous != null ? previous : result);
-            previous = mac.doFinal();
-            for (int x = 0; x < result.length; x++) {
-                result[x] ^= previous[x];
-            }
+
+    /**
+     * Generates salted password from password given as characters.
+     * <p>
+     * Same as {@link #generateSaltedPassword(char[], byte[], int, String)}. The position of <code>password</code>
+     * is not changed.
+     *
+     * @param password        Clear form password, i.e. what user typed
+     * @param salt            Salt to be used
+     * @param iterationsCount Iterations for 'salting'
+     * @param hmacName        HMAC to be used
+     * @return salted password
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     * @throws ScramException           if SASLprep is enabled and the password contains prohibited characters
+     */
+    public static byte[] generateSaltedPassword(final CharBuffer password,
+                                                byte[] salt,
+                                                int iterationsCount,
+                                                String hmacName)
+            throws InvalidKeyException, NoSuchAlgorithmException, ScramException {
+
+        byte[] passwordBytes = PasswordEncoder.encode(password);
+        try {
+            return generateSaltedPassword(passwordBytes, salt, iterationsCount, hmacName);
+        } finally {
+            PasswordEncoder.release(passwordBytes);
         }
+    }
+
+
+    /**
+     * Generates salted password from password which is already encoded, e.g. by {@link PasswordEncoder}
+     *
+     * @param passwordBytes   password encoded by {@link PasswordEncoder}
+     * @param salt            Salt to be used
+     * @param iterationsCount Iterations for 'salting'
+     * @param hmacName        HMAC to be used
+     * @return salted password
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     */
+    public static byte[] generateSaltedPassword(byte[] passwordBytes,
+                                                byte[] salt,
+                                                int iterationsCount,
+                                                String hmacName)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+
+        ScramMechanism mechanism = ScramMechanism.forHmacName(hmacName);
+        if (mechanism != null) {
+            byte[] result = new byte[mechanism.getHashSize()];
+            CryptoBackends.getBackend(mechanism).generateSaltedPassword(passwordBytes,
+                    salt,
+                    iterationsCount,
+                    mechanism,
+                    result,
+                    0);
+
+            return result;
+        }
+
+        Mac mac = ThreadLocalCryptoPool.getMac(hmacName, passwordBytes);
+        byte[] result = new byte[mac.getMacLength()];
+        generateSaltedPassword(mac, salt, iterationsCount, result, 0, new byte[result.length]);
 
         return result;
     }
 
 
+    /**
+     * Generates salted password into caller supplied buffer.
+     * <p>
+     * Same as {@link #generateSaltedPassword(String, byte[], int, String)} but the result is written into
+     * <code>output</code> starting at <code>outputOffset</code>. <code>scratch</code> must be at least as long as
+     * the HMAC output and may be reused between calls. Like the other overloads it uses the backend returned by
+     * {@link CryptoBackends#getBackend}; for {@link CryptoBackends#JCA_MAC} it runs the allocation free {@link Mac}
+     * loop over <code>scratch</code>.
+     *
+     * @param password        Clear form password, i.e. what user typed
+     * @param salt            Salt to be used
+     * @param iterationsCount Iterations for 'salting'
+     * @param hmacName        HMAC to be used
+     * @param output          Buffer where the salted password will be written
+     * @param outputOffset    Offset in <code>output</code>
+     * @param scratch         Working buffer
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     * @throws IllegalArgumentException if SASLprep is enabled and the password contains prohibited characters
+     */
+    public static void generateSaltedPassword(final String password,
+                                              byte[] salt,
+                                              int iterationsCount,
+                                              String hmacName,
+                                              byte[] output,
+                                              int outputOffset,
+                                              byte[] scratch) throws InvalidKeyException, NoSuchAlgorithmException {
+
+        byte[] passwordBytes = encodePassword(password);
+        try {
+            ScramMechanism mechanism = ScramMechanism.forHmacName(hmacName);
+            CryptoBackend backend = mechanism != null ? CryptoBackends.getBackend(mechanism) : CryptoBackends.JCA_MAC;
+            if (backend != CryptoBackends.JCA_MAC) {
+                backend.generateSaltedPassword(passwordBytes, salt, iterationsCount, mechanism, output, outputOffset);
+                return;
+            }
+
+            Mac mac = ThreadLocalCryptoPool.getMac(hmacName, passwordBytes);
+            generateSaltedPassword(mac, salt, iterationsCount, output, outputOffset, scratch);
+        } finally {
+            PasswordEncoder.release(passwordBytes);
+        }
+    }
+
+
+    /**
+     * Generates salted password into caller supplied buffer using already initialized HMAC.
+     * <p>
+     * Every iteration is computed with {@link Mac#doFinal(byte[], int)} into <code>scratch</code> so the loop does
+     * not allocate. <code>mac</code> must be initialized with the password as a key and is left reset.
+     *
+     * @param mac             HMAC initialized with the password
+     * @param salt            Salt to be used
+     * @param iterationsCount Iterations for 'salting'
+     * @param output          Buffer where the salted password will be written
+     * @param outputOffset    Offset in <code>output</code>
+     * @param scratch         Working buffer, at least {@link Mac#getMacLength()} long
+     */
+    public static void generateSaltedPassword(final Mac mac,
+                                              byte[] salt,
+                                              int iterationsCount,
+                                              byte[] output,
+                                              int outputOffset,
+                                              byte[] scratch) {
+
+        int macLength = mac.getMacLength();
+        if (outputOffset < 0 || output.length - outputOffset < macLength) {
+            throw new IllegalArgumentException("output is too short, " + macLength + " bytes are needed");
+        }
+        if (scratch.length < macLength) {
+            throw new IllegalArgumentException("scratch is too short, " + macLength + " bytes are needed");
+        }
+
+        try {
+            mac.update(salt);
+            mac.update(INT_1);
+            mac.doFinal(scratch, 0);
+            System.arraycopy(scratch, 0, output, outputOffset, macLength);
+
+            for (int i = 1; i < iterationsCount; i++) {
+                mac.update(scratch, 0, macLength);
+                mac.doFinal(scratch, 0);
+                for (int x = 0; x < macLength; x++) {
+                    output[outputOffset + x] ^= scratch[x];
+                }
+            }
+        } catch (ShortBufferException e) {
+            // buffer lengths are checked above
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Generates salted password which may be cancelled while running.
+     * <p>
+     * Same as {@link #generateSaltedPassword(byte[], byte[], int, String, CancellationSignal)}, the password is
+     * prepared and encoded like in {@link #generateSaltedPassword(String, byte[], int, String)}.
+     *
+     * @param password        Clear form password, i.e. what user typed
+     * @param salt            Salt to be used
+     * @param iterationsCount Iterations for 'salting'
+     * @param hmacName        HMAC to be used
+     * @param signal          Signal which is checked during the derivation
+     * @return salted password
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     * @throws CancellationException    if <code>signal</code> is cancelled or the thread is interrupted
+     * @throws IllegalArgumentException if SASLprep is enabled and the password contains prohibited characters
+     */
+    public static byte[] generateSaltedPassword(final String password,
+                                                byte[] salt,
+                                                int iterationsCount,
+                                                String hmacName,
+                                                CancellationSignal signal)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+
+        byte[] passwordBytes = encodePassword(password);
+        try {
+            return generateSaltedPassword(passwordBytes, salt, iterationsCount, hmacName, signal);
+        } finally {
+            PasswordEncoder.release(passwordBytes);
+        }
+    }
+
+
+    /**
+     * Generates salted password from password which is already encoded and may be cancelled while running.
+     * <p>
+     * Checks <code>signal</code> and the interrupted status of the current thread every
+     * {@link #CANCELLATION_CHECK_ITERATIONS} iterations, so the CPU is released shortly after the cancellation even
+     * for a huge iterations count. The interrupted status is left set.
+     *
+     * @param passwordBytes   password encoded by {@link PasswordEncoder}
+     * @param salt            Salt to be used
+     * @param iterationsCount Iterations for 'salting'
+     * @param hmacName        HMAC to be used
+     * @param signal          Signal which is checked during the derivation
+     * @return salted password
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     * @throws CancellationException    if <code>signal</code> is cancelled or the thread is interrupted
+     */
+    public static byte[] generateSaltedPassword(byte[] passwordBytes,
+                                                byte[] salt,
+                                                int iterationsCount,
+                                                String hmacName,
+                                                CancellationSignal signal)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+
+        IncrementalPbkdf2 derivation = IncrementalPbkdf2.create(passwordBytes, salt, iterationsCount, hmacName);
+
+        while (!derivation.step(CANCELLATION_CHECK_ITERATIONS)) {
+            if (signal.isCancelled() || Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Salted password derivation cancelled");
+            }
+        }
+
+        return derivation.getSaltedPassword();
+    }
+
+
+    private static byte[] encodePassword(String password) {
+        try {
+            // wrapping does not copy the characters
+            return PasswordEncoder.encode(CharBuffer.wrap(password));
+        } catch (ScramException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+
     /**
      * Creates HMAC
      *
@@ -107,7 +378,14 @@ public class ScramUtils {
     public static byte[] computeHmac(final byte[] key, String hmacName, final String string)
             throws InvalidKeyException, NoSuchAlgorithmException {
 
-        Mac mac = createHmac(key, hmacName);
+        ScramMechanism mechanism = ScramMechanism.forHmacName(hmacName);
+        if (mechanism != null) {
+            return CryptoBackends.getBackend(mechanism).computeHmac(key,
+                    mechanism,
+                    string.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        Mac mac = ThreadLocalCryptoPool.getMac(hmacName, key);
         mac.update(string.getBytes(StandardCharsets.US_ASCII));
         return mac.doFinal();
     }
@@ -139,6 +417,7 @@ public class ScramUtils {
      * @return new password data
      * @throws NoSuchAlgorithmException if hmacName is not supported by the java
      * @throws InvalidKeyException      InvalidKeyException if internal error occur while working with SecretKeySpec
+     * @throws IllegalArgumentException if SASLprep is enabled and the password contains prohibited characters
      */
     public static NewPasswordByteArrayData newPassword(String passwordClearText,
                                                        byte[] salt,
@@ -158,7 +437,7 @@ public class ScramUtils {
                 hmacName);
 
         byte[] clientKey = ScramUtils.computeHmac(saltedPassword, hmacName, "Client Key");
-        byte[] storedKey = MessageDigest.getInstance(digestName).digest(clientKey);
+        byte[] storedKey = ThreadLocalCryptoPool.getMessageDigest(digestName).digest(clientKey);
         byte[] serverKey = ScramUtils.computeHmac(saltedPassword, hmacName, "Server Key");
 
         return new NewPasswordByteArrayData(saltedPassword, salt, clientKey, storedKey, serverKey, iterations);
@@ -173,13 +452,11 @@ public class ScramUtils {
      * @return String data
      */
     public static NewPasswordStringData byteArrayToStringData(NewPasswordByteArrayData ba) {
-        return new NewPasswordStringData(Base64.encodeBytes(ba.saltedPassword,
-                Base64.DONT_BREAK_LINES),
-
-                Base64.encodeBytes(ba.salt, Base64.DONT_BREAK_LINES),
-                Base64.encodeBytes(ba.clientKey, Base64.DONT_BREAK_LINES),
-                Base64.encodeBytes(ba.storedKey, Base64.DONT_BREAK_LINES),
-                Base64.encodeBytes(ba.serverKey, Base64.DONT_BREAK_LINES),
+        return new NewPasswordStringData(Base64Codec.encodeToString(ba.saltedPassword),
+                Base64Codec.encodeToString(ba.salt),
+                Base64Codec.encodeToString(ba.clientKey),
+                Base64Codec.encodeToString(ba.storedKey),
+                Base64Codec.encodeToString(ba.serverKey),
                 ba.iterations
         );
     }
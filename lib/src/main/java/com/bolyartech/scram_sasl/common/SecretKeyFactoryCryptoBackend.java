@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+
+/**
+ * Backend which uses the JDK <code>PBKDF2WithHmacSHA*</code> {@link SecretKeyFactory}.
+ * <p>
+ * The factories take the password as <code>char[]</code> and encode it on their own, so passwords which are not
+ * pure ASCII, empty passwords and salts and non-positive iteration counts are handled by the JCA {@link
+ * javax.crypto.Mac} loop instead. HMACs are computed by the JCA {@link javax.crypto.Mac}.
+ */
+class SecretKeyFactoryCryptoBackend extends JcaMacCryptoBackend {
+    @Override
+    public String getName() {
+        return "jca-secret-key-factory";
+    }
+
+
+    @Override
+    public boolean isAvailable(ScramMechanism mechanism) {
+        try {
+            SecretKeyFactory.getInstance(getAlgorithmName(mechanism));
+            return super.isAvailable(mechanism);
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+
+    @Override
+    public void generateSaltedPassword(byte[] password,
+                                       byte[] salt,
+                                       int iterations,
+                                       ScramMechanism mechanism,
+                                       byte[] output,
+                                       int outputOffset) throws InvalidKeyException, NoSuchAlgorithmException {
+
+        char[] chars = toAsciiChars(password);
+        if (chars == null || salt.length == 0 || iterations < 1) {
+            super.generateSaltedPassword(password, salt, iterations, mechanism, output, outputOffset);
+            return;
+        }
+
+        if (outputOffset < 0 || output.length - outputOffset < mechanism.getHashSize()) {
+            throw new IllegalArgumentException("output is too short, " + mechanism.getHashSize() +
+                    " bytes are needed");
+        }
+
+        PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, mechanism.getHashSize() * 8);
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(getAlgorithmName(mechanism));
+            byte[] key = factory.generateSecret(spec).getEncoded();
+            System.arraycopy(key, 0, output, outputOffset, mechanism.getHashSize());
+            Arrays.fill(key, (byte) 0);
+        } catch (InvalidKeySpecException e) {
+            throw new InvalidKeyException(e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+
+    private static String getAlgorithmName(ScramMechanism mechanism) {
+        return "PBKDF2With" + mechanism.getHmacName();
+    }
+
+
+    private static char[] toAsciiChars(byte[] password) {
+        if (password.length == 0) {
+            return null;
+        }
+
+        char[] chars = new char[password.length];
+        for (int i = 0; i < password.length; i++) {
+            if (password[i] < 0) {
+                Arrays.fill(chars, '\0');
+                return null;
+            }
+            chars[i] = (char) password[i];
+        }
+
+        return chars;
+    }
+}
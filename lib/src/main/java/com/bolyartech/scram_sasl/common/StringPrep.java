@@ -16,6 +16,7 @@
 package com.bolyartech.scram_sasl.common;
 
 
+import java.nio.CharBuffer;
 import java.util.*;
 
 
@@ -438,7 +439,7 @@ public class StringPrep {
 
     /** Return the first character index in s which is in {@link CharClass}, or -1 if
      * no character is in the class.*/
-    static int containsCharacterInClass(String s, CharClass charClass) {
+    static int containsCharacterInClass(CharSequence s, CharClass charClass) {
         for (int i = 0; i < s.length(); ) {
             int c = Character.codePointAt(s, i);
             if (charClass.isCharInClass(c))
@@ -452,7 +453,7 @@ public class StringPrep {
 
     /** Perform RTL verification according to rfc3454 section 6.  On failure,
      *  throw a subclass of {@link StringPrepRTLError}. */
-    protected static void verifyRTL(String s) throws StringPrepRTLError {
+    protected static void verifyRTL(CharSequence s) throws StringPrepRTLError {
         int containsRAL = containsCharacterInClass(s, D1);
         if (containsRAL != -1) {
             // 2) If a string contains any RandALCat character, the string MUST NOT
@@ -515,6 +516,45 @@ public class StringPrep {
     }
 
 
+    /** Apply SASLPrep to {@code s} like {@link #prepAsQueryString(String)} without creating Strings, unless
+     *  {@code s} is not in NFKC after the mapping. The mapped characters are written into {@code buffer}, which
+     *  must be at least {@code s.length()} long; the caller should zero it after use.
+     *  @return the prepared characters, in {@code buffer} or in a String if normalization was needed */
+    static CharSequence prepAsQueryString(CharSequence s, char[] buffer) throws StringPrepError {
+        // 1) Map
+        // Both mappings are applied in one pass: B.1 first, as in prepAsQueryString(String), and a mapped
+        // code point never takes more chars than the original one.
+        int length = 0;
+        for (int i = 0; i < s.length(); ) {
+            int c = Character.codePointAt(s, i);
+            int charCount = Character.charCount(c);
+            if (!B1.isCharInClass(c)) {
+                if (C12.isCharInClass(c)) {
+                    buffer[length++] = ' ';
+                } else {
+                    for (int j = i; j < i + charCount; j++)
+                        buffer[length++] = s.charAt(j);
+                }
+            }
+            i += charCount;
+        }
+
+        // 2) Normalize
+        CharSequence prepared = CharBuffer.wrap(buffer, 0, length);
+        if (!Normalizer.isNormalized(prepared))
+            prepared = Normalizer.normalize(prepared);
+
+        // 3) Prohibit
+        if (containsCharacterInClass(prepared, saslProhibited) != -1)
+            throw new StringPrepProhibitedCharacter();
+
+        // 4) Check bidi
+        verifyRTL(prepared);
+
+        return prepared;
+    }
+
+
     public static boolean isContainingProhibitedCharacters(String s) {
         int idx = containsCharacterInClass(s, saslProhibited);
         return idx != -1;
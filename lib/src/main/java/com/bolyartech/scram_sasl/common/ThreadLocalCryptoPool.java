@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Per-thread pool of {@link Mac} and {@link MessageDigest} instances.
+ * <p>
+ * <code>Mac.getInstance()</code> and <code>MessageDigest.getInstance()</code> go through the synchronized provider
+ * lookup which becomes a point of contention when many threads authenticate at the same time. This pool keeps
+ * one instance per algorithm per thread and hands it out ready to use.
+ * <p>
+ * The returned instance is valid only on the calling thread and only until the next call for the same algorithm
+ * on that thread, so it must not be kept or passed to other code which may use the pool.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class ThreadLocalCryptoPool {
+    private static final String SUN_JCE = "SunJCE";
+
+    private static final ThreadLocal<Map<String, Mac>> MACS = new ThreadLocal<Map<String, Mac>>() {
+        @Override
+        protected Map<String, Mac> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private static final ThreadLocal<ReusableKey> KEYS = new ThreadLocal<ReusableKey>() {
+        @Override
+        protected ReusableKey initialValue() {
+            return new ReusableKey();
+        }
+    };
+
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS =
+            new ThreadLocal<Map<String, MessageDigest>>() {
+                @Override
+                protected Map<String, MessageDigest> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+
+    private ThreadLocalCryptoPool() {
+        throw new AssertionError("non-instantiable utility class");
+    }
+
+
+    /**
+     * Gets the HMAC of the current thread initialized with given key
+     *
+     * @param hmacName HMAC name
+     * @param key      key
+     * @return Mac
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     */
+    public static Mac getMac(String hmacName, byte[] key) throws NoSuchAlgorithmException, InvalidKeyException {
+        Map<String, Mac> macs = MACS.get();
+        Mac mac = macs.get(hmacName);
+        if (mac == null) {
+            mac = Mac.getInstance(hmacName);
+            macs.put(hmacName, mac);
+        } else if (key.length > 0 && SUN_JCE.equals(mac.getProvider().getName())) {
+            // SunJCE reads the key with getEncoded() and does not keep it, so the key object can be reused
+            ReusableKey reusableKey = KEYS.get();
+            reusableKey.set(key, hmacName);
+            try {
+                mac.init(reusableKey);
+            } finally {
+                reusableKey.clear();
+            }
+            return mac;
+        }
+
+        mac.init(new SecretKeySpec(key, hmacName));
+        return mac;
+    }
+
+
+    /**
+     * Creates an own HMAC initialized with given key.
+     * <p>
+     * Unlike {@link #getMac(String, byte[])} the returned instance may be kept by the caller. It is cloned from the
+     * pooled one, so the provider lookup is skipped unless the provider does not support cloning.
+     *
+     * @param hmacName HMAC name
+     * @param key      key
+     * @return Mac
+     * @throws InvalidKeyException      if internal error occur while working with SecretKeySpec
+     * @throws NoSuchAlgorithmException if hmacName is not supported by the java
+     */
+    public static Mac newMac(String hmacName, byte[] key) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac pooled = getMac(hmacName, key);
+        try {
+            return (Mac) pooled.clone();
+        } catch (CloneNotSupportedException e) {
+            Mac mac = Mac.getInstance(hmacName);
+            mac.init(new SecretKeySpec(key, hmacName));
+            return mac;
+        }
+    }
+
+
+    /**
+     * Gets the reset digest of the current thread
+     *
+     * @param digestName Digest name
+     * @return MessageDigest
+     * @throws NoSuchAlgorithmException if digestName is not supported by the java
+     */
+    public static MessageDigest getMessageDigest(String digestName) throws NoSuchAlgorithmException {
+        Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest digest = digests.get(digestName);
+        if (digest == null) {
+            digest = MessageDigest.getInstance(digestName);
+            digests.put(digestName, digest);
+        } else {
+            digest.reset();
+        }
+
+        return digest;
+    }
+
+
+    /**
+     * Removes the instances pooled for the current thread.
+     * <p>
+     * Use it before returning a thread to a pool which outlives the application, e.g. in a servlet container.
+     */
+    public static void clear() {
+        MACS.remove();
+        KEYS.remove();
+        DIGESTS.remove();
+    }
+
+
+    /**
+     * Raw key which is re-pointed at each key instead of copying it like {@link SecretKeySpec}. The array returned by
+     * {@link #getEncoded()} is reused as well, the provider zeroes it after reading.
+     */
+    private static class ReusableKey implements SecretKey {
+        private static final long serialVersionUID = 1L;
+
+        private byte[] mKey;
+        private byte[] mEncoded = new byte[0];
+        private String mAlgorithm;
+
+
+        void set(byte[] key, String algorithm) {
+            mKey = key;
+            mAlgorithm = algorithm;
+        }
+
+
+        void clear() {
+            mKey = null;
+            Arrays.fill(mEncoded, (byte) 0);
+        }
+
+
+        @Override
+        public String getAlgorithm() {
+            return mAlgorithm;
+        }
+
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+
+        @Override
+        public byte[] getEncoded() {
+            if (mEncoded.length != mKey.length) {
+                mEncoded = new byte[mKey.length];
+            }
+
+            System.arraycopy(mKey, 0, mEncoded, 0, mKey.length);
+            return mEncoded;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+/**
+ * UTF-8 encoding of SCRAM messages without intermediate Strings or arrays.
+ * <p>
+ * Like {@link String#getBytes(java.nio.charset.Charset)} an unpaired surrogate is encoded as '?'.
+ */
+final class Utf8 {
+    private Utf8() {
+        throw new AssertionError("non-instantiable utility class");
+    }
+
+
+    /**
+     * Computes the length of the encoded characters
+     *
+     * @param s     characters
+     * @param start start of the characters
+     * @param end   end of the characters (exclusive)
+     * @return length in bytes
+     */
+    static int encodedLength(CharSequence s, int start, int end) {
+        int length = end - start;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    length += 1;
+                } else if (isSurrogatePair(s, i, end)) {
+                    // 4 bytes for 2 characters
+                    length += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    length += 2;
+                }
+            }
+        }
+
+        return length;
+    }
+
+
+    /**
+     * Encodes characters into an array which has room for {@link #encodedLength(CharSequence, int, int)} bytes
+     *
+     * @param s     characters
+     * @param start start of the characters
+     * @param end   end of the characters (exclusive)
+     * @param dst   destination
+     * @param pos   position in <code>dst</code>
+     * @return position in <code>dst</code> after the encoded characters
+     */
+    static int encode(CharSequence s, int start, int end, byte[] dst, int pos) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[pos++] = (byte) (0xc0 | (c >> 6));
+                dst[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (isSurrogatePair(s, i, end)) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst[pos++] = (byte) (0xf0 | (cp >> 18));
+                dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                dst[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                dst[pos++] = (byte) '?';
+            } else {
+                dst[pos++] = (byte) (0xe0 | (c >> 12));
+                dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dst[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        return pos;
+    }
+
+
+    /**
+     * Computes the encoded length of single character
+     *
+     * @param c character
+     * @return length in bytes
+     */
+    static int encodedLength(char c) {
+        return c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isSurrogate(c) ? 1 : 3;
+    }
+
+
+    /**
+     * Encodes single character, an unpaired surrogate as '?'
+     *
+     * @param c   character
+     * @param dst destination
+     * @param pos position in <code>dst</code>
+     * @return position in <code>dst</code> after the encoded character
+     */
+    static int encode(char c, byte[] dst, int pos) {
+        if (c < 0x80) {
+            dst[pos++] = (byte) c;
+        } else if (c < 0x800) {
+            dst[pos++] = (byte) (0xc0 | (c >> 6));
+            dst[pos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+            dst[pos++] = (byte) '?';
+        } else {
+            dst[pos++] = (byte) (0xe0 | (c >> 12));
+            dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            dst[pos++] = (byte) (0x80 | (c & 0x3f));
+        }
+
+        return pos;
+    }
+
+
+    private static boolean isSurrogatePair(CharSequence s, int i, int end) {
+        return Character.isHighSurrogate(s.charAt(i)) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1));
+    }
+}
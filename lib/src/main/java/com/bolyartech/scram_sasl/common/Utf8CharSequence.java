@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Characters of a UTF-8 SCRAM message read straight from the remaining bytes of a {@link ByteBuffer}.
+ * <p>
+ * Any UTF-8 message is accepted. When all bytes are below 0x80, which is the usual case, each byte is one character
+ * and the bytes are read with absolute gets, so heap and direct buffers work alike and the buffer's position is not
+ * changed. A message with other characters is decoded once by {@link #wrap(ByteBuffer)}. The view is valid only
+ * while the buffer content is not changed; {@link #toString()} and {@link #subSequence(int, int)} copy the
+ * characters into Strings. One instance may be reused for many messages with {@link #wrap(ByteBuffer)}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class Utf8CharSequence implements CharSequence {
+    private ByteBuffer mBuffer;
+    private int mStart;
+    private int mLength;
+    // the message decoded from UTF-8 if it has multi-byte characters, null otherwise
+    private String mDecoded;
+
+
+    /**
+     * Makes this object a view of the remaining bytes of <code>buffer</code>
+     *
+     * @param buffer buffer with the message between its position and limit
+     * @return this object
+     */
+    public Utf8CharSequence wrap(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new NullPointerException("buffer cannot be null");
+        }
+
+        mBuffer = buffer;
+        mStart = buffer.position();
+        mLength = buffer.remaining();
+        mDecoded = null;
+        for (int i = 0; i < mLength; i++) {
+            if (buffer.get(mStart + i) < 0) {
+                byte[] bytes = new byte[mLength];
+                buffer.duplicate().get(bytes);
+                mDecoded = new String(bytes, StandardCharsets.UTF_8);
+                mLength = mDecoded.length();
+                break;
+            }
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Drops the reference to the buffer
+     */
+    public void clear() {
+        mBuffer = null;
+        mStart = 0;
+        mLength = 0;
+        mDecoded = null;
+    }
+
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+
+        return mDecoded != null ? mDecoded.charAt(index) : (char) mBuffer.get(mStart + index);
+    }
+
+
+    @Override
+    public String subSequence(int start, int end) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + mLength);
+        }
+
+        if (mDecoded != null) {
+            return mDecoded.substring(start, end);
+        }
+
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) mBuffer.get(mStart + start + i);
+        }
+
+        return new String(chars);
+    }
+
+
+    @Override
+    public String toString() {
+        return subSequence(0, mLength);
+    }
+
+
+    /**
+     * Encodes message in UTF-8 into a buffer which is reused between the messages
+     *
+     * @param message SCRAM message
+     * @param buffer  buffer to be reused, may be null
+     * @return <code>buffer</code> or a new buffer if it is too small, flipped and ready to be read
+     */
+    public static ByteBuffer encode(CharSequence message, ByteBuffer buffer) {
+        int length = Utf8.encodedLength(message, 0, message.length());
+        if (buffer == null || buffer.capacity() < length) {
+            int capacity = buffer != null ? Math.max(buffer.capacity() * 2, length) : length;
+            buffer = buffer != null && buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) :
+                    ByteBuffer.allocate(capacity);
+        }
+
+        buffer.clear();
+        if (length == message.length()) {
+            // single byte characters only, apart from unpaired surrogates which are encoded as '?'
+            for (int i = 0; i < length; i++) {
+                char c = message.charAt(i);
+                buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+            }
+        } else if (buffer.hasArray()) {
+            Utf8.encode(message, 0, message.length(), buffer.array(), buffer.arrayOffset());
+            buffer.position(length);
+        } else {
+            byte[] bytes = new byte[length];
+            Utf8.encode(message, 0, message.length(), bytes, 0);
+            buffer.put(bytes);
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+}
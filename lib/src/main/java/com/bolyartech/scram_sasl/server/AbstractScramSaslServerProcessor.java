@@ -20,7 +20,9 @@ package com.bolyartech.scram_sasl.server;
 
 import com.bolyartech.scram_sasl.common.ScramException;
 import com.bolyartech.scram_sasl.common.ScramUtils;
+import com.bolyartech.scram_sasl.common.Utf8CharSequence;
 
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 
@@ -31,17 +33,22 @@ import java.util.UUID;
 @SuppressWarnings({"WeakerAccess", "unused"})
 abstract class AbstractScramSaslServerProcessor implements ScramSaslServerProcessor {
 
-    private final long mConnectionId;
-    private final Listener mListener;
+    private long mConnectionId;
+    private Listener mListener;
     private final UserDataLoader mUserDataLoader;
-    private final Sender mSender;
+    private Sender mSender;
+    private ByteBufferSender mByteBufferSender;
+    private ByteBuffer mWriteBuffer;
+    private final Utf8CharSequence mReadView = new Utf8CharSequence();
 
     private State mState = State.INITIAL;
 
     private volatile boolean mIsSuccess = false;
     private volatile boolean mAborted = false;
     private String mUsername;
-    private ScramServerFunctionality mScramServerFunctionality;
+    private UserDataRequest mUserDataRequest;
+    private final String mHmacName;
+    private ScramServerFunctionalityImpl mScramServerFunctionality;
 
 
     /**
@@ -102,6 +109,7 @@ abstract class AbstractScramSaslServerProcessor implements ScramSaslServerProces
             throw new NullPointerException("serverPartNonce cannot be null or empty");
         }
         mScramServerFunctionality = new ScramServerFunctionalityImpl(digestName, hmacName, serverPartNonce);
+        mHmacName = hmacName;
 
         mConnectionId = connectionId;
         mListener = listener;
@@ -111,12 +119,26 @@ abstract class AbstractScramSaslServerProcessor implements ScramSaslServerProces
 
 
     public synchronized void onMessage(String message) throws ScramException {
+        handleMessage(message);
+    }
+
+
+    @Override
+    public synchronized void onMessage(ByteBuffer message) throws ScramException {
+        try {
+            handleMessage(mReadView.wrap(message));
+        } finally {
+            mReadView.clear();
+            message.position(message.limit());
+        }
+    }
+
+
+    private void handleMessage(CharSequence message) throws ScramException {
         if (mState != State.ENDED) {
             switch (mState) {
                 case INITIAL:
-                    if (handleClientFirst(message)) {
-                        mState = State.WAITING_FOR_USER_DATA;
-                    } else {
+                    if (!handleClientFirst(message)) {
                         mState = State.ENDED;
                         notifyFail();
                     }
@@ -129,7 +151,7 @@ abstract class AbstractScramSaslServerProcessor implements ScramSaslServerProces
                     mState = State.ENDED;
                     String msg = handleClientFinal(message);
                     if (msg != null) {
-                        mSender.sendMessage(mConnectionId, msg);
+                        send(msg);
                         mIsSuccess = true;
                         mListener.onSuccess(mConnectionId);
                     } else {
@@ -141,11 +163,112 @@ abstract class AbstractScramSaslServerProcessor implements ScramSaslServerProces
     }
 
 
+    /**
+     * Prepares the processor for a new authentication on the same connection
+     * @throws IllegalStateException if a plain {@link UserDataLoader} is still loading the user data
+     */
+    public void reset() {
+        reset(mConnectionId, mListener, mSender, mByteBufferSender);
+    }
+
+
+    /**
+     * Prepares the processor for a new authentication, e.g. when the processor is taken from
+     * {@link ScramServerProcessorPool}. The sender set with {@link #setByteBufferSender(ByteBufferSender)} is
+     * removed.
+     * <p>
+     * A {@link UserDataCallbackLoader} gets a callback bound to one authentication, so user data which is still
+     * being loaded for the previous authentication is ignored when it arrives. A plain {@link UserDataLoader} gets
+     * the processor itself and the data could not be told apart, so the processor cannot be reset while it loads.
+     * @param connectionId ID of the client connection
+     * @param listener Listener
+     * @param sender Sender used to send messages to the clients
+     * @throws IllegalStateException if a plain {@link UserDataLoader} is still loading the user data
+     */
+    public void reset(long connectionId, Listener listener, Sender sender) {
+        reset(connectionId, listener, sender, null);
+    }
+
+
+    private synchronized void reset(long connectionId,
+                                    Listener listener,
+                                    Sender sender,
+                                    ByteBufferSender byteBufferSender) {
+
+        if (listener == null) {
+            throw new NullPointerException("listener cannot be null");
+        }
+        if (sender == null) {
+            throw new NullPointerException("sender cannot be null");
+        }
+        if (mUserDataRequest != null && !(mUserDataLoader instanceof UserDataCallbackLoader)) {
+            throw new IllegalStateException("Cannot reset while the user data is loading");
+        }
+
+        mScramServerFunctionality.reset();
+        mConnectionId = connectionId;
+        mListener = listener;
+        mSender = sender;
+        mByteBufferSender = byteBufferSender;
+        mState = State.INITIAL;
+        mIsSuccess = false;
+        mAborted = false;
+        mUsername = null;
+        mUserDataRequest = null;
+    }
+
+
+    /**
+     * Sets sender which gets the messages as bytes instead of {@link Sender}. The messages are encoded into
+     * a buffer which is reused by this processor, so no Strings are passed to the network layer.
+     * @param sender Sender to be used, null in order to use the {@link Sender} again
+     */
+    public synchronized void setByteBufferSender(ByteBufferSender sender) {
+        mByteBufferSender = sender;
+    }
+
+
     @Override
     public synchronized void onUserDataLoaded(UserData data) {
+        if (mUserDataRequest != null) {
+            onUserDataLoaded(mUserDataRequest, data);
+        }
+    }
+
+
+    /**
+     * Checks if the user data requested from the {@link UserDataLoader} has not arrived yet
+     * @return true if the loader has not called back yet
+     */
+    public synchronized boolean isLoadingUserData() {
+        return mUserDataRequest != null;
+    }
+
+
+    /**
+     * Gets the HMAC of the mechanism
+     * @return HMAC name, e.g. "HmacSHA256"
+     */
+    String getHmacName() {
+        return mHmacName;
+    }
+
+
+    private synchronized void onUserDataLoaded(UserDataRequest request, UserData data) {
+        if (request != mUserDataRequest) {
+            // the processor is reset meanwhile, the data is for an earlier authentication
+            return;
+        }
+
+        mUserDataRequest = null;
+        if (mState != State.WAITING_FOR_USER_DATA) {
+            // aborted meanwhile
+            return;
+        }
+
         String serverFirstMessage = mScramServerFunctionality.prepareFirstMessage(data);
         mState = State.SERVER_FIRST_SENT;
-        mSender.sendMessage(mConnectionId, serverFirstMessage);
+        send(serverFirstMessage);
     }
 
 
@@ -194,7 +317,7 @@ abstract class AbstractScramSaslServerProcessor implements ScramSaslServerProces
     }
 
 
-    private String handleClientFinal(String message) throws ScramException {
+    private String handleClientFinal(CharSequence message) throws ScramException {
         mState = State.ENDED;
         String finalMessage = mScramServerFunctionality.prepareFinalMessage(message);
         if (finalMessage != null) {
@@ -207,11 +330,18 @@ abstract class AbstractScramSaslServerProcessor implements ScramSaslServerProces
     }
 
 
-    private boolean handleClientFirst(String message) {
+    private boolean handleClientFirst(CharSequence message) {
         mUsername = mScramServerFunctionality.handleClientFirstMessage(message);
 
         if (mUsername != null) {
-            mUserDataLoader.loadUserData(mUsername, mConnectionId, this);
+            // set before loading, the loader may call onUserDataLoaded() synchronously
+            mState = State.WAITING_FOR_USER_DATA;
+            mUserDataRequest = new UserDataRequest();
+            if (mUserDataLoader instanceof UserDataCallbackLoader) {
+                ((UserDataCallbackLoader) mUserDataLoader).loadUserData(mUsername, mConnectionId, mUserDataRequest);
+            } else {
+                mUserDataLoader.loadUserData(mUsername, mConnectionId, this);
+            }
             return true;
         } else {
             return false;
@@ -219,6 +349,16 @@ abstract class AbstractScramSaslServerProcessor implements ScramSaslServerProces
     }
 
 
+    private void send(String msg) {
+        if (mByteBufferSender != null) {
+            mWriteBuffer = Utf8CharSequence.encode(msg, mWriteBuffer);
+            mByteBufferSender.sendMessage(mConnectionId, mWriteBuffer);
+        } else {
+            mSender.sendMessage(mConnectionId, msg);
+        }
+    }
+
+
     private void notifySuccess() {
         mListener.onSuccess(mConnectionId);
     }
@@ -229,6 +369,19 @@ abstract class AbstractScramSaslServerProcessor implements ScramSaslServerProces
     }
 
 
+    /**
+     * Pending load of the user data of one authentication. It is passed to {@link UserDataCallbackLoader}s, so the
+     * data is applied only to the authentication it is loaded for and not to a later one after the processor is
+     * reset (e.g. reused by {@link ScramServerProcessorPool}).
+     */
+    private final class UserDataRequest implements UserDataCallback {
+        @Override
+        public void onUserDataLoaded(UserData data) {
+            AbstractScramSaslServerProcessor.this.onUserDataLoaded(this, data);
+        }
+    }
+
+
     private enum State {
         INITIAL,
         WAITING_FOR_USER_DATA,
@@ -19,12 +19,15 @@ package com.bolyartech.scram_sasl.server;
 
 import com.bolyartech.scram_sasl.common.ScramException;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 
 /**
  * Provides server side processing of the SCRAM SASL authentication
  */
 @SuppressWarnings("unused")
-public interface ScramSaslServerProcessor {
+public interface ScramSaslServerProcessor extends UserDataCallback {
     /**
      * Called when there is message from the client
      *
@@ -33,11 +36,28 @@ public interface ScramSaslServerProcessor {
      */
     void onMessage(String message) throws ScramException;
 
+    /**
+     * Called when there is message from the client as bytes, e.g. in the read buffer of a network framework.
+     * The message is parsed straight from the buffer (heap or direct) between its position and limit. After
+     * the call the position is at the limit.
+     * <p>
+     * The default implementation decodes the message from UTF-8 and passes it to {@link #onMessage(String)}.
+     *
+     * @param message Message
+     * @throws ScramException if there is a unrecoverable problem during processing
+     */
+    default void onMessage(ByteBuffer message) throws ScramException {
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        onMessage(new String(bytes, StandardCharsets.UTF_8));
+    }
+
     /**
      * Called when {@link UserData} is loaded by {@link UserDataLoader}
      *
      * @param data User data
      */
+    @Override
     void onUserDataLoaded(UserData data);
 
     /**
@@ -98,6 +118,28 @@ public interface ScramSaslServerProcessor {
         void loadUserData(String username, long connectionId, ScramSaslServerProcessor processor);
     }
 
+    /**
+     * Loader which gets a callback bound to one authentication instead of the processor.
+     * <p>
+     * Data passed to the callback after the processor is reset is ignored, so the processor may be reset or
+     * recycled by {@link ScramServerProcessorPool} while the data is still loading.
+     */
+    interface UserDataCallbackLoader extends UserDataLoader {
+        /**
+         * Called when user data is needed
+         *
+         * @param username     Username
+         * @param connectionId ID of the connection
+         * @param callback     Callback of the current authentication
+         */
+        void loadUserData(String username, long connectionId, UserDataCallback callback);
+
+        @Override
+        default void loadUserData(String username, long connectionId, ScramSaslServerProcessor processor) {
+            loadUserData(username, connectionId, (UserDataCallback) processor);
+        }
+    }
+
     /**
      * Listener for success or failure of the SCRAM SASL authentication
      */
@@ -130,4 +172,19 @@ public interface ScramSaslServerProcessor {
          */
         void sendMessage(long connectionId, String msg);
     }
+
+
+    /**
+     * Provides functionality for sending message to the client as bytes
+     */
+    interface ByteBufferSender {
+        /**
+         * Sends message to the client identified by connectionId
+         *
+         * @param connectionId ID of the client connection
+         * @param msg          Message between the position and the limit of the buffer. The buffer is reused by
+         *                     the processor, so its content must be written or copied before returning.
+         */
+        void sendMessage(long connectionId, ByteBuffer msg);
+    }
 }
@@ -18,17 +18,18 @@
 package com.bolyartech.scram_sasl.server;
 
 
-import com.bolyartech.scram_sasl.common.Base64;
+import com.bolyartech.scram_sasl.common.AuthMessage;
+import com.bolyartech.scram_sasl.common.Base64Codec;
+import com.bolyartech.scram_sasl.common.ScramAttributes;
 import com.bolyartech.scram_sasl.common.ScramException;
 import com.bolyartech.scram_sasl.common.ScramUtils;
+import com.bolyartech.scram_sasl.common.ThreadLocalCryptoPool;
+import com.bolyartech.scram_sasl.common.Utf8CharSequence;
 
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 /**
@@ -36,19 +37,24 @@ import java.util.regex.Pattern;
  */
 @SuppressWarnings("unused")
 public class ScramServerFunctionalityImpl implements ScramServerFunctionality {
-    private static final Pattern
-            CLIENT_FIRST_MESSAGE = Pattern.compile("^(([pny])=?([^,]*),([^,]*),)(m?=?[^,]*,?n=([^,]*),r=([^,]*),?.*)$");
-    private static final Pattern
-            CLIENT_FINAL_MESSAGE = Pattern.compile("(c=([^,]*),r=([^,]*)),p=(.*)$");
+    private static final int INITIAL_BUILDER_CAPACITY = 256;
+
 
 
     private final String mDigestName;
     private final String mHmacName;
-    private final String mServerPartNonce;
+    private final StringBuilder mBuilder = new StringBuilder(INITIAL_BUILDER_CAPACITY);
+    private final AuthMessage mAuthMessage = new AuthMessage();
+    // decoded proof and keys, reused between the authentications
+    private byte[] mProof;
+    private byte[] mStoredKey;
+    private byte[] mServerKey;
+    private String mServerPartNonce;
 
     private boolean mIsSuccessful = false;
     private State mState = State.INITIAL;
     private String mClientFirstMessageBare;
+    private String mAuthorizationId;
     private String mNonce;
     private String mServerFirstMessage;
     private UserData mUserData;
@@ -89,21 +95,128 @@ public class ScramServerFunctionalityImpl implements ScramServerFunctionality {
 
 
     /**
-     * Handles client's first message
+     * Prepares this object for a new authentication with a new random server part of the nonce
+     */
+    public void reset() {
+        reset(UUID.randomUUID().toString());
+    }
+
+
+    /**
+     * Prepares this object for a new authentication
+     * @param serverPartNonce Server's part of the nonce
+     */
+    public void reset(String serverPartNonce) {
+        if (ScramUtils.isNullOrEmpty(serverPartNonce)) {
+            throw new NullPointerException("serverPartNonce cannot be null or empty");
+        }
+
+        mServerPartNonce = serverPartNonce;
+        mIsSuccessful = false;
+        mState = State.INITIAL;
+        mClientFirstMessageBare = null;
+        mAuthorizationId = null;
+        mNonce = null;
+        mServerFirstMessage = null;
+        mUserData = null;
+        mAuthMessage.clear();
+    }
+
+
+    /**
+     * Handles client's first message.
+     * <p>
+     * The message is parsed in a single pass: GS2 header with optional authorization identity (<code>a=</code>),
+     * optional <code>m=</code> extension, username with <code>=2C</code> and <code>=3D</code> decoded, nonce and
+     * optional trailing extensions.
      * @param message Client's first message
-     * @return username extracted from the client message
+     * @return username extracted from the client message or null if the message is not valid
      */
     @Override
     public String handleClientFirstMessage(String message) {
-        Matcher m = CLIENT_FIRST_MESSAGE.matcher(message);
-        if (!m.matches()) {
+        return handleClientFirstMessage((CharSequence) message);
+    }
+
+
+    /**
+     * Handles client's first message given as characters, e.g. {@link Utf8CharSequence} over the received bytes.
+     * Only the parts which are kept are copied.
+     * @param message Client's first message
+     * @return username extracted from the client message or null if the message is not valid
+     */
+    public String handleClientFirstMessage(CharSequence message) {
+        int length = message.length();
+
+        // gs2-cbind-flag
+        int pos;
+        if (length > 1 && (message.charAt(0) == 'n' || message.charAt(0) == 'y') && message.charAt(1) == ',') {
+            pos = 2;
+        } else if (length > 2 && message.charAt(0) == 'p' && message.charAt(1) == '=') {
+            pos = ScramAttributes.indexOf(message, ',', 2) + 1;
+            if (pos == 0) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+
+        // [authzid]
+        int end = ScramAttributes.indexOf(message, ',', pos);
+        if (end == -1) {
+            return null;
+        }
+        String authorizationId = null;
+        if (end > pos) {
+            if (!ScramAttributes.regionMatches(message, pos, "a=")) {
+                return null;
+            }
+            authorizationId = decodeSaslName(message, pos + 2, end);
+            if (authorizationId == null) {
+                return null;
+            }
+        }
+
+        // client-first-message-bare
+        int bareStart = end + 1;
+        pos = bareStart;
+        if (ScramAttributes.regionMatches(message, pos, "m=")) {
+            pos = ScramAttributes.indexOf(message, ',', pos) + 1;
+            if (pos == 0) {
+                return null;
+            }
+        }
+
+        if (!ScramAttributes.regionMatches(message, pos, "n=")) {
+            return null;
+        }
+        end = ScramAttributes.indexOf(message, ',', pos);
+        if (end == -1) {
+            return null;
+        }
+        String username = decodeSaslName(message, pos + 2, end);
+        if (username == null) {
+            return null;
+        }
+
+        pos = end + 1;
+        if (!ScramAttributes.regionMatches(message, pos, "r=")) {
+            return null;
+        }
+        pos += 2;
+        end = ScramAttributes.indexOf(message, ',', pos);
+        if (end == -1) {
+            end = length;
+        }
+        if (!ScramAttributes.isValidNonce(message, pos, end)) {
             return null;
         }
 
-        mClientFirstMessageBare = m.group(5);
-        String username = m.group(6);
-        String clientNonce = m.group(7);
-        mNonce = clientNonce + mServerPartNonce;
+        mClientFirstMessageBare = message.subSequence(bareStart, length).toString();
+        mAuthorizationId = authorizationId;
+        mNonce = builder(end - pos + mServerPartNonce.length())
+                .append(message, pos, end)
+                .append(mServerPartNonce)
+                .toString();
 
         mState = State.FIRST_CLIENT_MESSAGE_HANDLED;
 
@@ -111,14 +224,28 @@ public class ScramServerFunctionalityImpl implements ScramServerFunctionality {
     }
 
 
+    /**
+     * Gets the authorization identity sent by the client
+     * @return authorization identity or null if the client did not send one
+     */
+    public String getAuthorizationId() {
+        return mAuthorizationId;
+    }
+
+
     @Override
     public String prepareFirstMessage(UserData userData) {
         mUserData = userData;
         mState = State.PREPARED_FIRST;
-        mServerFirstMessage = String.format("r=%s,s=%s,i=%d",
-                mNonce,
-                userData.salt,
-                userData.iterations);
+        // at most 10 digits for the iterations
+        mServerFirstMessage = builder(mNonce.length() + userData.salt.length() + 18)
+                .append("r=")
+                .append(mNonce)
+                .append(",s=")
+                .append(userData.salt)
+                .append(",i=")
+                .append(userData.iterations)
+                .toString();
 
         return mServerFirstMessage;
     }
@@ -126,44 +253,97 @@ public class ScramServerFunctionalityImpl implements ScramServerFunctionality {
 
     @Override
     public String prepareFinalMessage(String clientFinalMessage) throws ScramException {
-        Matcher m = CLIENT_FINAL_MESSAGE.matcher(clientFinalMessage);
-        if (!m.matches()) {
+        return prepareFinalMessage((CharSequence) clientFinalMessage);
+    }
+
+
+    /**
+     * Prepares server's final message from client's final message given as characters, e.g.
+     * {@link Utf8CharSequence} over the received bytes
+     * @param clientFinalMessage Client's final message
+     * @return Server's final message
+     * @throws ScramException if there is an error processing clients message
+     */
+    public String prepareFinalMessage(CharSequence clientFinalMessage) throws ScramException {
+        // c=channel-binding,r=nonce[,extensions],p=proof
+        int channelBindingStart = ScramAttributes.valueStart(clientFinalMessage, 0, 'c');
+        if (channelBindingStart == -1) {
+            mState = State.ENDED;
+            return null;
+        }
+        int nonceStart = ScramAttributes.valueStart(clientFinalMessage,
+                ScramAttributes.valueEnd(clientFinalMessage, channelBindingStart) + 1,
+                'r');
+        if (nonceStart == -1) {
+            mState = State.ENDED;
+            return null;
+        }
+        int nonceEnd = ScramAttributes.valueEnd(clientFinalMessage, nonceStart);
+        // the proof is the last attribute and there must be only one, an earlier p= would be taken for an extension
+        int proofAttribute = ScramAttributes.lastIndexOf(clientFinalMessage, ",p=");
+        if (proofAttribute < nonceEnd
+                || ScramAttributes.indexOf(clientFinalMessage, ",p=", nonceEnd) != proofAttribute) {
+            mState = State.ENDED;
+            return null;
+        }
+        int proofStart = proofAttribute + 3;
+        int proofEnd = ScramAttributes.valueEnd(clientFinalMessage, proofStart);
+        if (proofEnd != clientFinalMessage.length()) {
             mState = State.ENDED;
             return null;
         }
 
-        String clientFinalMessageWithoutProof = m.group(1);
-        String clientNonce = m.group(3);
-        String proof = m.group(4);
+        if (nonceEnd - nonceStart != mNonce.length()
+                || !ScramAttributes.regionMatches(clientFinalMessage, nonceStart, mNonce)) {
 
-        if (!mNonce.equals(clientNonce)) {
             mState = State.ENDED;
             return null;
         }
 
+        mProof = decode(clientFinalMessage, proofStart, proofEnd - proofStart, mProof);
+        if (mProof == null) {
+            mState = State.ENDED;
+            return null;
+        }
 
-        String authMessage = mClientFirstMessageBare + "," + mServerFirstMessage + "," + clientFinalMessageWithoutProof;
+        mAuthMessage.clear()
+                .append(mClientFirstMessageBare)
+                .append(',')
+                .append(mServerFirstMessage)
+                .append(',')
+                .append(clientFinalMessage, 0, proofAttribute);
 
-        byte[] storedKeyArr = Base64.decode(mUserData.storedKey);
+        mStoredKey = decodeKey(mUserData.storedKey, mStoredKey);
+        mServerKey = decodeKey(mUserData.serverKey, mServerKey);
+        if (mStoredKey == null || mServerKey == null) {
+            mState = State.ENDED;
+            throw new ScramException("Invalid Base64 in user data");
+        }
 
         try {
-            byte[] clientSignature = ScramUtils.computeHmac(storedKeyArr, mHmacName, authMessage);
-            byte[] serverSignature = ScramUtils.computeHmac(Base64.decode(mUserData.serverKey), mHmacName, authMessage);
-            byte[] clientKey = clientSignature.clone();
-            byte[] decodedProof = Base64.decode(proof);
+            byte[] clientSignature = mAuthMessage.computeHmac(mStoredKey, mHmacName);
+            if (mProof.length != clientSignature.length) {
+                mState = State.ENDED;
+                return null;
+            }
+
+            byte[] clientKey = clientSignature;
             for (int i = 0; i < clientKey.length; i++) {
-                clientKey[i] ^= decodedProof[i];
+                clientKey[i] ^= mProof[i];
             }
 
-            byte[] resultKey = MessageDigest.getInstance(mDigestName).digest(clientKey);
-            if (!Arrays.equals(storedKeyArr, resultKey)) {
+            byte[] resultKey = ThreadLocalCryptoPool.getMessageDigest(mDigestName).digest(clientKey);
+            if (!Arrays.equals(mStoredKey, resultKey)) {
+                mState = State.ENDED;
                 return null;
             }
 
 
+            byte[] serverSignature = mAuthMessage.computeHmac(mServerKey, mHmacName);
             mIsSuccessful = true;
             mState = State.ENDED;
-            return "v=" + Base64.encodeBytes(serverSignature, Base64.DONT_BREAK_LINES);
+            return Base64Codec.encode(serverSignature,
+                    builder(Base64Codec.encodedLength(serverSignature.length) + 2).append("v=")).toString();
         } catch (NoSuchAlgorithmException | InvalidKeyException e) {
             mState = State.ENDED;
             throw new ScramException(e);
@@ -192,4 +372,85 @@ public class ScramServerFunctionalityImpl implements ScramServerFunctionality {
     public State getState() {
         return mState;
     }
+
+
+    private StringBuilder builder(int capacity) {
+        mBuilder.setLength(0);
+        mBuilder.ensureCapacity(capacity);
+        return mBuilder;
+    }
+
+
+    /**
+     * Decodes Base64 into <code>reuse</code> if it has the decoded length (which is the same for all the proofs and
+     * keys of a mechanism) or into a new array
+     */
+    private static byte[] decode(CharSequence s, int off, int len, byte[] reuse) {
+        int length = Base64Codec.decodedLength(s, off, len);
+        if (length <= 0) {
+            return null;
+        }
+
+        byte[] ret = reuse != null && reuse.length == length ? reuse : new byte[length];
+        return Base64Codec.decode(s, off, len, ret, 0) != -1 ? ret : null;
+    }
+
+
+    /**
+     * Decodes a key of {@link UserData}. Keys stored with the legacy {@link com.bolyartech.scram_sasl.common.Base64}
+     * may be broken into lines of 76 characters, which is its default, so if the strict decoding fails it is
+     * retried without the whitespace.
+     */
+    private static byte[] decodeKey(String key, byte[] reuse) {
+        byte[] ret = decode(key, 0, key.length(), reuse);
+        if (ret != null) {
+            return ret;
+        }
+
+        StringBuilder sb = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                sb.append(c);
+            }
+        }
+
+        return sb.length() < key.length() ? decode(sb, 0, sb.length(), reuse) : null;
+    }
+
+
+    /**
+     * Decodes saslname, i.e. replaces =2C with ',' and =3D with '='
+     * @return decoded name or null if the name is empty or contains invalid escape
+     */
+    private static String decodeSaslName(CharSequence message, int start, int end) {
+        if (start >= end) {
+            return null;
+        }
+
+        int escape = ScramAttributes.indexOf(message, '=', start);
+        if (escape == -1 || escape >= end) {
+            return message.subSequence(start, end).toString();
+        }
+
+        StringBuilder sb = new StringBuilder(end - start);
+        sb.append(message, start, escape);
+        for (int i = escape; i < end; i++) {
+            char c = message.charAt(i);
+            if (c == '=') {
+                if (i + 3 <= end && ScramAttributes.regionMatches(message, i, "=2C")) {
+                    sb.append(',');
+                } else if (i + 3 <= end && ScramAttributes.regionMatches(message, i, "=3D")) {
+                    sb.append('=');
+                } else {
+                    return null;
+                }
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.server;
+
+
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+
+/**
+ * Pool of server processors which are recycled between the authentications.
+ * <p>
+ * Take a processor with {@link #acquire(long, ScramSaslServerProcessor.Listener, ScramSaslServerProcessor.Sender)}
+ * for each authenticating connection and give it back with {@link #release(ScramSaslServerProcessor)} when the
+ * authentication ends. Released processors are reset and reused, so there is no allocation of processors and their
+ * internal objects per authentication. Processors which still wait for the {@link
+ * ScramSaslServerProcessor.UserDataLoader} when released are not reused, unless it is a {@link
+ * ScramSaslServerProcessor.UserDataCallbackLoader}.
+ */
+@SuppressWarnings("unused")
+public class ScramServerProcessorPool {
+    private final ScramMechanism mMechanism;
+    private final ScramSaslServerProcessor.UserDataLoader mUserDataLoader;
+    private final int mMaxIdle;
+    private final Deque<AbstractScramSaslServerProcessor> mIdle = new ArrayDeque<>();
+
+
+    /**
+     * Creates new ScramServerProcessorPool
+     * @param mechanism SCRAM mechanism of the processors
+     * @param userDataLoader loader for user data, shared by all processors
+     * @param maxIdle Maximum number of released processors kept for reuse
+     */
+    public ScramServerProcessorPool(ScramMechanism mechanism,
+                                    ScramSaslServerProcessor.UserDataLoader userDataLoader,
+                                    int maxIdle) {
+
+        if (mechanism == null) {
+            throw new NullPointerException("mechanism cannot be null");
+        }
+        if (userDataLoader == null) {
+            throw new NullPointerException("userDataLoader cannot be null");
+        }
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle cannot be negative");
+        }
+
+        mMechanism = mechanism;
+        mUserDataLoader = userDataLoader;
+        mMaxIdle = maxIdle;
+    }
+
+
+    /**
+     * Gets idle processor or creates new one if there is no idle processor
+     * @param connectionId ID of the client connection
+     * @param listener Listener
+     * @param sender Sender used to send messages to the clients
+     * @return processor ready for the client's first message
+     */
+    public ScramSaslServerProcessor acquire(long connectionId,
+                                            ScramSaslServerProcessor.Listener listener,
+                                            ScramSaslServerProcessor.Sender sender) {
+
+        AbstractScramSaslServerProcessor processor;
+        synchronized (this) {
+            processor = mIdle.pollFirst();
+        }
+
+        if (processor != null) {
+            processor.reset(connectionId, listener, sender);
+            return processor;
+        } else {
+            return create(connectionId, listener, sender);
+        }
+    }
+
+
+    /**
+     * Returns processor to the pool. If the authentication is not ended yet it is aborted.
+     * The processor must not be used by the caller after this call.
+     * @param processor Processor obtained with {@link #acquire}
+     */
+    public void release(ScramSaslServerProcessor processor) {
+        if (!(processor instanceof AbstractScramSaslServerProcessor) ||
+                ScramMechanism.forHmacName(((AbstractScramSaslServerProcessor) processor).getHmacName()) !=
+                        mMechanism) {
+
+            throw new IllegalArgumentException("processor is not obtained from this pool");
+        }
+
+        AbstractScramSaslServerProcessor serverProcessor = (AbstractScramSaslServerProcessor) processor;
+        if (!serverProcessor.isEnded()) {
+            serverProcessor.abort();
+        }
+
+        if (serverProcessor.isLoadingUserData() && !(mUserDataLoader instanceof
+                ScramSaslServerProcessor.UserDataCallbackLoader)) {
+            // the loader may still hold the processor, let it go instead of reusing it
+            return;
+        }
+
+        synchronized (this) {
+            if (mIdle.size() < mMaxIdle) {
+                mIdle.addFirst(serverProcessor);
+            }
+        }
+    }
+
+
+    /**
+     * Gets the number of the idle processors
+     * @return number of processors which are ready for reuse
+     */
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+
+    private AbstractScramSaslServerProcessor create(long connectionId,
+                                                    ScramSaslServerProcessor.Listener listener,
+                                                    ScramSaslServerProcessor.Sender sender) {
+
+        switch (mMechanism) {
+            case SCRAM_SHA_1:
+                return new ScramSha1SaslServerProcessor(connectionId, listener, mUserDataLoader, sender);
+            case SCRAM_SHA_256:
+                return new ScramSha256SaslServerProcessor(connectionId, listener, mUserDataLoader, sender);
+            case SCRAM_SHA_512:
+                return new ScramSha512SaslServerProcessor(connectionId, listener, mUserDataLoader, sender);
+            default:
+                throw new IllegalArgumentException("Unsupported mechanism " + mMechanism);
+        }
+    }
+}
@@ -31,11 +31,11 @@ public class UserData {
      */
     public final int iterations;
     /**
-     * Server key
+     * Server key in Base64, may be broken into lines as by the legacy encoder
      */
     public final String serverKey;
     /**
-     * Stored key
+     * Stored key in Base64, like {@link #serverKey}
      */
     public final String storedKey;
 
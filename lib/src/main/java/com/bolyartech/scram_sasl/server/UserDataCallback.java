@@ -0,0 +1,31 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.server;
+
+
+/**
+ * Receives the {@link UserData} loaded by {@link ScramSaslServerProcessor.UserDataLoader}
+ */
+public interface UserDataCallback {
+    /**
+     * Called when user data is loaded
+     *
+     * @param data User data
+     */
+    void onUserDataLoaded(UserData data);
+}
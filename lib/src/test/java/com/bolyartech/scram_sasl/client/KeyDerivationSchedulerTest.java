@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Checks the start order by priority, the queue bound and the statistics
+ */
+public class KeyDerivationSchedulerTest {
+    @Test
+    public void testQueuedAreStartedByPriority() throws Exception {
+        KeyDerivationScheduler scheduler = new KeyDerivationScheduler(1, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            scheduler.execute(task("running", release, done, order));
+            awaitRunning(order);
+            scheduler.execute(task("background 1", null, done, order), KeyDerivationScheduler.Priority.BACKGROUND);
+            scheduler.execute(task("background 2", null, done, order), KeyDerivationScheduler.Priority.BACKGROUND);
+            scheduler.execute(task("normal", null, done, order));
+            scheduler.forPriority(KeyDerivationScheduler.Priority.INTERACTIVE)
+                    .execute(task("interactive", null, done, order));
+
+            assertEquals(4, scheduler.getQueueDepth());
+            assertEquals(2, scheduler.getQueueDepth(KeyDerivationScheduler.Priority.BACKGROUND));
+            assertEquals(1, scheduler.getQueueDepth(KeyDerivationScheduler.Priority.NORMAL));
+            assertEquals(1, scheduler.getQueueDepth(KeyDerivationScheduler.Priority.INTERACTIVE));
+
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            scheduler.shutdown();
+        }
+
+        assertEquals(Arrays.asList("running", "interactive", "normal", "background 1", "background 2"), order);
+        assertEquals(0, scheduler.getQueueDepth());
+        // counted after the derivation returns
+        for (int i = 0; i < 5000 && scheduler.getCompletedCount() < 5; i++) {
+            Thread.sleep(1);
+        }
+        assertEquals(5, scheduler.getCompletedCount());
+        assertTrue(scheduler.getAverageWaitNanos(KeyDerivationScheduler.Priority.BACKGROUND) >=
+                scheduler.getAverageWaitNanos(KeyDerivationScheduler.Priority.INTERACTIVE));
+        assertTrue(scheduler.getMaxWaitNanos() > 0);
+    }
+
+
+    @Test
+    public void testFullQueueIsRejected() throws Exception {
+        KeyDerivationScheduler scheduler = new KeyDerivationScheduler(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            scheduler.execute(task("running", release, done, order));
+            awaitRunning(order);
+            scheduler.execute(task("queued", null, done, order));
+            try {
+                scheduler.execute(task("rejected", null, done, order), KeyDerivationScheduler.Priority.INTERACTIVE);
+                fail("full queue accepted derivation");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            assertEquals(1, scheduler.getRejectedCount());
+            assertEquals(1, scheduler.getQueueDepth());
+
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            scheduler.shutdown();
+        }
+
+        assertEquals(Arrays.asList("running", "queued"), order);
+    }
+
+
+    @Test
+    public void testShutdownRejects() {
+        KeyDerivationScheduler scheduler = new KeyDerivationScheduler(1, 1);
+        scheduler.shutdown();
+        try {
+            scheduler.execute(task("rejected", null, new CountDownLatch(1), new ArrayList<String>()));
+            fail("derivation accepted after shutdown");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getRejectedCount());
+    }
+
+
+    private static void awaitRunning(List<String> order) throws InterruptedException {
+        // the running derivation leaves the queue when its thread picks it up
+        for (int i = 0; i < 5000 && order.isEmpty(); i++) {
+            Thread.sleep(1);
+        }
+    }
+
+
+    private static Runnable task(final String name,
+                                 final CountDownLatch release,
+                                 final CountDownLatch done,
+                                 final List<String> order) {
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                try {
+                    if (release != null) {
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+    }
+}
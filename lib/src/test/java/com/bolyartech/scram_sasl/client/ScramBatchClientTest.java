@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.ScramException;
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+import com.bolyartech.scram_sasl.common.ScramUtils;
+import com.bolyartech.scram_sasl.server.ScramServerFunctionalityImpl;
+import com.bolyartech.scram_sasl.server.UserData;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Authenticates batches against in-process servers and checks that each account gets its own result
+ */
+public class ScramBatchClientTest {
+    private static final int ACCOUNTS = 24;
+
+
+    @Test
+    public void testBatch() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<ScramBatchClient.Account> accounts = new ArrayList<>();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                String password = "password" + i;
+                // every third account uses a wrong password
+                accounts.add(new ScramBatchClient.Account("user" + i, i % 3 == 1 ? "wrong" : password,
+                        new ServerTransport(ScramMechanism.SCRAM_SHA_256, password)));
+            }
+
+            List<ScramBatchClient.Result> results = new ScramBatchClient(ScramMechanism.SCRAM_SHA_256, pool)
+                    .authenticate(accounts);
+
+            assertEquals(ACCOUNTS, results.size());
+            for (int i = 0; i < ACCOUNTS; i++) {
+                ScramBatchClient.Result result = results.get(i);
+                assertSame(accounts.get(i), result.account);
+                assertNull(result.error);
+                assertTrue(result.latencyNanos > 0);
+                if (i % 3 == 1) {
+                    assertFalse(result.account.username, result.successful);
+                    assertEquals(FailureReason.SERVER_ERROR, result.failureReason);
+                } else {
+                    assertTrue(result.account.username, result.successful);
+                    assertNull(result.failureReason);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testTransportError() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            ScramBatchClient.Account ok = new ScramBatchClient.Account("user", "pencil",
+                    new ServerTransport(ScramMechanism.SCRAM_SHA_256, "pencil"));
+            ScramBatchClient.Account down = new ScramBatchClient.Account("user", "pencil",
+                    new ScramBatchClient.Transport() {
+                        @Override
+                        public String exchange(String clientMessage) throws IOException {
+                            throw new IOException("down");
+                        }
+                    });
+
+            List<ScramBatchClient.Result> results = new ScramBatchClient(ScramMechanism.SCRAM_SHA_256, pool)
+                    .authenticate(Arrays.asList(down, ok));
+
+            assertFalse(results.get(0).successful);
+            assertTrue(results.get(0).error instanceof IOException);
+            assertTrue(results.get(1).successful);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testClientsShareThreads() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        ScramClientKeyCache cache = new ScramClientKeyCache(4);
+        try {
+            // two mechanisms and a key cache on the same workers
+            for (int round = 0; round < 3; round++) {
+                for (ScramMechanism mechanism : new ScramMechanism[]{ScramMechanism.SCRAM_SHA_256,
+                        ScramMechanism.SCRAM_SHA_512}) {
+
+                    ScramBatchClient client = new ScramBatchClient(mechanism, pool);
+                    client.setKeyCache(cache);
+                    List<ScramBatchClient.Result> results = client.authenticate(Collections.singletonList(
+                            new ScramBatchClient.Account("user", "pencil", new ServerTransport(mechanism, "pencil"))));
+
+                    assertTrue(mechanism + ", round " + round, results.get(0).successful);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(2, cache.size());
+    }
+
+
+    @Test
+    public void testEmptyBatch() {
+        assertTrue(new ScramBatchClient(ScramMechanism.SCRAM_SHA_256)
+                .authenticate(Collections.<ScramBatchClient.Account>emptyList()).isEmpty());
+    }
+
+
+    /**
+     * Runs the server side of one authentication in process
+     */
+    private static class ServerTransport implements ScramBatchClient.Transport {
+        private final ScramServerFunctionalityImpl mServer;
+        private final UserData mUserData;
+        private boolean mFirstHandled;
+
+
+        ServerTransport(ScramMechanism mechanism, String password) throws Exception {
+            mServer = new ScramServerFunctionalityImpl(mechanism.getDigestName(), mechanism.getHmacName());
+            ScramUtils.NewPasswordStringData data = ScramUtils.byteArrayToStringData(ScramUtils.newPassword(password,
+                    "saltsaltsalt1234".getBytes(StandardCharsets.US_ASCII),
+                    4096,
+                    mechanism.getDigestName(),
+                    mechanism.getHmacName()));
+            mUserData = new UserData(data.salt, data.iterations, data.serverKey, data.storedKey);
+        }
+
+
+        @Override
+        public synchronized String exchange(String clientMessage) throws IOException {
+            if (!mFirstHandled) {
+                mFirstHandled = true;
+                if (mServer.handleClientFirstMessage(clientMessage) == null) {
+                    throw new IOException("invalid client first message");
+                }
+                return mServer.prepareFirstMessage(mUserData);
+            }
+
+            try {
+                String serverFinal = mServer.prepareFinalMessage(clientMessage);
+                return serverFinal != null ? serverFinal : "e=invalid-proof";
+            } catch (ScramException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
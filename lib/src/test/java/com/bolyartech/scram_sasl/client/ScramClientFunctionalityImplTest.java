@@ -0,0 +1,373 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.Base64Codec;
+import com.bolyartech.scram_sasl.common.CancellationSignal;
+import com.bolyartech.scram_sasl.common.CryptoBackend;
+import com.bolyartech.scram_sasl.common.CryptoBackends;
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+import com.bolyartech.scram_sasl.common.ScramUtils;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Runs the example exchanges of RFC 5802 and RFC 7677 with every backend and checks the iteration limits,
+ * the cancellation, the stored credentials and the key cache
+ */
+public class ScramClientFunctionalityImplTest {
+    private static final Exchange RFC_5802 = new Exchange(ScramMechanism.SCRAM_SHA_1,
+            "fyko+d2lbbFgONRv9qkxdawL",
+            "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096",
+            "c=biws,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,p=v0X8v3Bz2T0CJGbJQyF0X+HI4Ts=",
+            "v=rmF9pqV8S7suAoZWja4dJRkFsKQ=");
+
+    private static final Exchange RFC_7677 = new Exchange(ScramMechanism.SCRAM_SHA_256,
+            "rOprNGfwEbeRWgbNEkqO",
+            "r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,s=W22ZaJ0SNY7soEsUEjb6gQ==,i=4096",
+            "c=biws,r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0," +
+                    "p=dHzbZapWIk4jUhN+Ute9ytag9zjfMHgsqmmiz7AndVQ=",
+            "v=6rriTRBi23WpRR/wtup+mMhUZUn/dB5nLTJRsjl95G4=");
+
+
+    @Test
+    public void testRfcExchangesWithEveryBackend() throws Exception {
+        for (Exchange exchange : new Exchange[]{RFC_5802, RFC_7677}) {
+            try {
+                for (CryptoBackend backend : CryptoBackends.getBuiltInBackends()) {
+                    CryptoBackends.setBackend(exchange.mechanism, backend);
+                    String message = backend.getName() + ", " + exchange.mechanism;
+
+                    ScramClientFunctionalityImpl client = exchange.newClient();
+                    assertEquals(message, "n,,n=user,r=" + exchange.clientNonce, client.prepareFirstMessage("user"));
+                    assertEquals(message, exchange.clientFinal,
+                            client.prepareFinalMessage("pencil", exchange.serverFirst));
+                    assertTrue(message, client.checkServerFinalMessage(exchange.serverFinal));
+                    assertTrue(message, client.isSuccessful());
+                }
+            } finally {
+                CryptoBackends.setBackend(exchange.mechanism, null);
+            }
+        }
+    }
+
+
+    @Test
+    public void testSteppedRfcExchangesWithEveryBackend() throws Exception {
+        for (Exchange exchange : new Exchange[]{RFC_5802, RFC_7677}) {
+            try {
+                for (CryptoBackend backend : CryptoBackends.getBuiltInBackends()) {
+                    CryptoBackends.setBackend(exchange.mechanism, backend);
+                    String message = backend.getName() + ", " + exchange.mechanism;
+
+                    ScramClientFunctionalityImpl client = exchange.newClient();
+                    client.prepareFirstMessage("user");
+                    assertTrue(message, client.startFinalMessage("pencil", exchange.serverFirst));
+
+                    String clientFinal;
+                    int slices = 0;
+                    while ((clientFinal = client.continueFinalMessage(1000)) == null) {
+                        assertFalse(message, client.isEnded());
+                        slices++;
+                    }
+
+                    assertEquals(message, 4, slices);
+                    assertEquals(message, exchange.clientFinal, clientFinal);
+                    assertTrue(message, client.checkServerFinalMessage(exchange.serverFinal));
+                }
+            } finally {
+                CryptoBackends.setBackend(exchange.mechanism, null);
+            }
+        }
+    }
+
+
+    @Test
+    public void testWrongServerSignature() throws Exception {
+        ScramClientFunctionalityImpl client = RFC_7677.newClient();
+        client.prepareFirstMessage("user");
+        client.prepareFinalMessage("pencil", RFC_7677.serverFirst);
+
+        assertFalse(client.checkServerFinalMessage("v=" + Base64Codec.encodeToString(new byte[32])));
+        assertTrue(client.isEnded());
+        assertEquals(FailureReason.INVALID_SERVER_SIGNATURE, client.getFailureReason());
+    }
+
+
+    @Test
+    public void testIterationLimit() throws Exception {
+        ScramClientFunctionalityImpl client = RFC_7677.newClient();
+        client.setIterationLimits(new IterationLimits(4095, 0));
+        client.prepareFirstMessage("user");
+
+        assertNull(client.prepareFinalMessage("pencil", RFC_7677.serverFirst));
+        assertTrue(client.isEnded());
+        assertEquals(FailureReason.ITERATION_LIMIT_EXCEEDED, client.getFailureReason());
+
+        client = RFC_7677.newClient();
+        client.setIterationLimits(new IterationLimits(4096, 0));
+        client.prepareFirstMessage("user");
+        assertEquals(RFC_7677.clientFinal, client.prepareFinalMessage("pencil", RFC_7677.serverFirst));
+    }
+
+
+    @Test
+    public void testDefaultIterationLimit() throws Exception {
+        ScramClientFunctionalityImpl client = RFC_7677.newClient();
+        client.prepareFirstMessage("user");
+
+        // rejected before any HMAC work, so this does not take long
+        assertNull(client.prepareFinalMessage("pencil", RFC_7677.serverFirst.replace("i=4096",
+                "i=" + (IterationLimits.DEFAULT_MAX_ITERATIONS + 1))));
+        assertEquals(FailureReason.ITERATION_LIMIT_EXCEEDED, client.getFailureReason());
+    }
+
+
+    @Test
+    public void testTimeBudget() throws Exception {
+        ScramClientFunctionalityImpl client = RFC_7677.newClient();
+        client.setIterationLimits(new IterationLimits(IterationLimits.DEFAULT_MAX_ITERATIONS, 1));
+        client.prepareFirstMessage("user");
+
+        long start = System.nanoTime();
+        assertNull(client.prepareFinalMessage("pencil", RFC_7677.serverFirst.replace("i=4096",
+                "i=" + IterationLimits.DEFAULT_MAX_ITERATIONS)));
+        assertEquals(FailureReason.TIME_BUDGET_EXCEEDED, client.getFailureReason());
+        assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+    }
+
+
+    @Test
+    public void testCancellation() throws Exception {
+        ScramClientFunctionalityImpl client = RFC_7677.newClient();
+        client.setCancellationSignal(new CancellationSignal() {
+            @Override
+            public boolean isCancelled() {
+                return true;
+            }
+        });
+        client.prepareFirstMessage("user");
+
+        assertNull(client.prepareFinalMessage("pencil", RFC_7677.serverFirst.replace("i=4096",
+                "i=" + IterationLimits.DEFAULT_MAX_ITERATIONS)));
+        assertTrue(client.isEnded());
+        assertEquals(FailureReason.CANCELLED, client.getFailureReason());
+    }
+
+
+    @Test
+    public void testSteppedCancellation() throws Exception {
+        final boolean[] cancelled = new boolean[1];
+        ScramClientFunctionalityImpl client = RFC_7677.newClient();
+        client.setCancellationSignal(new CancellationSignal() {
+            @Override
+            public boolean isCancelled() {
+                return cancelled[0];
+            }
+        });
+        client.prepareFirstMessage("user");
+        assertTrue(client.startFinalMessage("pencil", RFC_7677.serverFirst));
+        assertNull(client.continueFinalMessage(100));
+
+        cancelled[0] = true;
+        assertNull(client.continueFinalMessage(100));
+        assertTrue(client.isEnded());
+        assertEquals(FailureReason.CANCELLED, client.getFailureReason());
+    }
+
+
+    @Test
+    public void testStoredCredentials() throws Exception {
+        ScramClientFunctionalityImpl client = RFC_7677.newClient();
+        client.prepareFirstMessage("user");
+        client.prepareFinalMessage("pencil", RFC_7677.serverFirst);
+        assertNull(client.getStoredCredentials());
+        assertTrue(client.checkServerFinalMessage(RFC_7677.serverFinal));
+
+        StoredCredentials credentials = client.getStoredCredentials();
+        assertNotNull(credentials);
+        assertEquals("user", credentials.username);
+        assertEquals(4096, credentials.iterations);
+        assertArrayEquals(Base64Codec.decode("W22ZaJ0SNY7soEsUEjb6gQ=="), credentials.salt);
+
+        // same keys as derived from the salted password
+        StoredCredentials fromSaltedPassword = StoredCredentials.fromSaltedPassword("user",
+                ScramUtils.generateSaltedPassword("pencil", credentials.salt, 4096, "HmacSHA256"),
+                credentials.salt, 4096, "SHA-256", "HmacSHA256");
+        assertArrayEquals(fromSaltedPassword.keys.clientKey, credentials.keys.clientKey);
+        assertArrayEquals(fromSaltedPassword.keys.storedKey, credentials.keys.storedKey);
+        assertArrayEquals(fromSaltedPassword.keys.serverKey, credentials.keys.serverKey);
+
+        // no password is needed while the salt and iterations match
+        client = RFC_7677.newClient();
+        client.setStoredCredentials(credentials, null);
+        client.prepareFirstMessage("user");
+        assertEquals(RFC_7677.clientFinal, client.prepareFinalMessage(null, RFC_7677.serverFirst));
+        assertTrue(client.checkServerFinalMessage(RFC_7677.serverFinal));
+    }
+
+
+    @Test
+    public void testStoredCredentialsDoNotMatch() throws Exception {
+        StoredCredentials credentials = StoredCredentials.fromSaltedPassword("user",
+                ScramUtils.generateSaltedPassword("pencil", Base64Codec.decode("W22ZaJ0SNY7soEsUEjb6gQ=="), 4095,
+                        "HmacSHA256"),
+                Base64Codec.decode("W22ZaJ0SNY7soEsUEjb6gQ=="), 4095, "SHA-256", "HmacSHA256");
+
+        ScramClientFunctionalityImpl client = RFC_7677.newClient();
+        client.setStoredCredentials(credentials, null);
+        client.prepareFirstMessage("user");
+        assertNull(client.prepareFinalMessage(null, RFC_7677.serverFirst));
+        assertEquals(FailureReason.PASSWORD_UNAVAILABLE, client.getFailureReason());
+
+        // the callback provides the password when the credentials do not match
+        client = RFC_7677.newClient();
+        client.setStoredCredentials(credentials, new ScramSaslClientProcessor.PasswordCallback() {
+            @Override
+            public String getPassword() {
+                return "pencil";
+            }
+        });
+        client.prepareFirstMessage("user");
+        assertEquals(RFC_7677.clientFinal, client.prepareFinalMessage(null, RFC_7677.serverFirst));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStoredCredentialsOfOtherMechanism() throws Exception {
+        StoredCredentials credentials = new StoredCredentials("user", "HmacSHA1", new byte[]{1}, 4096,
+                new ClientKeys(new byte[20], new byte[20], new byte[20]));
+
+        RFC_7677.newClient().setStoredCredentials(credentials, null);
+    }
+
+
+    @Test
+    public void testKeyCache() throws Exception {
+        ScramClientKeyCache cache = new ScramClientKeyCache(4);
+        for (int i = 0; i < 3; i++) {
+            ScramClientFunctionalityImpl client = RFC_7677.newClient();
+            client.setKeyCache(cache);
+            client.prepareFirstMessage("user");
+
+            assertEquals(RFC_7677.clientFinal, client.prepareFinalMessage("pencil", RFC_7677.serverFirst));
+            assertTrue(client.checkServerFinalMessage(RFC_7677.serverFinal));
+            assertEquals(1, cache.size());
+        }
+
+        // a wrong password does not hit the entry
+        ScramClientFunctionalityImpl client = RFC_7677.newClient();
+        client.setKeyCache(cache);
+        client.prepareFirstMessage("user");
+        client.prepareFinalMessage("pencil2", RFC_7677.serverFirst);
+        assertFalse(client.checkServerFinalMessage(RFC_7677.serverFinal));
+        assertEquals(2, cache.size());
+    }
+
+
+    @Test
+    public void testSpeculativeDerivation() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ScramClientFunctionalityImpl client = RFC_7677.newClient();
+            client.prepareFirstMessage("user");
+            assertTrue(client.startSpeculativeDerivation("pencil", Base64Codec.decode("W22ZaJ0SNY7soEsUEjb6gQ=="),
+                    4096, executor));
+
+            assertEquals(RFC_7677.clientFinal, client.prepareFinalMessage("pencil", RFC_7677.serverFirst));
+            assertTrue(client.checkServerFinalMessage(RFC_7677.serverFinal));
+
+            // a wrong guess is dropped and the keys are derived as usual
+            client = RFC_7677.newClient();
+            client.prepareFirstMessage("user");
+            assertTrue(client.startSpeculativeDerivation("pencil", new byte[]{1, 2, 3}, 4096, executor));
+            assertEquals(RFC_7677.clientFinal, client.prepareFinalMessage("pencil", RFC_7677.serverFirst));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testResetKeepsSettings() throws Exception {
+        ScramClientKeyCache cache = new ScramClientKeyCache(4);
+        ScramClientFunctionalityImpl client = RFC_7677.newClient();
+        client.setKeyCache(cache);
+        client.setIterationLimits(new IterationLimits(4095, 0));
+        client.prepareFirstMessage("user");
+        assertNull(client.prepareFinalMessage("pencil", RFC_7677.serverFirst));
+
+        client.reset(RFC_7677.clientNonce);
+        assertSame(ScramClientFunctionality.State.INITIAL, client.getState());
+        assertNull(client.getFailureReason());
+        client.prepareFirstMessage("user");
+        assertNull(client.prepareFinalMessage("pencil", RFC_7677.serverFirst));
+        assertEquals(FailureReason.ITERATION_LIMIT_EXCEEDED, client.getFailureReason());
+
+        client.reset(RFC_7677.clientNonce);
+        client.setIterationLimits(null);
+        client.prepareFirstMessage("user");
+        assertEquals(RFC_7677.clientFinal, client.prepareFinalMessage("pencil", RFC_7677.serverFirst));
+        assertEquals(1, cache.size());
+
+        try {
+            client.prepareFinalMessage("pencil", RFC_7677.serverFirst);
+            fail("final message prepared twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+
+    private static class Exchange {
+        final ScramMechanism mechanism;
+        final String clientNonce;
+        final String serverFirst;
+        final String clientFinal;
+        final String serverFinal;
+
+
+        Exchange(ScramMechanism mechanism, String clientNonce, String serverFirst, String clientFinal,
+                 String serverFinal) {
+
+            this.mechanism = mechanism;
+            this.clientNonce = clientNonce;
+            this.serverFirst = serverFirst;
+            this.clientFinal = clientFinal;
+            this.serverFinal = serverFinal;
+        }
+
+
+        ScramClientFunctionalityImpl newClient() {
+            return new ScramClientFunctionalityImpl(mechanism.getDigestName(), mechanism.getHmacName(), clientNonce);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.PasswordEncoder;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * Checks the fingerprints of the credentials and the eviction of the cache
+ */
+public class ScramClientKeyCacheTest {
+    private static final byte[] SALT = "QSXCR+Q6sek8bf92".getBytes(StandardCharsets.US_ASCII);
+
+
+    @Test
+    public void testFingerprintEquality() {
+        CredentialKey key = CredentialKey.create("pencil", SALT, 4096, "HmacSHA256");
+
+        assertEquals(key, CredentialKey.create("pencil", SALT.clone(), 4096, "HmacSHA256"));
+        assertEquals(key.hashCode(), CredentialKey.create("pencil", SALT, 4096, "HmacSHA256").hashCode());
+
+        assertNotEquals(key, CredentialKey.create("pencil2", SALT, 4096, "HmacSHA256"));
+        assertNotEquals(key, CredentialKey.create("pencil", new byte[]{1}, 4096, "HmacSHA256"));
+        assertNotEquals(key, CredentialKey.create("pencil", SALT, 4097, "HmacSHA256"));
+        assertNotEquals(key, CredentialKey.create("pencil", SALT, 4096, "HmacSHA1"));
+    }
+
+
+    @Test
+    public void testFingerprintIsOfEncodedPassword() throws Exception {
+        byte[] encoded = PasswordEncoder.encode("pencil".toCharArray());
+        try {
+            assertEquals(CredentialKey.create("pencil", SALT, 4096, "HmacSHA256"),
+                    CredentialKey.create(encoded, SALT, 4096, "HmacSHA256"));
+        } finally {
+            PasswordEncoder.release(encoded);
+        }
+
+        // same bytes with the default encoding, so the same keys
+        assertEquals(CredentialKey.create("p\u00e4ss", SALT, 4096, "HmacSHA256"),
+                CredentialKey.create("p?ss", SALT, 4096, "HmacSHA256"));
+    }
+
+
+    @Test
+    public void testSaltIsCopied() {
+        byte[] salt = SALT.clone();
+        CredentialKey key = CredentialKey.create("pencil", salt, 4096, "HmacSHA256");
+        salt[0] ^= 1;
+
+        assertEquals(CredentialKey.create("pencil", SALT, 4096, "HmacSHA256"), key);
+    }
+
+
+    @Test
+    public void testGetAndPut() {
+        ScramClientKeyCache cache = new ScramClientKeyCache(4);
+        ClientKeys keys = new ClientKeys(new byte[32], new byte[32], new byte[32]);
+
+        assertNull(cache.get("pencil", SALT, 4096, "HmacSHA256"));
+        cache.put("pencil", SALT, 4096, "HmacSHA256", keys);
+
+        assertSame(keys, cache.get("pencil", SALT, 4096, "HmacSHA256"));
+        assertNull(cache.get("pencil2", SALT, 4096, "HmacSHA256"));
+        assertNull(cache.get("pencil", SALT, 4095, "HmacSHA256"));
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("pencil", SALT, 4096, "HmacSHA256"));
+    }
+
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        ScramClientKeyCache cache = new ScramClientKeyCache(2);
+        ClientKeys a = new ClientKeys(new byte[]{1}, new byte[]{1}, new byte[]{1});
+        ClientKeys b = new ClientKeys(new byte[]{2}, new byte[]{2}, new byte[]{2});
+        ClientKeys c = new ClientKeys(new byte[]{3}, new byte[]{3}, new byte[]{3});
+
+        cache.put("a", SALT, 4096, "HmacSHA256", a);
+        cache.put("b", SALT, 4096, "HmacSHA256", b);
+        assertSame(a, cache.get("a", SALT, 4096, "HmacSHA256"));
+        cache.put("c", SALT, 4096, "HmacSHA256", c);
+
+        assertEquals(2, cache.size());
+        assertSame(a, cache.get("a", SALT, 4096, "HmacSHA256"));
+        assertNull(cache.get("b", SALT, 4096, "HmacSHA256"));
+        assertSame(c, cache.get("c", SALT, 4096, "HmacSHA256"));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        new ScramClientKeyCache(0);
+    }
+}
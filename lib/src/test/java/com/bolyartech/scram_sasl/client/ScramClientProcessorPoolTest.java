@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.ScramException;
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+import com.bolyartech.scram_sasl.common.ScramUtils;
+import com.bolyartech.scram_sasl.server.ScramSaslServerProcessor;
+import com.bolyartech.scram_sasl.server.ScramSha256SaslServerProcessor;
+import com.bolyartech.scram_sasl.server.UserData;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks the reuse of the client processors and that nothing of a released authentication reaches the next one
+ */
+public class ScramClientProcessorPoolTest {
+    private static final String PASSWORD = "pencil";
+
+
+    @Test
+    public void testReleasedProcessorIsReused() throws Exception {
+        ScramClientProcessorPool pool = new ScramClientProcessorPool(ScramMechanism.SCRAM_SHA_256, 2);
+
+        Connection first = new Connection();
+        AbstractScramSaslClientProcessor processor = pool.acquire(first, first);
+        first.connect(processor);
+        processor.start("user", PASSWORD);
+        assertTrue(processor.isSuccess());
+        assertEquals(1, first.mSucceeded);
+
+        pool.release(processor);
+        assertEquals(1, pool.getIdleCount());
+
+        Connection second = new Connection();
+        assertSame(processor, pool.acquire(second, second));
+        assertEquals(0, pool.getIdleCount());
+        assertFalse(processor.isEnded());
+        assertFalse(processor.isSuccess());
+
+        second.connect(processor);
+        processor.start("user", "wrong");
+        assertTrue(processor.isEnded());
+        assertFalse(processor.isSuccess());
+        assertEquals(1, second.mFailed);
+        assertEquals(FailureReason.SERVER_ERROR, processor.getFailureReason());
+        assertEquals(0, first.mFailed);
+    }
+
+
+    @Test
+    public void testUnfinishedProcessorIsAborted() throws Exception {
+        ScramClientProcessorPool pool = new ScramClientProcessorPool(ScramMechanism.SCRAM_SHA_256, 2);
+
+        Connection connection = new Connection();
+        AbstractScramSaslClientProcessor processor = pool.acquire(connection, connection);
+        processor.start("user", PASSWORD);
+        assertFalse(processor.isEnded());
+
+        pool.release(processor);
+        assertTrue(processor.isEnded());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(0, connection.mSucceeded + connection.mFailed);
+    }
+
+
+    @Test
+    public void testMaxIdle() {
+        ScramClientProcessorPool pool = new ScramClientProcessorPool(ScramMechanism.SCRAM_SHA_256, 2);
+
+        List<AbstractScramSaslClientProcessor> processors = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Connection connection = new Connection();
+            processors.add(pool.acquire(connection, connection));
+        }
+        assertNotSame(processors.get(0), processors.get(1));
+
+        for (AbstractScramSaslClientProcessor processor : processors) {
+            pool.release(processor);
+        }
+        assertEquals(2, pool.getIdleCount());
+    }
+
+
+    @Test
+    public void testDerivationOfReleasedProcessorIsDiscarded() throws Exception {
+        ScramClientProcessorPool pool = new ScramClientProcessorPool(ScramMechanism.SCRAM_SHA_256, 2);
+        QueueExecutor executor = new QueueExecutor();
+
+        Connection first = new Connection();
+        AbstractScramSaslClientProcessor processor = pool.acquire(first, first);
+        processor.setDerivationExecutor(executor);
+        first.connect(processor);
+        processor.start("user", PASSWORD);
+        assertEquals(1, executor.mQueue.size());
+        Runnable stale = executor.mQueue.remove(0);
+
+        pool.release(processor);
+        Connection second = new Connection();
+        assertSame(processor, pool.acquire(second, second));
+        second.connect(processor);
+        processor.start("user", PASSWORD);
+
+        // the derivation of the released authentication finishes after the processor is reused
+        stale.run();
+        assertEquals(1, first.mMessages.size());
+        assertEquals(0, first.mSucceeded + first.mFailed);
+        assertEquals(1, second.mMessages.size());
+
+        executor.runAll();
+        assertEquals(1, second.mSucceeded);
+        assertEquals(2, second.mMessages.size());
+        assertEquals(1, first.mMessages.size());
+    }
+
+
+    private static UserData userData(String password) throws Exception {
+        ScramUtils.NewPasswordStringData data = ScramUtils.byteArrayToStringData(ScramUtils.newPassword(password,
+                "saltsaltsalt1234".getBytes(StandardCharsets.US_ASCII),
+                4096,
+                "SHA-256",
+                "HmacSHA256"));
+
+        return new UserData(data.salt, data.iterations, data.serverKey, data.storedKey);
+    }
+
+
+    /**
+     * Server side of one connection, records what the client sends and how the authentication ended
+     */
+    private static class Connection implements ScramSaslClientProcessor.Listener, ScramSaslClientProcessor.Sender {
+        private final List<String> mMessages = new ArrayList<>();
+        private ScramSaslServerProcessor mServer;
+        private int mSucceeded;
+        private int mFailed;
+
+
+        void connect(final ScramSaslClientProcessor client) throws Exception {
+            final UserData userData = userData(PASSWORD);
+            mServer = new ScramSha256SaslServerProcessor(1,
+                    new ScramSaslServerProcessor.Listener() {
+                        @Override
+                        public void onSuccess(long connectionId) {
+                        }
+
+
+                        @Override
+                        public void onFailure(long connectionId) {
+                            // the processor leaves the error message to the application
+                            deliver(client, "e=invalid-proof");
+                        }
+                    },
+                    new ScramSaslServerProcessor.UserDataLoader() {
+                        @Override
+                        public void loadUserData(String username,
+                                                 long connectionId,
+                                                 ScramSaslServerProcessor processor) {
+
+                            processor.onUserDataLoaded(userData);
+                        }
+                    },
+                    new ScramSaslServerProcessor.Sender() {
+                        @Override
+                        public void sendMessage(long connectionId, String msg) {
+                            deliver(client, msg);
+                        }
+                    });
+        }
+
+
+        private static void deliver(ScramSaslClientProcessor client, String msg) {
+            try {
+                client.onMessage(msg);
+            } catch (ScramException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+
+        @Override
+        public void onSuccess() {
+            mSucceeded++;
+        }
+
+
+        @Override
+        public void onFailure() {
+            mFailed++;
+        }
+
+
+        @Override
+        public void sendMessage(String msg) {
+            mMessages.add(msg);
+            if (mServer != null) {
+                try {
+                    mServer.onMessage(msg);
+                } catch (ScramException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+
+    private static class QueueExecutor implements Executor {
+        private final List<Runnable> mQueue = new ArrayList<>();
+
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+
+        void runAll() {
+            while (!mQueue.isEmpty()) {
+                mQueue.remove(0).run();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.ScramException;
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks that the negotiator never falls back to a weaker mechanism because of unknown costs
+ */
+public class ScramMechanismNegotiatorTest {
+    private static final ScramSaslClientProcessor.Listener LISTENER = new ScramSaslClientProcessor.Listener() {
+        @Override
+        public void onSuccess() {
+        }
+
+
+        @Override
+        public void onFailure() {
+        }
+    };
+
+    private static final ScramSaslClientProcessor.Sender SENDER = new ScramSaslClientProcessor.Sender() {
+        @Override
+        public void sendMessage(String msg) {
+        }
+    };
+
+
+    @Test
+    public void testDefaultPrefersSha256OverSha1() {
+        assertEquals(ScramMechanism.SCRAM_SHA_256,
+                new ScramMechanismNegotiator().select(advertised("SCRAM-SHA-1,SCRAM-SHA-256")));
+    }
+
+
+    @Test
+    public void testDefaultRejectsSha1Only() {
+        assertNull(new ScramMechanismNegotiator().select(advertised("SCRAM-SHA-1")));
+        assertNull(new ScramMechanismNegotiator().select(Collections.<String>emptyList()));
+    }
+
+
+    @Test
+    public void testStrongerWinsUnknownCosts() {
+        ScramMechanismNegotiator negotiator = new ScramMechanismNegotiator(ScramMechanism.SCRAM_SHA_1);
+
+        assertEquals(ScramMechanism.SCRAM_SHA_256, negotiator.select(advertised("SCRAM-SHA-1,SCRAM-SHA-256")));
+        assertEquals(ScramMechanism.SCRAM_SHA_512,
+                negotiator.select(advertised("SCRAM-SHA-512,SCRAM-SHA-1,SCRAM-SHA-256")));
+        assertEquals(ScramMechanism.SCRAM_SHA_1, negotiator.select(advertised("SCRAM-SHA-1")));
+    }
+
+
+    @Test
+    public void testNamesAreMatchedLoosely() {
+        ScramMechanismNegotiator negotiator = new ScramMechanismNegotiator();
+
+        assertEquals(ScramMechanism.SCRAM_SHA_256, negotiator.select(advertised("scram-sha-256, SCRAM-SHA-1")));
+        assertNull(negotiator.select(advertised("SCRAM-SHA-256-PLUS,PLAIN")));
+    }
+
+
+    @Test
+    public void testMinimumStrength() {
+        ScramMechanismNegotiator negotiator = new ScramMechanismNegotiator(ScramMechanism.SCRAM_SHA_512);
+
+        assertNull(negotiator.select(advertised("SCRAM-SHA-1,SCRAM-SHA-256")));
+        assertEquals(ScramMechanism.SCRAM_SHA_512, negotiator.select(advertised("SCRAM-SHA-256,SCRAM-SHA-512")));
+    }
+
+
+    @Test
+    public void testCreateProcessor() throws ScramException {
+        ScramMechanismNegotiator negotiator = new ScramMechanismNegotiator();
+
+        assertTrue(negotiator.createProcessor(advertised("SCRAM-SHA-1,SCRAM-SHA-256"), LISTENER, SENDER)
+                instanceof ScramSha256SaslClientProcessor);
+        assertTrue(negotiator.createProcessor(advertised("SCRAM-SHA-512"), LISTENER, SENDER)
+                instanceof ScramSha512SaslClientProcessor);
+    }
+
+
+    @Test(expected = ScramException.class)
+    public void testCreateProcessorWithoutAcceptableMechanism() throws ScramException {
+        new ScramMechanismNegotiator().createProcessor(advertised("SCRAM-SHA-1,PLAIN"), LISTENER, SENDER);
+    }
+
+
+    private static List<String> advertised(String mechanisms) {
+        return Arrays.asList(mechanisms.split(","));
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.client;
+
+
+import com.bolyartech.scram_sasl.common.CancellationSignal;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Checks that concurrent derivations of the same keys run once and that the cancellation of one caller does not
+ * affect the others
+ */
+public class SingleFlightKeyDerivationTest {
+    private static final int THREADS = 8;
+
+    private static final CancellationSignal NOT_CANCELLED = new CancellationSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final CancellationSignal CANCELLED = new CancellationSignal() {
+        @Override
+        public boolean isCancelled() {
+            return true;
+        }
+    };
+
+
+    @Test
+    public void testConcurrentCallersShareOneDerivation() throws Exception {
+        final CredentialKey key = key("single flight");
+        final AtomicInteger derivations = new AtomicInteger();
+        final CountDownLatch arrived = new CountDownLatch(THREADS);
+        final ClientKeys keys = keys();
+
+        final Callable<ClientKeys> derivation = new Callable<ClientKeys>() {
+            @Override
+            public ClientKeys call() throws Exception {
+                derivations.incrementAndGet();
+                // gives the other callers time to find this derivation
+                assertTrue(arrived.await(5, TimeUnit.SECONDS));
+                Thread.sleep(100);
+                return keys;
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<ClientKeys>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Callable<ClientKeys>() {
+                    @Override
+                    public ClientKeys call() throws Exception {
+                        arrived.countDown();
+                        return SingleFlightKeyDerivation.derive(key, derivation, NOT_CANCELLED);
+                    }
+                }));
+            }
+
+            for (Future<ClientKeys> result : results) {
+                assertSame(keys, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1, derivations.get());
+    }
+
+
+    @Test
+    public void testSequentialCallersDeriveAgain() throws Exception {
+        CredentialKey key = key("sequential");
+        final AtomicInteger derivations = new AtomicInteger();
+        Callable<ClientKeys> derivation = new Callable<ClientKeys>() {
+            @Override
+            public ClientKeys call() {
+                derivations.incrementAndGet();
+                return keys();
+            }
+        };
+
+        SingleFlightKeyDerivation.derive(key, derivation, NOT_CANCELLED);
+        SingleFlightKeyDerivation.derive(key, derivation, NOT_CANCELLED);
+        assertEquals(2, derivations.get());
+    }
+
+
+    @Test
+    public void testCancelledWaiterDoesNotStopDerivation() throws Exception {
+        final CredentialKey key = key("cancelled waiter");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ClientKeys keys = keys();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ClientKeys> owner = executor.submit(new Callable<ClientKeys>() {
+                @Override
+                public ClientKeys call() throws Exception {
+                    return SingleFlightKeyDerivation.derive(key, new Callable<ClientKeys>() {
+                        @Override
+                        public ClientKeys call() throws Exception {
+                            started.countDown();
+                            assertTrue(release.await(5, TimeUnit.SECONDS));
+                            return keys;
+                        }
+                    }, NOT_CANCELLED);
+                }
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            try {
+                SingleFlightKeyDerivation.derive(key, new Callable<ClientKeys>() {
+                    @Override
+                    public ClientKeys call() {
+                        throw new AssertionError("derivation is already running");
+                    }
+                }, CANCELLED);
+                fail("waiting was not cancelled");
+            } catch (CancellationException e) {
+                // expected
+            }
+
+            assertFalse(owner.isDone());
+            release.countDown();
+            assertSame(keys, owner.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testWaiterTakesOverCancelledDerivation() throws Exception {
+        final CredentialKey key = key("cancelled owner");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch cancel = new CountDownLatch(1);
+        final AtomicInteger derivations = new AtomicInteger();
+        final ClientKeys keys = keys();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<ClientKeys> owner = executor.submit(new Callable<ClientKeys>() {
+                @Override
+                public ClientKeys call() throws Exception {
+                    return SingleFlightKeyDerivation.derive(key, new Callable<ClientKeys>() {
+                        @Override
+                        public ClientKeys call() throws Exception {
+                            derivations.incrementAndGet();
+                            started.countDown();
+                            assertTrue(cancel.await(5, TimeUnit.SECONDS));
+                            throw new CancellationException("owner cancelled");
+                        }
+                    }, NOT_CANCELLED);
+                }
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            Future<ClientKeys> waiter = executor.submit(new Callable<ClientKeys>() {
+                @Override
+                public ClientKeys call() throws Exception {
+                    return SingleFlightKeyDerivation.derive(key, new Callable<ClientKeys>() {
+                        @Override
+                        public ClientKeys call() {
+                            derivations.incrementAndGet();
+                            return keys;
+                        }
+                    }, NOT_CANCELLED);
+                }
+            });
+            Thread.sleep(100);
+            cancel.countDown();
+
+            assertSame(keys, waiter.get(5, TimeUnit.SECONDS));
+            try {
+                owner.get(5, TimeUnit.SECONDS);
+                fail("owner was not cancelled");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof CancellationException);
+            }
+            assertEquals(2, derivations.get());
+        } finally {
+            cancel.countDown();
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testCheckedExceptionIsRethrown() throws Exception {
+        CredentialKey key = key("failing");
+        try {
+            SingleFlightKeyDerivation.derive(key, new Callable<ClientKeys>() {
+                @Override
+                public ClientKeys call() throws Exception {
+                    throw new InvalidKeyException("bad key");
+                }
+            }, NOT_CANCELLED);
+            fail("exception was not rethrown");
+        } catch (InvalidKeyException e) {
+            assertEquals("bad key", e.getMessage());
+        }
+
+        // the failed derivation is not kept
+        ClientKeys keys = keys();
+        assertSame(keys, SingleFlightKeyDerivation.derive(key, constant(keys), NOT_CANCELLED));
+    }
+
+
+    private static CredentialKey key(String password) {
+        return CredentialKey.create(password, new byte[]{1, 2, 3}, 4096, "HmacSHA256");
+    }
+
+
+    private static ClientKeys keys() {
+        return new ClientKeys(new byte[32], new byte[32], new byte[32]);
+    }
+
+
+    private static Callable<ClientKeys> constant(final ClientKeys keys) {
+        return new Callable<ClientKeys>() {
+            @Override
+            public ClientKeys call() {
+                return keys;
+            }
+        };
+    }
+}
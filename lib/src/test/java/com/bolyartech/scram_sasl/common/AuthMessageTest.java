@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Checks that the AuthMessage is encoded and authenticated like the concatenation of its parts, with every backend
+ */
+public class AuthMessageTest {
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+
+    @Test
+    public void testRfc5802AuthMessage() throws Exception {
+        String clientFirstBare = "n=user,r=fyko+d2lbbFgONRv9qkxdawL";
+        String serverFirst = "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096";
+        String clientFinal = "c=biws,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,p=v0X8v3Bz2T0CJGbJQyF0X+HI4Ts=";
+        String expected = clientFirstBare + "," + serverFirst + ",c=biws,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j";
+
+        AuthMessage message = new AuthMessage()
+                .append(clientFirstBare)
+                .append(',')
+                .append(new StringBuilder(serverFirst))
+                .append(',')
+                .append(clientFinal, 0, clientFinal.indexOf(",p="));
+
+        assertMessage(expected, message);
+    }
+
+
+    @Test
+    public void testNonAsciiParts() throws Exception {
+        byte[] received = "r=\u00e4\u20ac\ud83d\ude00".getBytes(StandardCharsets.UTF_8);
+        Utf8CharSequence view = new Utf8CharSequence().wrap(ByteBuffer.wrap(received));
+
+        AuthMessage message = new AuthMessage()
+                .append("n=\u00fcser")
+                .append(',')
+                .append('\u00e9')
+                .append(view)
+                .append(',')
+                .append('\u20ac');
+
+        assertMessage("n=\u00fcser,\u00e9r=\u00e4\u20ac\ud83d\ude00,\u20ac", message);
+    }
+
+
+    @Test
+    public void testLongerThanChunk() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append((char) ('a' + i % 26));
+            if (i % 97 == 0) {
+                sb.append("\u00e9\ud83d\ude00");
+            }
+        }
+
+        // the surrogate pairs fall on all positions relative to the chunk boundaries
+        for (int split = 250; split < 262; split++) {
+            AuthMessage message = new AuthMessage()
+                    .append(sb, 0, split)
+                    .append(',')
+                    .append(sb, split, sb.length());
+
+            assertMessage(sb.substring(0, split) + "," + sb.substring(split), message);
+        }
+    }
+
+
+    @Test
+    public void testClear() throws Exception {
+        AuthMessage message = new AuthMessage().append("n=user").append(',').append("r=x");
+        message.clear();
+        assertEquals(0, message.length());
+        assertEquals("", message.toString());
+
+        message.append("s=QSXCR+Q6sek8bf92");
+        assertMessage("s=QSXCR+Q6sek8bf92", message);
+    }
+
+
+    @Test
+    public void testManyParts() throws Exception {
+        AuthMessage message = new AuthMessage();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            message.append(Integer.toString(i)).append(',');
+            expected.append(i).append(',');
+        }
+
+        assertMessage(expected.toString(), message);
+    }
+
+
+    private static void assertMessage(String expected, AuthMessage message) throws Exception {
+        byte[] bytes = expected.getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(expected, message.toString());
+        assertEquals(bytes.length, message.length());
+        assertArrayEquals(bytes, message.toByteArray());
+
+        for (ScramMechanism mechanism : ScramMechanism.values()) {
+            Mac mac = Mac.getInstance(mechanism.getHmacName());
+            mac.init(new SecretKeySpec(KEY, mechanism.getHmacName()));
+            byte[] expectedHmac = mac.doFinal(bytes);
+
+            message.update(mac);
+            assertArrayEquals(mechanism.toString(), expectedHmac, mac.doFinal());
+
+            try {
+                for (CryptoBackend backend : CryptoBackends.getBuiltInBackends()) {
+                    CryptoBackends.setBackend(mechanism, backend);
+                    String name = backend.getName() + ", " + mechanism;
+
+                    assertArrayEquals(name, expectedHmac, message.computeHmac(KEY, mechanism.getHmacName()));
+                    assertArrayEquals(name, expectedHmac, backend.computeHmac(KEY, mechanism, message));
+                }
+            } finally {
+                CryptoBackends.setBackend(mechanism, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * Checks the codec against <code>java.util.Base64</code> and that only the canonical encoding is accepted
+ */
+public class Base64CodecTest {
+    private static final String[] INVALID = {
+            "A",
+            "AA",
+            "AAA",
+            "AAAAA",
+            "AA=A",
+            "A===",
+            "====",
+            "=AAA",
+            "AA==AAAA",
+            "AAA=AAAA",
+            "AA AA",
+            "AAAA\nAAAA",
+            "AAAA\r\n",
+            " AAA",
+            "AA-_",
+            "AA.A",
+            "QR==",
+            "QUJ=",
+            "AA\u00e9A",
+            "AA\u0141A",
+    };
+
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(42);
+        for (int length = 0; length <= 70; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String expected = java.util.Base64.getEncoder().encodeToString(data);
+            String message = "length " + length;
+
+            assertEquals(message, expected.length(), Base64Codec.encodedLength(length));
+            assertEquals(message, expected, Base64Codec.encodeToString(data));
+            assertEquals(message, "v=" + expected, Base64Codec.encode(data, new StringBuilder("v=")).toString());
+
+            char[] chars = new char[expected.length() + 2];
+            assertEquals(message, expected.length(), Base64Codec.encode(data, 0, length, chars, 1));
+            assertEquals(message, expected, new String(chars, 1, expected.length()));
+
+            byte[] bytes = new byte[expected.length() + 2];
+            assertEquals(message, expected.length(), Base64Codec.encode(data, 0, length, bytes, 1));
+            assertEquals(message, expected, new String(bytes, 1, expected.length(), StandardCharsets.US_ASCII));
+
+            assertArrayEquals(message, data, Base64Codec.decode(expected));
+            assertArrayEquals(message, data, Base64Codec.decode("r=" + expected + ",", 2, expected.length()));
+            assertEquals(message, length, Base64Codec.decodedLength(expected, 0, expected.length()));
+
+            byte[] decoded = new byte[length + 1];
+            assertEquals(message, length, Base64Codec.decode(chars, 1, expected.length(), decoded, 1));
+            assertArrayEquals(message, data, Arrays.copyOfRange(decoded, 1, length + 1));
+            assertEquals(message, length, Base64Codec.decode(expected, 0, expected.length(), decoded, 1));
+            assertArrayEquals(message, data, Arrays.copyOfRange(decoded, 1, length + 1));
+
+            // in place
+            assertEquals(message, length, Base64Codec.decode(bytes, 1, expected.length(), bytes, 0));
+            assertArrayEquals(message, data, Arrays.copyOf(bytes, length));
+        }
+    }
+
+
+    @Test
+    public void testByteBufferRoundTrip() {
+        Random random = new Random(7);
+        for (int length = 0; length <= 70; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String message = "length " + length;
+
+            for (boolean direct : new boolean[]{false, true}) {
+                ByteBuffer src = buffer(data, direct);
+                ByteBuffer encoded = direct ? ByteBuffer.allocateDirect(Base64Codec.encodedLength(length)) :
+                        ByteBuffer.allocate(Base64Codec.encodedLength(length));
+                assertEquals(message, encoded.capacity(), Base64Codec.encode(src, encoded));
+                assertEquals(message, src.limit(), src.position());
+                encoded.flip();
+
+                byte[] encodedBytes = new byte[encoded.remaining()];
+                encoded.duplicate().get(encodedBytes);
+                assertArrayEquals(message, java.util.Base64.getEncoder().encode(data), encodedBytes);
+
+                ByteBuffer decoded = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+                assertEquals(message, length, Base64Codec.decode(encoded, decoded));
+                assertEquals(message, encoded.limit(), encoded.position());
+                decoded.flip();
+
+                byte[] decodedBytes = new byte[decoded.remaining()];
+                decoded.get(decodedBytes);
+                assertArrayEquals(message, data, decodedBytes);
+            }
+        }
+    }
+
+
+    @Test
+    public void testInvalidIsRejected() {
+        for (String s : INVALID) {
+            assertNull(s, Base64Codec.decode(s));
+            assertEquals(s, -1, Base64Codec.decode(s, 0, s.length(), new byte[s.length()], 0));
+            assertEquals(s, -1, Base64Codec.decode(s.toCharArray(), 0, s.length(), new byte[s.length()], 0));
+        }
+    }
+
+
+    @Test
+    public void testInvalidBytesAreRejected() {
+        for (String s : INVALID) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            assertEquals(s, -1, Base64Codec.decode(bytes, 0, bytes.length, new byte[bytes.length], 0));
+
+            ByteBuffer src = ByteBuffer.wrap(bytes);
+            ByteBuffer dst = ByteBuffer.allocate(bytes.length);
+            assertEquals(s, -1, Base64Codec.decode(src, dst));
+            assertEquals(s, 0, src.position());
+            assertEquals(s, 0, dst.position());
+        }
+    }
+
+
+    @Test
+    public void testEmpty() {
+        assertEquals("", Base64Codec.encodeToString(new byte[0]));
+        assertArrayEquals(new byte[0], Base64Codec.decode(""));
+    }
+
+
+    @Test
+    public void testLegacyEncoderIsDecoded() throws Exception {
+        byte[] data = new byte[64];
+        new Random(3).nextBytes(data);
+
+        assertArrayEquals(data, Base64Codec.decode(Base64.encodeBytes(data, Base64.DONT_BREAK_LINES)));
+        // the default of the legacy encoder breaks lines, which the strict codec does not accept
+        assertNull(Base64Codec.decode(Base64.encodeBytes(data)));
+    }
+
+
+    private static ByteBuffer buffer(byte[] data, boolean direct) {
+        ByteBuffer ret = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+        ret.put(data).flip();
+        return ret;
+    }
+}
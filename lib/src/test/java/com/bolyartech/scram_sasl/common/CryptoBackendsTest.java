@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Checks every built-in backend, alone and run in steps, against the PBKDF2-HMAC-SHA1 vectors of RFC 6070 and
+ * against each other for the other mechanisms
+ */
+public class CryptoBackendsTest {
+    private static final Vector[] RFC_6070 = {
+            new Vector("password", "salt", 1, "0c60c80f961f0e71f3a9b524af6012062fe037a6"),
+            new Vector("password", "salt", 2, "ea6c014dc72d6f8ccd1ed92ace1d41f0d8de8957"),
+            new Vector("password", "salt", 4096, "4b007901b765489abead49d926f721d065a429c1"),
+            // the RFC asks for 25 and 16 bytes, SCRAM uses the first block only
+            new Vector("passwordPASSWORDpassword", "saltSALTsaltSALTsaltSALTsaltSALTsalt", 4096,
+                    "3d2eec4fe41c849b80c8d83662c0e44a8b291a96"),
+            new Vector("pass\0word", "sa\0lt", 4096, "56fa6aa75548099dcc37d7f03425e0c3"),
+    };
+
+    private static final byte[] SALT = "QSXCR+Q6sek8bf92".getBytes(StandardCharsets.US_ASCII);
+
+
+    @Test
+    public void testRfc6070Vectors() throws Exception {
+        for (CryptoBackend backend : CryptoBackends.getBuiltInBackends()) {
+            assertTrue(backend.getName(), backend.isAvailable(ScramMechanism.SCRAM_SHA_1));
+
+            for (Vector vector : RFC_6070) {
+                byte[] output = new byte[ScramMechanism.SCRAM_SHA_1.getHashSize() + 2];
+                backend.generateSaltedPassword(vector.password, vector.salt, vector.iterations,
+                        ScramMechanism.SCRAM_SHA_1, output, 2);
+
+                assertArrayEquals(backend.getName() + ", " + vector, vector.expected,
+                        Arrays.copyOfRange(output, 2, 2 + vector.expected.length));
+            }
+        }
+    }
+
+
+    @Test
+    public void testSteppedRfc6070Vectors() throws Exception {
+        try {
+            for (CryptoBackend backend : CryptoBackends.getBuiltInBackends()) {
+                CryptoBackends.setBackend(ScramMechanism.SCRAM_SHA_1, backend);
+
+                for (Vector vector : RFC_6070) {
+                    for (int slice : new int[]{1, 7, 1000, 10000}) {
+                        IncrementalPbkdf2 derivation = IncrementalPbkdf2.create(vector.password, vector.salt,
+                                vector.iterations, ScramMechanism.SCRAM_SHA_1.getHmacName());
+                        int steps = 1;
+                        while (!derivation.step(slice)) {
+                            steps++;
+                        }
+
+                        // the first iteration is computed by create()
+                        String message = backend.getName() + ", " + vector + ", slice " + slice;
+                        assertEquals(message, Math.max((vector.iterations + slice - 2) / slice, 1), steps);
+                        assertEquals(message, 0, derivation.getRemainingIterations());
+                        assertArrayEquals(message, vector.expected,
+                                Arrays.copyOf(derivation.getSaltedPassword(), vector.expected.length));
+                    }
+                }
+            }
+        } finally {
+            CryptoBackends.setBackend(ScramMechanism.SCRAM_SHA_1, null);
+        }
+    }
+
+
+    @Test
+    public void testBackendsAgree() throws Exception {
+        byte[] password = "pencil".getBytes(StandardCharsets.US_ASCII);
+        byte[] data = "n=user,r=fyko+d2lbbFgONRv9qkxdawL".getBytes(StandardCharsets.US_ASCII);
+
+        for (ScramMechanism mechanism : ScramMechanism.values()) {
+            byte[] expected = new byte[mechanism.getHashSize()];
+            CryptoBackends.JCA_MAC.generateSaltedPassword(password, SALT, 4096, mechanism, expected, 0);
+            byte[] expectedHmac = CryptoBackends.JCA_MAC.computeHmac(expected, mechanism, data);
+
+            for (CryptoBackend backend : CryptoBackends.getBuiltInBackends()) {
+                String message = backend.getName() + ", " + mechanism;
+                byte[] output = new byte[mechanism.getHashSize()];
+                backend.generateSaltedPassword(password, SALT, 4096, mechanism, output, 0);
+
+                assertArrayEquals(message, expected, output);
+                assertArrayEquals(message, expectedHmac, backend.computeHmac(expected, mechanism, data));
+            }
+        }
+    }
+
+
+    @Test
+    public void testDefaultBackendIsJcaMac() {
+        for (ScramMechanism mechanism : ScramMechanism.values()) {
+            assertSame(mechanism.toString(), CryptoBackends.JCA_MAC, CryptoBackends.getBackend(mechanism));
+        }
+
+        CryptoBackends.setBackend(ScramMechanism.SCRAM_SHA_256, CryptoBackends.PURE_JAVA);
+        try {
+            assertSame(CryptoBackends.PURE_JAVA, CryptoBackends.getBackend(ScramMechanism.SCRAM_SHA_256));
+            assertSame(CryptoBackends.PURE_JAVA, IncrementalPbkdf2.getSteppedBackend(ScramMechanism.SCRAM_SHA_256));
+        } finally {
+            CryptoBackends.setBackend(ScramMechanism.SCRAM_SHA_256, null);
+        }
+        assertSame(CryptoBackends.JCA_MAC, CryptoBackends.getBackend(ScramMechanism.SCRAM_SHA_256));
+    }
+
+
+    @Test
+    public void testSteppedBackendFallsBackToJcaMac() {
+        CryptoBackends.setBackend(ScramMechanism.SCRAM_SHA_256, CryptoBackends.SECRET_KEY_FACTORY);
+        try {
+            assertSame(CryptoBackends.JCA_MAC, IncrementalPbkdf2.getSteppedBackend(ScramMechanism.SCRAM_SHA_256));
+        } finally {
+            CryptoBackends.setBackend(ScramMechanism.SCRAM_SHA_256, null);
+        }
+    }
+
+
+    @Test
+    public void testCancellation() throws Exception {
+        final AtomicInteger checks = new AtomicInteger();
+        CancellationSignal signal = new CancellationSignal() {
+            @Override
+            public boolean isCancelled() {
+                return checks.incrementAndGet() == 3;
+            }
+        };
+
+        try {
+            ScramUtils.generateSaltedPassword("pencil".getBytes(StandardCharsets.US_ASCII), SALT, Integer.MAX_VALUE,
+                    ScramMechanism.SCRAM_SHA_256.getHmacName(), signal);
+            fail("derivation was not cancelled");
+        } catch (CancellationException e) {
+            // expected
+        }
+
+        // stopped at the first check which saw the cancellation
+        assertEquals(3, checks.get());
+    }
+
+
+    @Test
+    public void testCancellationByInterrupt() throws Exception {
+        CancellationSignal never = new CancellationSignal() {
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+
+        Thread.currentThread().interrupt();
+        try {
+            ScramUtils.generateSaltedPassword("pencil".getBytes(StandardCharsets.US_ASCII), SALT, Integer.MAX_VALUE,
+                    ScramMechanism.SCRAM_SHA_256.getHmacName(), never);
+            fail("derivation was not cancelled");
+        } catch (CancellationException e) {
+            // the interrupted status is left set
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+
+    @Test
+    public void testNotCancelledMatchesPlainDerivation() throws Exception {
+        CancellationSignal never = new CancellationSignal() {
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+
+        for (ScramMechanism mechanism : ScramMechanism.values()) {
+            byte[] password = "pencil".getBytes(StandardCharsets.US_ASCII);
+            int iterations = ScramUtils.CANCELLATION_CHECK_ITERATIONS * 3 + 1;
+
+            assertArrayEquals(mechanism.toString(),
+                    ScramUtils.generateSaltedPassword(password, SALT, iterations, mechanism.getHmacName()),
+                    ScramUtils.generateSaltedPassword(password, SALT, iterations, mechanism.getHmacName(), never));
+            assertFalse(Thread.currentThread().isInterrupted());
+        }
+    }
+
+
+    private static byte[] hex(String s) {
+        byte[] ret = new byte[s.length() / 2];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return ret;
+    }
+
+
+    private static class Vector {
+        final byte[] password;
+        final byte[] salt;
+        final int iterations;
+        final byte[] expected;
+
+
+        Vector(String password, String salt, int iterations, String expected) {
+            this.password = password.getBytes(StandardCharsets.US_ASCII);
+            this.salt = salt.getBytes(StandardCharsets.US_ASCII);
+            this.iterations = iterations;
+            this.expected = hex(expected);
+        }
+
+
+        @Override
+        public String toString() {
+            return password.length + " byte password, " + salt.length + " byte salt, " + iterations + " iterations";
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Checks the legacy encoding, which must stay compatible with the existing credentials, and the SASLprep examples
+ * of RFC 4013
+ */
+public class PasswordEncoderTest {
+    private static final String[] LEGACY = {
+            "",
+            "pencil",
+            " !~",
+            "p\u00e4ss",
+            "\u2168",
+            "a\u0007b\tc",
+            "\ud83d\ude00x",
+            "\ud83dx",
+            "x\ude00",
+            "\u00ad",
+    };
+
+
+    @After
+    public void tearDown() {
+        PasswordEncoder.setSaslPrepEnabled(false);
+    }
+
+
+    @Test
+    public void testLegacyIsDefault() {
+        assertFalse(PasswordEncoder.isSaslPrepEnabled());
+    }
+
+
+    @Test
+    public void testLegacyMatchesStringGetBytes() throws Exception {
+        for (String password : LEGACY) {
+            assertEncoded(password, password.getBytes(StandardCharsets.US_ASCII), password);
+        }
+    }
+
+
+    @Test
+    public void testLegacyNonAsciiBecomesQuestionMark() throws Exception {
+        assertEncoded("umlaut", "p?ss".getBytes(StandardCharsets.US_ASCII), "p\u00e4ss");
+        assertEncoded("surrogate pair", "?x".getBytes(StandardCharsets.US_ASCII), "\ud83d\ude00x");
+    }
+
+
+    @Test
+    public void testPrintableAsciiIsSameInBothModes() throws Exception {
+        String password = "pencil !\"#$%&'()*+,-./:;<=>?@[]^_`{|}~";
+        byte[] expected = password.getBytes(StandardCharsets.US_ASCII);
+
+        assertEncoded("legacy", expected, password);
+        PasswordEncoder.setSaslPrepEnabled(true);
+        assertEncoded("SASLprep", expected, password);
+    }
+
+
+    @Test
+    public void testSaslPrepRfc4013Examples() throws Exception {
+        PasswordEncoder.setSaslPrepEnabled(true);
+
+        assertEncoded("soft hyphen", utf8("IX"), "I\u00adX");
+        assertEncoded("user", utf8("user"), "user");
+        assertEncoded("USER", utf8("USER"), "USER");
+        assertEncoded("ordinal indicator", utf8("a"), "\u00aa");
+        assertEncoded("roman numeral nine", utf8("IX"), "\u2168");
+
+        assertProhibited("control character", "\u0007");
+        assertProhibited("bidi check", "\u06271");
+    }
+
+
+    @Test
+    public void testSaslPrepEncodesUtf8() throws Exception {
+        PasswordEncoder.setSaslPrepEnabled(true);
+
+        assertEncoded("non-ASCII space", utf8("a b"), "a\u00a0b");
+        assertEncoded("umlaut", utf8("p\u00e4ss"), "p\u00e4ss");
+        assertEncoded("supplementary", utf8("\ud83d\ude00"), "\ud83d\ude00");
+        assertProhibited("unpaired surrogate", "\ud83dx");
+    }
+
+
+    @Test
+    public void testPositionIsNotChanged() throws Exception {
+        CharBuffer buffer = CharBuffer.wrap("xxpencil");
+        buffer.position(2);
+
+        byte[] encoded = PasswordEncoder.encode(buffer);
+        try {
+            assertArrayEquals(utf8("pencil"), encoded);
+            assertEquals(2, buffer.position());
+        } finally {
+            PasswordEncoder.release(encoded);
+        }
+    }
+
+
+    @Test
+    public void testReleaseZeroes() throws Exception {
+        byte[] encoded = PasswordEncoder.encode("pencil".toCharArray());
+        PasswordEncoder.release(encoded);
+
+        assertArrayEquals(new byte[6], encoded);
+    }
+
+
+    @Test
+    public void testLegacyCredentialsStillVerify() throws Exception {
+        // credentials created by the earlier versions with String.getBytes(US_ASCII)
+        String password = "p\u00e4ss\u2168";
+        byte[] salt = "W22ZaJ0SNY7soEsUEjb6gQ==".getBytes(StandardCharsets.US_ASCII);
+        byte[] expected = ScramUtils.generateSaltedPassword(password.getBytes(StandardCharsets.US_ASCII), salt,
+                4096, "HmacSHA256");
+
+        assertArrayEquals(expected, ScramUtils.generateSaltedPassword(password, salt, 4096, "HmacSHA256"));
+        assertArrayEquals(expected,
+                ScramUtils.generateSaltedPassword(password.toCharArray(), salt, 4096, "HmacSHA256"));
+    }
+
+
+    private static void assertEncoded(String message, byte[] expected, String password) throws Exception {
+        byte[] encoded = PasswordEncoder.encode(password.toCharArray());
+        try {
+            assertArrayEquals(message, expected, encoded);
+        } finally {
+            PasswordEncoder.release(encoded);
+        }
+
+        encoded = PasswordEncoder.encode(CharBuffer.wrap(password));
+        try {
+            assertArrayEquals(message, expected, encoded);
+        } finally {
+            PasswordEncoder.release(encoded);
+        }
+    }
+
+
+    private static void assertProhibited(String message, String password) {
+        try {
+            PasswordEncoder.release(PasswordEncoder.encode(password.toCharArray()));
+            fail(message + " was not rejected");
+        } catch (ScramException e) {
+            // expected
+        }
+    }
+
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
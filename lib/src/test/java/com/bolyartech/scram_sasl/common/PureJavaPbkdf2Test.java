@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks the pure Java engine against the JCA
+ */
+public class PureJavaPbkdf2Test {
+    private static final int[] ITERATIONS = {1, 2, 4096};
+    private static final byte[] SALT = "QSXCR+Q6sek8bf92".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATA = ("n=user,r=fyko+d2lbbFgONRv9qkxdawL,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j," +
+            "s=QSXCR+Q6sek8bf92,i=4096").getBytes(StandardCharsets.US_ASCII);
+
+
+    @Test
+    public void testSaltedPasswordMatchesJca() throws Exception {
+        for (ScramMechanism mechanism : ScramMechanism.values()) {
+            for (String password : passwords(mechanism)) {
+                for (int iterations : ITERATIONS) {
+                    byte[] expected = jcaSaltedPassword(mechanism, password, iterations);
+                    byte[] passwordBytes = password.getBytes(StandardCharsets.US_ASCII);
+                    String message = mechanism + ", password length " + password.length() + ", " + iterations +
+                            " iterations";
+
+                    assertArrayEquals(message, expected,
+                            PureJavaPbkdf2.generateSaltedPassword(passwordBytes, SALT, iterations, mechanism));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void testSaltedPasswordAtOffset() throws Exception {
+        for (ScramMechanism mechanism : ScramMechanism.values()) {
+            byte[] expected = jcaSaltedPassword(mechanism, "pencil", 4096);
+            byte[] output = new byte[mechanism.getHashSize() + 3];
+
+            PureJavaPbkdf2.generateSaltedPassword("pencil".getBytes(StandardCharsets.US_ASCII), SALT, 4096, mechanism,
+                    output, 3);
+            assertArrayEquals(mechanism.toString(), expected, Arrays.copyOfRange(output, 3, output.length));
+        }
+    }
+
+
+    @Test
+    public void testHmacMatchesJca() throws Exception {
+        for (ScramMechanism mechanism : ScramMechanism.values()) {
+            for (String password : passwords(mechanism)) {
+                byte[] key = password.getBytes(StandardCharsets.US_ASCII);
+                Mac mac = Mac.getInstance(mechanism.getHmacName());
+                mac.init(new RawKey(key, mechanism.getHmacName()));
+
+                assertArrayEquals(mechanism + ", key length " + key.length, mac.doFinal(DATA),
+                        PureJavaPbkdf2.computeHmac(key, mechanism, DATA));
+            }
+        }
+    }
+
+
+    @Test
+    public void testSelfTest() {
+        for (ScramMechanism mechanism : ScramMechanism.values()) {
+            assertTrue(mechanism.toString(), PureJavaPbkdf2.selfTest(mechanism));
+        }
+    }
+
+
+    // empty, short and longer than the block, which is hashed before use as a key
+    private static String[] passwords(ScramMechanism mechanism) {
+        char[] longPassword = new char[mechanism.getBlockSize() * 2 + 5];
+        for (int i = 0; i < longPassword.length; i++) {
+            longPassword[i] = (char) ('!' + i % 90);
+        }
+
+        return new String[]{"", "pencil", new String(longPassword)};
+    }
+
+
+    private static byte[] jcaSaltedPassword(ScramMechanism mechanism, String password, int iterations)
+            throws Exception {
+
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2With" + mechanism.getHmacName());
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), SALT, iterations, mechanism.getHashSize() * 8);
+        return factory.generateSecret(spec).getEncoded();
+    }
+
+
+    /**
+     * Raw HMAC key, unlike {@link javax.crypto.spec.SecretKeySpec} it may be empty
+     */
+    private static class RawKey implements SecretKey {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] mKey;
+        private final String mAlgorithm;
+
+
+        RawKey(byte[] key, String algorithm) {
+            mKey = key;
+            mAlgorithm = algorithm;
+        }
+
+
+        @Override
+        public String getAlgorithm() {
+            return mAlgorithm;
+        }
+
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+
+        @Override
+        public byte[] getEncoded() {
+            return mKey.clone();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.common;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Checks that split, coalesced and oversized frames are handled by both framings
+ */
+public class ScramFrameDecoderTest {
+    private static final List<String> MESSAGES = Arrays.asList("n,,n=user,r=fyko+d2lbbFgONRv9qkxdawL",
+            "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096",
+            "x");
+
+
+    @Test
+    public void testLengthPrefixedInOneBuffer() throws Exception {
+        checkInOneBuffer(ScramFrameDecoder.Framing.LENGTH_PREFIXED, false);
+        checkInOneBuffer(ScramFrameDecoder.Framing.LENGTH_PREFIXED, true);
+    }
+
+
+    @Test
+    public void testNewlineDelimitedInOneBuffer() throws Exception {
+        checkInOneBuffer(ScramFrameDecoder.Framing.NEWLINE_DELIMITED, false);
+        checkInOneBuffer(ScramFrameDecoder.Framing.NEWLINE_DELIMITED, true);
+    }
+
+
+    @Test
+    public void testLengthPrefixedSplit() throws Exception {
+        checkSplit(ScramFrameDecoder.Framing.LENGTH_PREFIXED, stream(ScramFrameDecoder.Framing.LENGTH_PREFIXED));
+    }
+
+
+    @Test
+    public void testNewlineDelimitedSplit() throws Exception {
+        checkSplit(ScramFrameDecoder.Framing.NEWLINE_DELIMITED, stream(ScramFrameDecoder.Framing.NEWLINE_DELIMITED));
+    }
+
+
+    @Test
+    public void testCarriageReturnNewlineSplit() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String message : MESSAGES) {
+            byte[] bytes = message.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes, 0, bytes.length);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        checkSplit(ScramFrameDecoder.Framing.NEWLINE_DELIMITED, out.toByteArray());
+    }
+
+
+    @Test
+    public void testLengthPrefixedMaxLength() throws Exception {
+        ScramFrameDecoder decoder = new ScramFrameDecoder(ScramFrameDecoder.Framing.LENGTH_PREFIXED, 8, false);
+        List<String> received = new ArrayList<>();
+
+        decoder.decode(ByteBuffer.wrap(new byte[]{0, 0, 0, 8, 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h'}),
+                collector(received));
+        assertEquals(Arrays.asList("abcdefgh"), received);
+    }
+
+
+    @Test
+    public void testLengthPrefixedOversizedIsRejectedByHeader() throws Exception {
+        // only the header has arrived, the message is rejected before its bytes are buffered
+        assertOversized(new ScramFrameDecoder(ScramFrameDecoder.Framing.LENGTH_PREFIXED, 8, false),
+                new byte[]{0, 0, 0, 9});
+        assertOversized(new ScramFrameDecoder(ScramFrameDecoder.Framing.LENGTH_PREFIXED, 8, false),
+                new byte[]{(byte) 0x80, 0, 0, 0});
+    }
+
+
+    @Test
+    public void testLengthPrefixedOversizedWithSplitHeader() throws Exception {
+        ScramFrameDecoder decoder = new ScramFrameDecoder(ScramFrameDecoder.Framing.LENGTH_PREFIXED, 8, false);
+        List<String> received = new ArrayList<>();
+
+        decoder.decode(ByteBuffer.wrap(new byte[]{0, 0}), collector(received));
+        assertTrue(decoder.hasPending());
+        assertOversized(decoder, new byte[]{1, 0, 'a'});
+        assertTrue(received.isEmpty());
+    }
+
+
+    @Test
+    public void testNewlineDelimitedMaxLength() throws Exception {
+        ScramFrameDecoder decoder = new ScramFrameDecoder(ScramFrameDecoder.Framing.NEWLINE_DELIMITED, 4, false);
+        List<String> received = new ArrayList<>();
+
+        decoder.decode(ByteBuffer.wrap("abcd\nefgh\r\n".getBytes(StandardCharsets.US_ASCII)), collector(received));
+        decoder.decode(ByteBuffer.wrap("ijkl\r".getBytes(StandardCharsets.US_ASCII)), collector(received));
+        decoder.decode(ByteBuffer.wrap("\n".getBytes(StandardCharsets.US_ASCII)), collector(received));
+        assertEquals(Arrays.asList("abcd", "efgh", "ijkl"), received);
+    }
+
+
+    @Test
+    public void testNewlineDelimitedOversized() throws Exception {
+        assertOversized(new ScramFrameDecoder(ScramFrameDecoder.Framing.NEWLINE_DELIMITED, 4, false),
+                "abcde\n".getBytes(StandardCharsets.US_ASCII));
+        assertOversized(new ScramFrameDecoder(ScramFrameDecoder.Framing.NEWLINE_DELIMITED, 4, false),
+                "abcdef".getBytes(StandardCharsets.US_ASCII));
+        assertOversized(new ScramFrameDecoder(ScramFrameDecoder.Framing.NEWLINE_DELIMITED, 4, false),
+                "abcde\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+
+    @Test
+    public void testNewlineDelimitedOversizedWhileSplit() throws Exception {
+        ScramFrameDecoder decoder = new ScramFrameDecoder(ScramFrameDecoder.Framing.NEWLINE_DELIMITED, 4, false);
+        List<String> received = new ArrayList<>();
+
+        decoder.decode(ByteBuffer.wrap("abc".getBytes(StandardCharsets.US_ASCII)), collector(received));
+        assertTrue(decoder.hasPending());
+        // one more byte than the maximum is kept as it may be the '\r' of "\r\n"
+        decoder.decode(ByteBuffer.wrap("d\r".getBytes(StandardCharsets.US_ASCII)), collector(received));
+        assertOversized(decoder, "e".getBytes(StandardCharsets.US_ASCII));
+
+        decoder = new ScramFrameDecoder(ScramFrameDecoder.Framing.NEWLINE_DELIMITED, 4, false);
+        decoder.decode(ByteBuffer.wrap("abc".getBytes(StandardCharsets.US_ASCII)), collector(received));
+        assertOversized(decoder, "de\n".getBytes(StandardCharsets.US_ASCII));
+        assertTrue(received.isEmpty());
+    }
+
+
+    @Test
+    public void testResetAfterOversized() throws Exception {
+        for (ScramFrameDecoder.Framing framing : ScramFrameDecoder.Framing.values()) {
+            ScramFrameDecoder decoder = new ScramFrameDecoder(framing, 8, false);
+            List<String> received = new ArrayList<>();
+
+            byte[] oversized = framing == ScramFrameDecoder.Framing.LENGTH_PREFIXED ? new byte[]{0, 0, 0, 9} :
+                    "123456789\n".getBytes(StandardCharsets.US_ASCII);
+            assertOversized(decoder, oversized);
+
+            decoder.reset();
+            assertFalse(decoder.hasPending());
+            decoder.decode(ByteBuffer.wrap(frame(framing, "x")), collector(received));
+            assertEquals(framing.toString(), Arrays.asList("x"), received);
+        }
+    }
+
+
+    private static void checkInOneBuffer(ScramFrameDecoder.Framing framing, boolean direct) throws Exception {
+        ScramFrameDecoder decoder = new ScramFrameDecoder(framing, ScramFrameDecoder.DEFAULT_MAX_MESSAGE_LENGTH,
+                direct);
+        List<String> received = new ArrayList<>();
+        byte[] bytes = stream(framing);
+        ByteBuffer input = direct ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.allocate(bytes.length);
+        input.put(bytes).flip();
+
+        decoder.decode(input, collector(received));
+
+        assertEquals(MESSAGES, received);
+        assertEquals(input.limit(), input.position());
+        assertFalse(decoder.hasPending());
+    }
+
+
+    /**
+     * Feeds the stream in all the splits into two buffers and byte by byte
+     */
+    private static void checkSplit(ScramFrameDecoder.Framing framing, byte[] stream) throws Exception {
+        ScramFrameDecoder decoder = new ScramFrameDecoder(framing);
+        List<String> received = new ArrayList<>();
+
+        for (int split = 0; split <= stream.length; split++) {
+            received.clear();
+            ByteBuffer first = ByteBuffer.wrap(stream, 0, split);
+            ByteBuffer second = ByteBuffer.wrap(stream, split, stream.length - split);
+
+            decoder.decode(first, collector(received));
+            assertEquals(first.limit(), first.position());
+            decoder.decode(second, collector(received));
+            assertEquals(second.limit(), second.position());
+
+            assertEquals("split at " + split, MESSAGES, received);
+            assertFalse(decoder.hasPending());
+        }
+
+        received.clear();
+        for (int i = 0; i < stream.length; i++) {
+            decoder.decode(ByteBuffer.wrap(stream, i, 1), collector(received));
+        }
+        assertEquals(MESSAGES, received);
+        assertFalse(decoder.hasPending());
+    }
+
+
+    private static void assertOversized(ScramFrameDecoder decoder, byte[] bytes) {
+        try {
+            decoder.decode(ByteBuffer.wrap(bytes), new ScramFrameDecoder.MessageHandler() {
+                @Override
+                public void onMessage(ByteBuffer message) {
+                    fail("oversized message was dispatched");
+                }
+            });
+            fail("oversized message was not rejected");
+        } catch (ScramException e) {
+            // expected
+        }
+    }
+
+
+    private static byte[] stream(ScramFrameDecoder.Framing framing) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String message : MESSAGES) {
+            byte[] frame = frame(framing, message);
+            out.write(frame, 0, frame.length);
+        }
+
+        return out.toByteArray();
+    }
+
+
+    private static byte[] frame(ScramFrameDecoder.Framing framing, String message) {
+        ByteBuffer frame = new ScramFrameDecoder(framing).frame(
+                ByteBuffer.wrap(message.getBytes(StandardCharsets.US_ASCII)));
+        byte[] ret = new byte[frame.remaining()];
+        frame.get(ret);
+        return ret;
+    }
+
+
+    private static ScramFrameDecoder.MessageHandler collector(final List<String> received) {
+        return new ScramFrameDecoder.MessageHandler() {
+            @Override
+            public void onMessage(ByteBuffer message) {
+                byte[] bytes = new byte[message.remaining()];
+                message.get(bytes);
+                received.add(new String(bytes, StandardCharsets.US_ASCII));
+            }
+        };
+    }
+}
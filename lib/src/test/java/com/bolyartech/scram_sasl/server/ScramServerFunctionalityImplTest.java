@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.server;
+
+
+import com.bolyartech.scram_sasl.client.ScramClientFunctionalityImpl;
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+import com.bolyartech.scram_sasl.common.ScramUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks how the server parses client's first and final messages
+ */
+public class ScramServerFunctionalityImplTest {
+    private static final ScramMechanism MECHANISM = ScramMechanism.SCRAM_SHA_256;
+    private static final String PASSWORD = "pencil";
+    private static final String CLIENT_NONCE = "rOprNGfwEbeRWgbNEkqO";
+    private static final String SERVER_NONCE = "%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0";
+
+    private ScramServerFunctionalityImpl mServer;
+    private UserData mUserData;
+
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ScramServerFunctionalityImpl(MECHANISM.getDigestName(), MECHANISM.getHmacName(), SERVER_NONCE);
+
+        ScramUtils.NewPasswordStringData data = ScramUtils.byteArrayToStringData(ScramUtils.newPassword(PASSWORD,
+                "W22ZaJ0SNY7soEsUEjb6gQ==".getBytes(StandardCharsets.US_ASCII),
+                4096,
+                MECHANISM.getDigestName(),
+                MECHANISM.getHmacName()));
+        mUserData = new UserData(data.salt, data.iterations, data.serverKey, data.storedKey);
+    }
+
+
+    @Test
+    public void testValidClientFirstMessage() {
+        assertEquals("user", mServer.handleClientFirstMessage("n,,n=user,r=" + CLIENT_NONCE));
+        assertNull(mServer.getAuthorizationId());
+        assertEquals(ScramServerFunctionality.State.FIRST_CLIENT_MESSAGE_HANDLED, mServer.getState());
+    }
+
+
+    @Test
+    public void testGs2HeaderVariants() {
+        assertEquals("user", mServer.handleClientFirstMessage("y,,n=user,r=" + CLIENT_NONCE));
+        mServer.reset();
+        assertEquals("user", mServer.handleClientFirstMessage("p=tls-unique,,n=user,r=" + CLIENT_NONCE));
+        mServer.reset();
+        assertEquals("user", mServer.handleClientFirstMessage("n,a=admin,n=user,r=" + CLIENT_NONCE));
+        assertEquals("admin", mServer.getAuthorizationId());
+    }
+
+
+    @Test
+    public void testMalformedGs2Header() {
+        String[] messages = {
+                "",
+                "n",
+                "x,,n=user,r=" + CLIENT_NONCE,
+                "N,,n=user,r=" + CLIENT_NONCE,
+                "n,n=user,r=" + CLIENT_NONCE,
+                "p=tls-unique",
+                "p=tls-unique,",
+                "n,b=admin,n=user,r=" + CLIENT_NONCE,
+                "n,a=,n=user,r=" + CLIENT_NONCE,
+                "n,,",
+                ",,n=user,r=" + CLIENT_NONCE,
+        };
+
+        for (String message : messages) {
+            assertNull("'" + message + "'", mServer.handleClientFirstMessage(message));
+            assertEquals(ScramServerFunctionality.State.INITIAL, mServer.getState());
+        }
+    }
+
+
+    @Test
+    public void testMalformedClientFirstMessageBare() {
+        String[] messages = {
+                "n,,user,r=" + CLIENT_NONCE,
+                "n,,n=,r=" + CLIENT_NONCE,
+                "n,,n=user",
+                "n,,n=user,",
+                "n,,n=user,r=",
+                "n,,r=" + CLIENT_NONCE + ",n=user",
+                "n,,m=ext",
+        };
+
+        for (String message : messages) {
+            assertNull("'" + message + "'", mServer.handleClientFirstMessage(message));
+        }
+    }
+
+
+    @Test
+    public void testSaslNameEscapes() {
+        assertEquals("a,b=c", mServer.handleClientFirstMessage("n,,n=a=2Cb=3Dc,r=" + CLIENT_NONCE));
+        mServer.reset();
+        assertEquals("=,", mServer.handleClientFirstMessage("n,,n==3D=2C,r=" + CLIENT_NONCE));
+        mServer.reset();
+        assertEquals("user", mServer.handleClientFirstMessage("n,a=x=2Cy,n=user,r=" + CLIENT_NONCE));
+        assertEquals("x,y", mServer.getAuthorizationId());
+    }
+
+
+    @Test
+    public void testInvalidSaslNameEscapes() {
+        String[] names = {"a=2cb", "a=3d", "a=", "a=2", "a=3", "a=41b", "=", "a=2C=3"};
+
+        for (String name : names) {
+            assertNull(name, mServer.handleClientFirstMessage("n,,n=" + name + ",r=" + CLIENT_NONCE));
+            assertNull(name, mServer.handleClientFirstMessage("n,a=" + name + ",n=user,r=" + CLIENT_NONCE));
+        }
+    }
+
+
+    @Test
+    public void testValidClientFinalMessage() throws Exception {
+        String clientFinal = clientFinalMessage();
+
+        String serverFinal = mServer.prepareFinalMessage(clientFinal);
+        assertNotNull(serverFinal);
+        assertTrue(serverFinal.startsWith("v="));
+        assertTrue(mServer.isEnded());
+        assertTrue(mServer.isSuccessful());
+    }
+
+
+    @Test
+    public void testClientFinalMessageWithoutProof() throws Exception {
+        String clientFinal = clientFinalMessage();
+        String withoutProof = clientFinal.substring(0, clientFinal.lastIndexOf(",p="));
+
+        assertRejected(withoutProof);
+    }
+
+
+    @Test
+    public void testClientFinalMessageWithEmptyProof() throws Exception {
+        String clientFinal = clientFinalMessage();
+
+        assertRejected(clientFinal.substring(0, clientFinal.lastIndexOf(",p=") + 3));
+    }
+
+
+    @Test
+    public void testClientFinalMessageWithProofBeforeNonce() throws Exception {
+        String clientFinal = clientFinalMessage();
+        int proof = clientFinal.lastIndexOf(",p=");
+        int nonce = clientFinal.indexOf(",r=");
+
+        assertRejected(clientFinal.substring(0, nonce) + clientFinal.substring(proof) +
+                clientFinal.substring(nonce, proof));
+    }
+
+
+    @Test
+    public void testClientFinalMessageWithDuplicatedProof() throws Exception {
+        // user data with broken keys makes the server throw if it gets past parsing
+        mUserData = new UserData(mUserData.salt, mUserData.iterations, "!", "!");
+        String clientFinal = clientFinalMessage();
+        int proofAttribute = clientFinal.lastIndexOf(",p=");
+        String withoutProof = clientFinal.substring(0, proofAttribute);
+        String proof = clientFinal.substring(proofAttribute);
+
+        assertRejected(withoutProof + proof + proof);
+        mServer.reset();
+        clientFinalMessage();
+        assertNull(mServer.prepareFinalMessage(CharBuffer.wrap(withoutProof + ",p=AAAA" + proof)));
+        assertFalse(mServer.isSuccessful());
+    }
+
+
+    @Test
+    public void testClientFinalMessageWithWrongNonce() throws Exception {
+        String clientFinal = clientFinalMessage();
+
+        assertRejected(clientFinal.replace(SERVER_NONCE, SERVER_NONCE.substring(1)));
+    }
+
+
+    @Test
+    public void testClientFinalMessageWithWrongProof() throws Exception {
+        String clientFinal = clientFinalMessage();
+        int proofStart = clientFinal.lastIndexOf(",p=") + 3;
+        char c = clientFinal.charAt(proofStart);
+
+        assertRejected(clientFinal.substring(0, proofStart) + (c == 'A' ? 'B' : 'A') +
+                clientFinal.substring(proofStart + 1));
+    }
+
+
+    @Test
+    public void testUserDataKeysWithLineBreaks() throws Exception {
+        // as written by the legacy Base64 encoder unless DONT_BREAK_LINES was given
+        mUserData = new UserData(mUserData.salt,
+                mUserData.iterations,
+                mUserData.serverKey.substring(0, 20) + "\n" + mUserData.serverKey.substring(20),
+                mUserData.storedKey.substring(0, 20) + "\r\n" + mUserData.storedKey.substring(20) + "\n");
+
+        assertNotNull(mServer.prepareFinalMessage(clientFinalMessage()));
+        assertTrue(mServer.isSuccessful());
+    }
+
+
+    private void assertRejected(String clientFinal) throws Exception {
+        assertNull(clientFinal, mServer.prepareFinalMessage(clientFinal));
+        assertTrue(mServer.isEnded());
+        assertFalse(mServer.isSuccessful());
+    }
+
+
+    /**
+     * Runs the first round trip with the real client and returns its final message
+     */
+    private String clientFinalMessage() throws Exception {
+        ScramClientFunctionalityImpl client = new ScramClientFunctionalityImpl(MECHANISM.getDigestName(),
+                MECHANISM.getHmacName(),
+                CLIENT_NONCE);
+
+        String username = mServer.handleClientFirstMessage(client.prepareFirstMessage("user"));
+        assertEquals("user", username);
+
+        String clientFinal = client.prepareFinalMessage(PASSWORD, mServer.prepareFirstMessage(mUserData));
+        assertNotNull(clientFinal);
+        return clientFinal;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 Ognyan Bankov
+ * <p>
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bolyartech.scram_sasl.server;
+
+
+import com.bolyartech.scram_sasl.client.ScramClientFunctionality;
+import com.bolyartech.scram_sasl.client.ScramClientFunctionalityImpl;
+import com.bolyartech.scram_sasl.common.ScramException;
+import com.bolyartech.scram_sasl.common.ScramMechanism;
+import com.bolyartech.scram_sasl.common.ScramUtils;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Checks the reuse of the server processors and that a reset processor does not take the user data loaded for
+ * an earlier authentication
+ */
+public class ScramServerProcessorPoolTest {
+    private static final String PASSWORD = "pencil";
+
+
+    @Test
+    public void testReleasedProcessorIsReused() throws Exception {
+        ScramServerProcessorPool pool = new ScramServerProcessorPool(ScramMechanism.SCRAM_SHA_256,
+                new ImmediateLoader(), 2);
+
+        Connection first = new Connection(1);
+        ScramSaslServerProcessor processor = pool.acquire(1, first, first);
+        first.authenticate(processor, PASSWORD);
+        assertTrue(first.mSucceeded);
+
+        pool.release(processor);
+        assertEquals(1, pool.getIdleCount());
+
+        Connection second = new Connection(2);
+        assertSame(processor, pool.acquire(2, second, second));
+        assertEquals(0, pool.getIdleCount());
+        assertFalse(processor.isEnded());
+
+        second.authenticate(processor, "wrong");
+        assertTrue(second.mFailed);
+        assertFalse(first.mFailed);
+
+        pool.release(processor);
+        Connection third = new Connection(3);
+        assertSame(processor, pool.acquire(3, third, third));
+        third.authenticate(processor, PASSWORD);
+        assertTrue(third.mSucceeded);
+        // nothing of the later authentications reaches the first connection
+        assertEquals(2, first.mMessages.size());
+    }
+
+
+    @Test
+    public void testUnfinishedProcessorIsAborted() throws Exception {
+        ScramServerProcessorPool pool = new ScramServerProcessorPool(ScramMechanism.SCRAM_SHA_256,
+                new ImmediateLoader(), 2);
+
+        Connection connection = new Connection(1);
+        ScramSaslServerProcessor processor = pool.acquire(1, connection, connection);
+        processor.onMessage(connection.start("user"));
+        assertFalse(processor.isEnded());
+
+        pool.release(processor);
+        assertTrue(processor.isAborted());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+
+    @Test
+    public void testMaxIdle() {
+        ScramServerProcessorPool pool = new ScramServerProcessorPool(ScramMechanism.SCRAM_SHA_256,
+                new ImmediateLoader(), 2);
+
+        List<ScramSaslServerProcessor> processors = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Connection connection = new Connection(i);
+            processors.add(pool.acquire(i, connection, connection));
+        }
+        assertNotSame(processors.get(0), processors.get(1));
+
+        for (ScramSaslServerProcessor processor : processors) {
+            pool.release(processor);
+        }
+        assertEquals(2, pool.getIdleCount());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseOfOtherMechanism() {
+        ScramServerProcessorPool pool = new ScramServerProcessorPool(ScramMechanism.SCRAM_SHA_256,
+                new ImmediateLoader(), 2);
+        Connection connection = new Connection(1);
+
+        pool.release(new ScramSha512SaslServerProcessor(1, connection, new ImmediateLoader(), connection));
+    }
+
+
+    @Test
+    public void testLoadingProcessorIsDropped() throws Exception {
+        DeferredLoader loader = new DeferredLoader();
+        ScramServerProcessorPool pool = new ScramServerProcessorPool(ScramMechanism.SCRAM_SHA_256, loader, 2);
+
+        Connection connection = new Connection(1);
+        AbstractScramSaslServerProcessor processor =
+                (AbstractScramSaslServerProcessor) pool.acquire(1, connection, connection);
+        processor.onMessage(connection.start("user"));
+        assertTrue(processor.isLoadingUserData());
+
+        // the loader holds the processor and would pass the data to the next authentication
+        try {
+            processor.reset();
+            fail("processor reset while the user data is loading");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        pool.release(processor);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+
+    @Test
+    public void testLateUserDataIsIgnored() throws Exception {
+        CallbackLoader loader = new CallbackLoader();
+        ScramServerProcessorPool pool = new ScramServerProcessorPool(ScramMechanism.SCRAM_SHA_256, loader, 2);
+
+        Connection first = new Connection(1);
+        ScramSaslServerProcessor processor = pool.acquire(1, first, first);
+        processor.onMessage(first.start("user"));
+        UserDataCallback late = loader.mCallbacks.remove(0);
+        pool.release(processor);
+        assertEquals(1, pool.getIdleCount());
+
+        Connection second = new Connection(2);
+        assertSame(processor, pool.acquire(2, second, second));
+        processor.onMessage(second.start("user"));
+
+        late.onUserDataLoaded(userData(PASSWORD));
+        assertTrue(first.mMessages.isEmpty());
+        assertTrue(second.mMessages.isEmpty());
+
+        loader.mCallbacks.remove(0).onUserDataLoaded(userData(PASSWORD));
+        processor.onMessage(second.finish(PASSWORD));
+        assertTrue(second.mSucceeded);
+        assertTrue(second.mClient.checkServerFinalMessage(second.mMessages.get(1)));
+    }
+
+
+    private static UserData userData(String password) throws Exception {
+        ScramUtils.NewPasswordStringData data = ScramUtils.byteArrayToStringData(ScramUtils.newPassword(password,
+                "saltsaltsalt1234".getBytes(StandardCharsets.US_ASCII),
+                4096,
+                "SHA-256",
+                "HmacSHA256"));
+
+        return new UserData(data.salt, data.iterations, data.serverKey, data.storedKey);
+    }
+
+
+    /**
+     * Client side of one connection, records what the server sends and how the authentication ended
+     */
+    private static class Connection implements ScramSaslServerProcessor.Listener, ScramSaslServerProcessor.Sender {
+        private final long mConnectionId;
+        private final ScramClientFunctionality mClient = new ScramClientFunctionalityImpl("SHA-256", "HmacSHA256");
+        private final List<String> mMessages = new ArrayList<>();
+        private boolean mSucceeded;
+        private boolean mFailed;
+
+
+        Connection(long connectionId) {
+            mConnectionId = connectionId;
+        }
+
+
+        String start(String username) throws ScramException {
+            return mClient.prepareFirstMessage(username);
+        }
+
+
+        String finish(String password) throws ScramException {
+            return mClient.prepareFinalMessage(password, mMessages.get(0));
+        }
+
+
+        void authenticate(ScramSaslServerProcessor processor, String password) throws ScramException {
+            processor.onMessage(start("user"));
+            processor.onMessage(finish(password));
+        }
+
+
+        @Override
+        public void onSuccess(long connectionId) {
+            assertEquals(mConnectionId, connectionId);
+            mSucceeded = true;
+        }
+
+
+        @Override
+        public void onFailure(long connectionId) {
+            assertEquals(mConnectionId, connectionId);
+            mFailed = true;
+        }
+
+
+        @Override
+        public void sendMessage(long connectionId, String msg) {
+            assertEquals(mConnectionId, connectionId);
+            mMessages.add(msg);
+        }
+    }
+
+
+    private static class ImmediateLoader implements ScramSaslServerProcessor.UserDataLoader {
+        @Override
+        public void loadUserData(String username, long connectionId, ScramSaslServerProcessor processor) {
+            try {
+                processor.onUserDataLoaded(userData(PASSWORD));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+
+    private static class DeferredLoader implements ScramSaslServerProcessor.UserDataLoader {
+        @Override
+        public void loadUserData(String username, long connectionId, ScramSaslServerProcessor processor) {
+            // never calls back
+        }
+    }
+
+
+    private static class CallbackLoader implements ScramSaslServerProcessor.UserDataCallbackLoader {
+        private final List<UserDataCallback> mCallbacks = new ArrayList<>();
+
+
+        @Override
+        public void loadUserData(String username, long connectionId, UserDataCallback callback) {
+            mCallbacks.add(callback);
+        }
+    }
+}